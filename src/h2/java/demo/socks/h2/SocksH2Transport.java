@@ -0,0 +1,223 @@
+package demo.socks.h2;
+
+import com.google.common.net.InetAddresses;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.nio.AsyncRequestProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.H2Processors;
+import org.apache.hc.core5.http2.impl.nio.ClientH2PrefaceHandler;
+import org.apache.hc.core5.http2.impl.nio.ClientH2StreamMultiplexerFactory;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2MultiplexingRequester;
+import org.apache.hc.core5.http2.ssl.ApplicationProtocol;
+import org.apache.hc.core5.http2.ssl.H2ClientTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+import org.apache.hc.core5.reactor.ssl.SSLSessionInitializer;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * HTTP/2 through a SOCKS5 proxy on the HttpCore 5 stack: every origin gets a single tunnel, and the concurrent requests
+ * to it are multiplexed as streams on that tunnel instead of each paying for a connection to the proxy, a SOCKS
+ * handshake and a TLS handshake of its own. {@code https} origins have to agree on {@code h2} by ALPN, {@code http}
+ * origins are spoken to with prior knowledge.
+ * <p>
+ * The tunnels are opened by the SOCKS5 support of the HttpCore 5 reactor, which sends host names to the proxy for
+ * resolution and literal addresses as they are. Certificates are verified against the host name of the origin.
+ * Requests over the limit of concurrent streams of an origin wait for a stream of the tunnel to finish.
+ */
+public class SocksH2Transport implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SocksH2Transport.class);
+
+	private final InetSocketAddress proxy;
+	private final H2MultiplexingRequester requester;
+
+	private final AtomicLong tunnelsOpened = new AtomicLong();
+	private final AtomicLong tunnelsClosed = new AtomicLong();
+	private final AtomicLong requests = new AtomicLong();
+
+	/**
+	 * Without SOCKS5 authentication, with the default HTTP/2 settings and one I/O dispatcher per core.
+	 */
+	public SocksH2Transport(InetSocketAddress proxy, SSLContext sslContext) {
+		this(proxy, null, null, sslContext, H2Config.DEFAULT, IOReactorConfig.DEFAULT);
+	}
+
+	/**
+	 * @param userName       SOCKS5 user name, null for no authentication
+	 * @param h2Config       settings sent to the origins, among them the concurrent streams pushed to the client
+	 * @param reactorConfig  I/O dispatcher threads and socket options, the SOCKS proxy settings are replaced
+	 */
+	public SocksH2Transport(InetSocketAddress proxy, String userName, String password, SSLContext sslContext,
+							H2Config h2Config, IOReactorConfig reactorConfig) {
+		this.proxy = checkNotNull(proxy, "proxy");
+		checkNotNull(sslContext, "ssl context");
+
+		IOReactorConfig socksReactorConfig = IOReactorConfig.copy(reactorConfig)
+				.setSocksProxyAddress(proxy)
+				.setSocksProxyUsername(userName)
+				.setSocksProxyPassword(password)
+				.build();
+		ClientH2StreamMultiplexerFactory multiplexerFactory = new ClientH2StreamMultiplexerFactory(
+				H2Processors.client(), null, h2Config, null, null);
+		this.requester = new H2MultiplexingRequester(
+				socksReactorConfig,
+				// ALPN has to settle on h2, the origins are never spoken to in HTTP/1.1
+				(ioSession, attachment) -> new ClientH2PrefaceHandler(ioSession, multiplexerFactory, true),
+				null,
+				ex -> log.warn("I/O reactor failed", ex),
+				new TunnelListener(),
+				SocksH2Transport::resolve,
+				new H2ClientTlsStrategy(sslContext, new H2OnlyInitializer(), null));
+	}
+
+	/**
+	 * Starts the I/O dispatchers, requests are only executed once the transport is started.
+	 */
+	public void start() {
+		requester.start();
+	}
+
+	/**
+	 * Executes the request on the tunnel to its origin, opening the tunnel first if there is none.
+	 *
+	 * @param timeout for opening the tunnel, including the SOCKS and the TLS handshake
+	 */
+	public <T> Future<T> execute(AsyncRequestProducer requestProducer, AsyncResponseConsumer<T> responseConsumer,
+								 Timeout timeout, HttpContext context, FutureCallback<T> callback) {
+		requests.incrementAndGet();
+		return requester.execute(requestProducer, responseConsumer, timeout, context, callback);
+	}
+
+	/**
+	 * Closes the tunnels idle for longer than the given time.
+	 */
+	public void closeIdle(TimeValue idleTime) {
+		requester.closeIdle(idleTime);
+	}
+
+	/**
+	 * @return origins with a tunnel
+	 */
+	public Set<HttpHost> getOrigins() {
+		return requester.getRoutes();
+	}
+
+	public InetSocketAddress getProxy() {
+		return proxy;
+	}
+
+	/**
+	 * @return tunnels opened so far, including those closed since
+	 */
+	public long getTunnelsOpened() {
+		return tunnelsOpened.get();
+	}
+
+	public long getOpenTunnels() {
+		return tunnelsOpened.get() - tunnelsClosed.get();
+	}
+
+	/**
+	 * @return requests executed so far
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * Lets the streams in flight finish before closing the tunnels.
+	 */
+	@Override
+	public void close() {
+		requester.close(CloseMode.GRACEFUL);
+	}
+
+	@Override
+	public String toString() {
+		return "SocksH2Transport[proxy=" + proxy + ", tunnelsOpened=" + tunnelsOpened + ", openTunnels="
+				+ getOpenTunnels() + ", requests=" + requests + "]";
+	}
+
+	/**
+	 * Leaves host names unresolved, the proxy resolves them.
+	 */
+	private static InetSocketAddress resolve(HttpHost origin) {
+		int port = origin.getPort() > 0 ? origin.getPort() : URIScheme.HTTPS.same(origin.getSchemeName()) ? 443 : 80;
+		String host = origin.getHostName();
+		if (origin.getAddress() != null)
+			return new InetSocketAddress(origin.getAddress(), port);
+		if (InetAddresses.isInetAddress(host))
+			return new InetSocketAddress(InetAddresses.forString(host), port);
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/**
+	 * Offers nothing but {@code h2} and verifies the certificate against the host name of the origin.
+	 */
+	private static class H2OnlyInitializer implements SSLSessionInitializer {
+		@Override
+		public void initialize(NamedEndpoint endpoint, SSLEngine sslEngine) {
+			SSLParameters parameters = sslEngine.getSSLParameters();
+			parameters.setApplicationProtocols(new String[]{ApplicationProtocol.HTTP_2.id});
+			parameters.setEndpointIdentificationAlgorithm("HTTPS");
+			sslEngine.setSSLParameters(parameters);
+		}
+	}
+
+	private class TunnelListener implements IOSessionListener {
+		@Override
+		public void connected(IOSession session) {
+			tunnelsOpened.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("tunnel {} opened through {}", session, proxy);
+		}
+
+		@Override
+		public void disconnected(IOSession session) {
+			tunnelsClosed.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("tunnel {} closed", session);
+		}
+
+		@Override
+		public void startTls(IOSession session) {
+		}
+
+		@Override
+		public void inputReady(IOSession session) {
+		}
+
+		@Override
+		public void outputReady(IOSession session) {
+		}
+
+		@Override
+		public void timeout(IOSession session) {
+		}
+
+		@Override
+		public void exception(IOSession session, Exception ex) {
+		}
+	}
+}
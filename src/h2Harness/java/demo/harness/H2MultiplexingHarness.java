@@ -0,0 +1,434 @@
+package demo.harness;
+
+import demo.socks.SocksConfig;
+import demo.socks.SocksConnectingIOReactor;
+import demo.socks.SocksRoutePlanner;
+import demo.socks.h2.SocksH2Transport;
+import demo.socks.metrics.LatencyHistogram;
+import demo.socks.v5.SocksScheme5IOSessionStrategy;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Message;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
+import org.apache.hc.core5.http.nio.AsyncRequestConsumer;
+import org.apache.hc.core5.http.nio.AsyncServerRequestHandler;
+import org.apache.hc.core5.http.nio.entity.BasicAsyncEntityProducer;
+import org.apache.hc.core5.http.nio.entity.DiscardingEntityConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestConsumer;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http.nio.support.BasicResponseConsumer;
+import org.apache.hc.core5.http.nio.support.BasicResponseProducer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.bootstrap.H2ServerBootstrap;
+import org.apache.hc.core5.http2.ssl.H2ServerTlsStrategy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
+import org.apache.hc.core5.util.Timeout;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares HTTPS through a SOCKS5 proxy as multiplexed HTTP/2 streams on one tunnel, see {@link SocksH2Transport},
+ * with HTTP/1.1 on the HttpAsyncClient 4 stack opening a tunnel per request, the way the {@code SocksThroughputHarness}
+ * runs with {@code harness.keepAlive=false}. Both talk through an in-process {@link StubSocksServer} to an HttpCore 5
+ * origin that speaks {@code h2} to clients offering it by ALPN and HTTP/1.1 to the others, all on loopback with a
+ * certificate made up for the run.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ * <li>{@code harness.transports} the transports to run one after the other, {@code h1} and {@code h2}
+ * (default h1,h2)</li>
+ * <li>{@code harness.concurrency} requests in flight (default 64)</li>
+ * <li>{@code harness.duration} / {@code harness.warmup} seconds per transport (default 10 / 3)</li>
+ * <li>{@code harness.ioThreads} I/O dispatcher threads of the client (default: available processors)</li>
+ * <li>{@code harness.bodySize} response body bytes (default 1024)</li>
+ * <li>{@code harness.replyDelay} SOCKS reply delay in ms (default 0)</li>
+ * <li>{@code harness.maxConcurrentStreams} streams the client accepts per tunnel (default 100)</li>
+ * <li>{@code harness.tlsProtocol} highest TLS version of the clients (default TLSv1.2, the HttpCore NIO 4.3 TLS
+ * session stalls on some TLS 1.3 handshakes)</li>
+ * </ul>
+ */
+public class H2MultiplexingHarness {
+	private static final String KEY_STORE_PASSWORD = "harness";
+
+	private final int concurrency;
+	private final int ioThreads;
+	private final int maxConcurrentStreams;
+	private final SSLContext sslContext;
+	private final StubSocksServer socksServer;
+	private final InetSocketAddress origin;
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public H2MultiplexingHarness(int concurrency, int ioThreads, int maxConcurrentStreams, SSLContext sslContext,
+								 StubSocksServer socksServer, InetSocketAddress origin) {
+		this.concurrency = concurrency;
+		this.ioThreads = ioThreads;
+		this.maxConcurrentStreams = maxConcurrentStreams;
+		this.sslContext = sslContext;
+		this.socksServer = socksServer;
+		this.origin = origin;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubSocksServer.Settings settings = StubSocksServer.Settings.custom()
+				.setReplyDelay(Long.getLong("harness.replyDelay", 0), TimeUnit.MILLISECONDS)
+				.build();
+		byte[] body = new byte[Integer.getInteger("harness.bodySize", 1024)];
+		KeyStore keyStore = createKeyStore();
+		SSLContext serverSslContext = SSLContext.getInstance("TLS");
+		KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagers.init(keyStore, KEY_STORE_PASSWORD.toCharArray());
+		serverSslContext.init(keyManagers.getKeyManagers(), null, null);
+		// trusts nothing but the certificate of the origin
+		SSLContext clientSslContext = SSLContext.getInstance(System.getProperty("harness.tlsProtocol", "TLSv1.2"));
+		TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagers.init(keyStore);
+		clientSslContext.init(null, trustManagers.getTrustManagers(), null);
+
+		HttpAsyncServer server = H2ServerBootstrap.bootstrap()
+				.setVersionPolicy(HttpVersionPolicy.NEGOTIATE)
+				.setTlsStrategy(new H2ServerTlsStrategy(serverSslContext))
+				.register("*", new OriginHandler(body))
+				.create();
+		try (StubSocksServer socksServer = new StubSocksServer(settings)) {
+			server.start();
+			ListenerEndpoint endpoint = server.listen(new InetSocketAddress("127.0.0.1", 0), URIScheme.HTTPS).get();
+
+			H2MultiplexingHarness harness = new H2MultiplexingHarness(
+					Integer.getInteger("harness.concurrency", 64),
+					Integer.getInteger("harness.ioThreads", Runtime.getRuntime().availableProcessors()),
+					Integer.getInteger("harness.maxConcurrentStreams", 100),
+					clientSslContext,
+					socksServer,
+					(InetSocketAddress) endpoint.getAddress());
+			long warmup = Integer.getInteger("harness.warmup", 3);
+			long duration = Integer.getInteger("harness.duration", 10);
+			for (String transport : System.getProperty("harness.transports", "h1,h2").split(",")) {
+				Result result = "h2".equals(transport.trim())
+						? harness.runH2(warmup, duration, TimeUnit.SECONDS)
+						: harness.runH1(warmup, duration, TimeUnit.SECONDS);
+				System.out.println(transport.trim() + ": " + result);
+			}
+		} finally {
+			server.close(CloseMode.IMMEDIATE);
+		}
+	}
+
+	/**
+	 * HTTP/1.1, a tunnel and a TLS handshake per request.
+	 */
+	public Result runH1(long warmup, long duration, TimeUnit unit) throws IOException, InterruptedException {
+		SocksConnectingIOReactor ioReactor = new SocksConnectingIOReactor(IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setTcpNoDelay(true)
+				.build(), SocksConfig.DEFAULT.getEventListener());
+		SSLIOSessionStrategy sslioSessionStrategy = new SSLIOSessionStrategy(sslContext,
+				SSLIOSessionStrategy.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+		Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+				.register("socks5", new SocksScheme5IOSessionStrategy(sslioSessionStrategy, null, false, SocksConfig.DEFAULT))
+				.build();
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, sessionStrategyRegistry);
+		connectionManager.setMaxTotal(concurrency);
+		connectionManager.setDefaultMaxPerRoute(concurrency);
+
+		final HttpHost targetHost = new HttpHost(origin.getHostString(), origin.getPort(), "https");
+		final RequestConfig requestConfig = RequestConfig.custom()
+				.setProxy(new HttpHost(socksServer.getAddress().getHostString(), socksServer.getAddress().getPort(), "socks5"))
+				.setSocketTimeout(10000)
+				.setConnectTimeout(1000)
+				.setConnectionRequestTimeout(10000)
+				.build();
+
+		try (final CloseableHttpAsyncClient client = HttpAsyncClientBuilder.create()
+				.setConnectionManager(connectionManager)
+				.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE)
+				.setRoutePlanner(new SocksRoutePlanner())
+				.build()) {
+			client.start();
+			return measure(warmup, duration, unit, new Driver() {
+				@Override
+				public void execute(final Runnable done, final Runnable failure) {
+					HttpClientContext context = HttpClientContext.create();
+					context.setRequestConfig(requestConfig);
+					client.execute(new BasicAsyncRequestProducer(targetHost, new HttpGet("/")), new BasicAsyncResponseConsumer(),
+							context, new FutureCallback<HttpResponse>() {
+								@Override
+								public void completed(HttpResponse result) {
+									done.run();
+								}
+
+								@Override
+								public void failed(Exception ex) {
+									failure.run();
+								}
+
+								@Override
+								public void cancelled() {
+									failure.run();
+								}
+							});
+				}
+			});
+		}
+	}
+
+	/**
+	 * HTTP/2, the requests multiplexed on a single tunnel.
+	 */
+	public Result runH2(long warmup, long duration, TimeUnit unit) throws InterruptedException {
+		final SocksH2Transport transport = new SocksH2Transport(socksServer.getAddress(), null, null, sslContext,
+				H2Config.custom().setMaxConcurrentStreams(maxConcurrentStreams).build(),
+				org.apache.hc.core5.reactor.IOReactorConfig.custom()
+						.setIoThreadCount(ioThreads)
+						.setTcpNoDelay(true)
+						.setSoTimeout(Timeout.ofSeconds(10))
+						.build());
+		final org.apache.hc.core5.http.HttpHost targetHost = new org.apache.hc.core5.http.HttpHost(
+				"https", origin.getHostString(), origin.getPort());
+		final Timeout connectTimeout = Timeout.ofSeconds(10);
+
+		try {
+			transport.start();
+			return measure(warmup, duration, unit, new Driver() {
+				@Override
+				public void execute(final Runnable done, final Runnable failure) {
+					transport.execute(new BasicRequestProducer(Method.GET, targetHost, "/"),
+							new BasicResponseConsumer<>(new DiscardingEntityConsumer<Void>()), connectTimeout, null,
+							new org.apache.hc.core5.concurrent.FutureCallback<Message<org.apache.hc.core5.http.HttpResponse, Void>>() {
+								@Override
+								public void completed(Message<org.apache.hc.core5.http.HttpResponse, Void> result) {
+									done.run();
+								}
+
+								@Override
+								public void failed(Exception ex) {
+									failure.run();
+								}
+
+								@Override
+								public void cancelled() {
+									failure.run();
+								}
+							});
+				}
+			});
+		} finally {
+			transport.close();
+		}
+	}
+
+	private Result measure(long warmup, long duration, TimeUnit unit, Driver driver) throws InterruptedException {
+		drive(driver, System.nanoTime() + unit.toNanos(warmup));
+
+		latencies.reset();
+		completed.set(0);
+		failed.set(0);
+		long tunnelsBefore = socksServer.getConnectCount();
+		long reactorCpuBefore = reactorCpuNanos();
+		long start = System.nanoTime();
+
+		drive(driver, start + unit.toNanos(duration));
+
+		long elapsed = System.nanoTime() - start;
+		return new Result(elapsed, completed.get(), failed.get(), socksServer.getConnectCount() - tunnelsBefore,
+				reactorCpuNanos() - reactorCpuBefore, latencies);
+	}
+
+	private void drive(Driver driver, long deadline) throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(concurrency);
+
+		while (System.nanoTime() - deadline < 0) {
+			inFlight.acquire();
+
+			final long start = System.nanoTime();
+			driver.execute(new Runnable() {
+				@Override
+				public void run() {
+					latencies.recordNanos(System.nanoTime() - start);
+					completed.incrementAndGet();
+					inFlight.release();
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					failed.incrementAndGet();
+					inFlight.release();
+				}
+			});
+		}
+
+		inFlight.acquire(concurrency);
+	}
+
+	/**
+	 * CPU time consumed so far by the I/O dispatcher threads of the clients of both stacks.
+	 */
+	private static long reactorCpuNanos() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpu = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && (info.getThreadName().startsWith("I/O dispatcher")
+					|| info.getThreadName().startsWith("requester-dispatch"))) {
+				long threadCpu = threads.getThreadCpuTime(info.getThreadId());
+				if (threadCpu > 0)
+					cpu += threadCpu;
+			}
+		}
+		return cpu;
+	}
+
+	/**
+	 * A self-signed certificate for {@code localhost} and {@code 127.0.0.1}, made by the {@code keytool} of the running
+	 * JVM since the JDK has no API for it.
+	 */
+	private static KeyStore createKeyStore() throws IOException, InterruptedException, GeneralSecurityException {
+		File file = File.createTempFile("h2-harness", ".p12");
+		try {
+			Files.delete(file.toPath());
+			Process keytool = new ProcessBuilder(
+					new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+					"-genkeypair", "-alias", "origin", "-keyalg", "EC", "-groupname", "secp256r1",
+					"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "1",
+					"-storetype", "PKCS12", "-keystore", file.getPath(),
+					"-storepass", KEY_STORE_PASSWORD, "-keypass", KEY_STORE_PASSWORD)
+					.redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD)
+					.start();
+			if (keytool.waitFor() != 0)
+				throw new IOException("keytool failed with exit code " + keytool.exitValue());
+
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			try (InputStream in = new FileInputStream(file)) {
+				keyStore.load(in, KEY_STORE_PASSWORD.toCharArray());
+			}
+			return keyStore;
+		} finally {
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	private interface Driver {
+		void execute(Runnable done, Runnable failure);
+	}
+
+	/**
+	 * Answers every request with the same body.
+	 */
+	private static class OriginHandler implements AsyncServerRequestHandler<Message<HttpRequest, Void>> {
+		private final byte[] body;
+
+		OriginHandler(byte[] body) {
+			this.body = body;
+		}
+
+		@Override
+		public AsyncRequestConsumer<Message<HttpRequest, Void>> prepare(HttpRequest request, EntityDetails entityDetails,
+																		HttpContext context) {
+			return new BasicRequestConsumer<>(entityDetails != null ? new DiscardingEntityConsumer<Void>() : null);
+		}
+
+		@Override
+		public void handle(Message<HttpRequest, Void> requestObject, ResponseTrigger responseTrigger, HttpContext context)
+				throws org.apache.hc.core5.http.HttpException, IOException {
+			responseTrigger.submitResponse(new BasicResponseProducer(HttpStatus.SC_OK,
+					new BasicAsyncEntityProducer(body, ContentType.APPLICATION_OCTET_STREAM)), context);
+		}
+	}
+
+	public static class Result {
+		private final long elapsedNanos;
+		private final long requests;
+		private final long failures;
+		private final long tunnels;
+		private final long reactorCpuNanos;
+		private final LatencyHistogram latencies;
+
+		Result(long elapsedNanos, long requests, long failures, long tunnels, long reactorCpuNanos, LatencyHistogram latencies) {
+			this.elapsedNanos = elapsedNanos;
+			this.requests = requests;
+			this.failures = failures;
+			this.tunnels = tunnels;
+			this.reactorCpuNanos = reactorCpuNanos;
+			this.latencies = latencies;
+		}
+
+		public double getRequestsPerSecond() {
+			return requests / seconds();
+		}
+
+		/**
+		 * @return I/O dispatcher CPU time per request, in microseconds
+		 */
+		public double getReactorCpuPerRequest() {
+			long total = requests + failures;
+			return total > 0 ? reactorCpuNanos / 1000.0 / total : 0;
+		}
+
+		public long getTunnels() {
+			return tunnels;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		private double seconds() {
+			return elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"requests: %d (%.1f/s), failures: %d, tunnels: %d, reactor cpu us/request: %.1f, "
+							+ "latency ms p50: %.3f, p99: %.3f, p999: %.3f, max: %.3f",
+					requests, getRequestsPerSecond(), failures, tunnels, getReactorCpuPerRequest(),
+					latencies.getPercentile(50, TimeUnit.MILLISECONDS),
+					latencies.getPercentile(99, TimeUnit.MILLISECONDS),
+					latencies.getPercentile(99.9, TimeUnit.MILLISECONDS),
+					latencies.getMax(TimeUnit.MICROSECONDS) / 1000.0);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package demo.socks.jfr;
+
+import demo.socks.SocksException;
+import demo.socks.SocksTracer;
+import jdk.jfr.EventType;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Emits the SOCKS handshake of every tunnel as Java Flight Recorder events, to line up slow tunnels with GC pauses and
+ * stalled I/O dispatchers. Registered with the {@link java.util.ServiceLoader}, so putting the {@code jfr} jar on the
+ * class path is enough, e.g. with {@code -XX:StartFlightRecording:settings=profile}.
+ * <p>
+ * While none of the events is enabled a tunnel is not traced, which costs a few volatile reads per tunnel and does not
+ * allocate.
+ */
+public class JfrSocksTracer implements SocksTracer {
+	private static final EventType HANDSHAKE = EventType.getEventType(SocksHandshakeEvent.class);
+	private static final EventType HANDSHAKE_START = EventType.getEventType(SocksHandshakeStartEvent.class);
+	private static final EventType CONNECT_WRITTEN = EventType.getEventType(SocksConnectWrittenEvent.class);
+	private static final EventType REPLY_RECEIVED = EventType.getEventType(SocksReplyReceivedEvent.class);
+	private static final EventType HANDSHAKE_FAILED = EventType.getEventType(SocksHandshakeFailedEvent.class);
+	private static final EventType TLS_HANDSHAKE = EventType.getEventType(SocksTlsHandshakeEvent.class);
+
+	@Override
+	public Trace start(HttpRoute route) {
+		if (!HANDSHAKE.isEnabled() && !HANDSHAKE_START.isEnabled() && !CONNECT_WRITTEN.isEnabled()
+				&& !REPLY_RECEIVED.isEnabled() && !HANDSHAKE_FAILED.isEnabled() && !TLS_HANDSHAKE.isEnabled())
+			return null;
+		return new JfrTrace(route);
+	}
+
+	@Override
+	public String toString() {
+		return "JFR";
+	}
+
+	/**
+	 * The steps of a handshake are reported one after the other, under the lock of the session or on its I/O
+	 * dispatcher thread, so the events need no further synchronization.
+	 */
+	private static class JfrTrace implements Trace {
+		private final String proxy;
+		private final String target;
+		private final boolean secure;
+
+		private SocksHandshakeEvent handshake;
+		private SocksTlsHandshakeEvent tlsHandshake;
+		private int replyCode = -1;
+
+		JfrTrace(HttpRoute route) {
+			this.proxy = route.getProxyHost().toString();
+			this.target = route.getTargetHost().toString();
+			this.secure = route.isSecure();
+
+			if (HANDSHAKE_START.isEnabled())
+				commit(new SocksHandshakeStartEvent());
+
+			if (HANDSHAKE.isEnabled()) {
+				handshake = new SocksHandshakeEvent();
+				handshake.proxy = proxy;
+				handshake.target = target;
+				handshake.secure = secure;
+				handshake.startThread = Thread.currentThread();
+				handshake.begin();
+			}
+		}
+
+		@Override
+		public void connectWritten() {
+			if (CONNECT_WRITTEN.isEnabled())
+				commit(new SocksConnectWrittenEvent());
+		}
+
+		@Override
+		public void replyReceived(int replyCode) {
+			this.replyCode = replyCode;
+			if (REPLY_RECEIVED.isEnabled()) {
+				SocksReplyReceivedEvent event = new SocksReplyReceivedEvent();
+				event.replyCode = replyCode;
+				commit(event);
+			}
+		}
+
+		@Override
+		public void established() {
+			endHandshake(true, null);
+
+			if (TLS_HANDSHAKE.isEnabled() && secure) {
+				tlsHandshake = new SocksTlsHandshakeEvent();
+				tlsHandshake.proxy = proxy;
+				tlsHandshake.target = target;
+				tlsHandshake.begin();
+			}
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			if (ex instanceof SocksException)
+				replyCode = ((SocksException) ex).getReplyCode();
+			endHandshake(false, ex);
+
+			if (HANDSHAKE_FAILED.isEnabled()) {
+				SocksHandshakeFailedEvent event = new SocksHandshakeFailedEvent();
+				event.replyCode = ex instanceof SocksException ? replyCode : -1;
+				event.failure = ex.toString();
+				commit(event);
+			}
+		}
+
+		@Override
+		public void tlsHandshakeDone(Exception failure) {
+			if (tlsHandshake == null)
+				return;
+			tlsHandshake.end();
+			if (tlsHandshake.shouldCommit()) {
+				tlsHandshake.verified = failure == null;
+				tlsHandshake.failure = failure != null ? failure.toString() : null;
+				tlsHandshake.commit();
+			}
+			tlsHandshake = null;
+		}
+
+		private void endHandshake(boolean established, Exception failure) {
+			if (handshake == null)
+				return;
+			handshake.end();
+			if (handshake.shouldCommit()) {
+				handshake.established = established;
+				handshake.replyCode = replyCode;
+				handshake.failure = failure != null ? failure.toString() : null;
+				handshake.commit();
+			}
+			handshake = null;
+		}
+
+		private void commit(TunnelEvent event) {
+			event.proxy = proxy;
+			event.target = target;
+			event.commit();
+		}
+	}
+}
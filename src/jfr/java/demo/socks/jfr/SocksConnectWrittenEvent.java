@@ -0,0 +1,13 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("demo.socks.ConnectWritten")
+@Label("SOCKS CONNECT Written")
+@Category({"HTTP Client", "SOCKS"})
+@StackTrace(false)
+class SocksConnectWrittenEvent extends TunnelEvent {
+}
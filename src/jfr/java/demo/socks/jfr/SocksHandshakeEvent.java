@@ -0,0 +1,41 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Whole SOCKS handshake of one tunnel, from creating the session to the established tunnel or the failure. Committed
+ * on the thread completing the handshake, usually an I/O dispatcher.
+ */
+@Name("demo.socks.Handshake")
+@Label("SOCKS Handshake")
+@Category({"HTTP Client", "SOCKS"})
+@StackTrace(false)
+class SocksHandshakeEvent extends Event {
+	@Label("Proxy")
+	String proxy;
+
+	@Label("Target")
+	String target;
+
+	@Label("Secure")
+	boolean secure;
+
+	@Label("Started On")
+	@Description("Thread that created the session and wrote the first request")
+	Thread startThread;
+
+	@Label("Established")
+	boolean established;
+
+	@Label("Reply Code")
+	@Description("Code of the CONNECT reply or of the rejection, -1 if there was none")
+	int replyCode = -1;
+
+	@Label("Failure")
+	String failure;
+}
@@ -0,0 +1,20 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("demo.socks.HandshakeFailed")
+@Label("SOCKS Handshake Failed")
+@Category({"HTTP Client", "SOCKS"})
+@StackTrace(false)
+class SocksHandshakeFailedEvent extends TunnelEvent {
+	@Label("Reply Code")
+	@Description("Code of the rejection, -1 if the proxy did not reject the tunnel")
+	int replyCode;
+
+	@Label("Failure")
+	String failure;
+}
@@ -0,0 +1,13 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("demo.socks.HandshakeStart")
+@Label("SOCKS Handshake Start")
+@Category({"HTTP Client", "SOCKS"})
+@StackTrace(false)
+class SocksHandshakeStartEvent extends TunnelEvent {
+}
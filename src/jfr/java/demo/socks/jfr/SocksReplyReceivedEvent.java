@@ -0,0 +1,15 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("demo.socks.ReplyReceived")
+@Label("SOCKS Reply Received")
+@Category({"HTTP Client", "SOCKS"})
+@StackTrace(false)
+class SocksReplyReceivedEvent extends TunnelEvent {
+	@Label("Reply Code")
+	int replyCode;
+}
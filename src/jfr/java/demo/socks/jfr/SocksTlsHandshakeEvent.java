@@ -0,0 +1,31 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * TLS on top of an established tunnel, from the established tunnel to the verified TLS session. Needs the
+ * {@link demo.socks.TimedSSLIOSessionStrategy}.
+ */
+@Name("demo.socks.TlsHandshake")
+@Label("TLS Handshake over SOCKS")
+@Category({"HTTP Client", "SOCKS"})
+@StackTrace(false)
+class SocksTlsHandshakeEvent extends Event {
+	@Label("Proxy")
+	String proxy;
+
+	@Label("Target")
+	String target;
+
+	@Label("Verified")
+	boolean verified;
+
+	@Label("Failure")
+	@Description("Why the TLS session failed verification")
+	String failure;
+}
@@ -0,0 +1,15 @@
+package demo.socks.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+
+/**
+ * Instant event of one tunnel.
+ */
+abstract class TunnelEvent extends Event {
+	@Label("Proxy")
+	String proxy;
+
+	@Label("Target")
+	String target;
+}
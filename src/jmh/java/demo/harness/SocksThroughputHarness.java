@@ -0,0 +1,365 @@
+package demo.harness;
+
+import com.google.common.base.Predicates;
+import demo.socks.ProxyAdmissionController;
+import demo.socks.ShardedConnectingIOReactor;
+import demo.socks.SocksConfig;
+import demo.socks.SocksEventListeners;
+import demo.socks.SocksConnectingIOReactor;
+import demo.socks.SocksTunnelPrewarmer;
+import demo.socks.metrics.LatencyHistogram;
+import demo.socks.metrics.ProxyMetrics;
+import demo.socks.metrics.SocksMetrics;
+import demo.socks.v4.SocksScheme4IOSessionStrategy;
+import demo.socks.v5.SocksScheme5IOSessionStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.BasicAsyncResponseConsumer;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load generator: {@link SocksConnectingIOReactor} + {@link PoolingNHttpClientConnectionManager} talking
+ * through an in-process {@link StubSocksServer} to a {@link StubHttpOrigin}, all on loopback.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ * <li>{@code harness.concurrency} requests in flight (default 64)</li>
+ * <li>{@code harness.duration} / {@code harness.warmup} seconds (default 10 / 3)</li>
+ * <li>{@code harness.keepAlive} reuse tunnels, {@code false} opens a tunnel per request (default true)</li>
+ * <li>{@code harness.ioThreads} I/O dispatcher threads (default: available processors)</li>
+ * <li>{@code harness.bodySize} response body bytes (default 1024)</li>
+ * <li>{@code harness.replyDelay} SOCKS reply delay in ms (default 0)</li>
+ * <li>{@code harness.rejectCode} SOCKS reply code, 90 grants (default 90)</li>
+ * <li>{@code harness.bandwidth} relay bytes/s per tunnel and direction, 0 is unlimited (default 0)</li>
+ * <li>{@code harness.target} target host name, a literal uses SOCKS4, a name SOCKS4a (default 127.0.0.1)</li>
+ * <li>{@code harness.localResolution} resolve target host names on the client instead of the proxy (default false)</li>
+ * <li>{@code harness.socksVersion} 4 or 5 (default 4)</li>
+ * <li>{@code harness.pipelined} send the SOCKS5 handshake in one write (default false)</li>
+ * <li>{@code harness.userName} / {@code harness.password} SOCKS5 credentials required by the server (default none)</li>
+ * <li>{@code harness.handshakeTimeout} SOCKS handshake timeout in ms, 0 leaves it to the socket timeout (default 0)</li>
+ * <li>{@code harness.earlyData} send the HTTP request right after the SOCKS connect request (default false)</li>
+ * <li>{@code harness.shards} reactor shards pinned by route, each with {@code harness.ioThreads} I/O threads, 0
+ * runs a single reactor (default 0); the harness drives a single route, which stays on one shard</li>
+ * <li>{@code harness.admissionLatencyTarget} latency target in ms of a {@link ProxyAdmissionController} limiting the
+ * concurrency, 0 for none (default 0)</li>
+ * <li>{@code harness.admissionQueue} requests queued by the admission controller (default concurrency / 4)</li>
+ * <li>{@code harness.prewarm} established tunnels kept idle in the pool by a {@link SocksTunnelPrewarmer}, useful
+ * with {@code harness.keepAlive=false} (default 0)</li>
+ * </ul>
+ */
+public class SocksThroughputHarness {
+	private final int concurrency;
+	private final boolean keepAlive;
+	private final int ioThreads;
+	private final String target;
+	private final int socksVersion;
+	private final boolean pipelined;
+	private final SocksConfig socksConfig;
+	private int prewarm;
+	private int shards;
+	private ProxyAdmissionController admissionController;
+
+	private final StubSocksServer socksServer;
+	private final StubHttpOrigin origin;
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	public SocksThroughputHarness(int concurrency, boolean keepAlive, int ioThreads, String target, int socksVersion,
+								  boolean pipelined, SocksConfig socksConfig, StubSocksServer socksServer, StubHttpOrigin origin) {
+		this.concurrency = concurrency;
+		this.keepAlive = keepAlive;
+		this.ioThreads = ioThreads;
+		this.target = target;
+		this.socksVersion = socksVersion;
+		this.pipelined = pipelined;
+		this.socksConfig = socksConfig;
+		this.socksServer = socksServer;
+		this.origin = origin;
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubSocksServer.Settings settings = StubSocksServer.Settings.custom()
+				.setReplyDelay(Long.getLong("harness.replyDelay", 0), TimeUnit.MILLISECONDS)
+				.setRejectCode(Integer.getInteger("harness.rejectCode", StubSocksServer.GRANTED))
+				.setBytesPerSecond(Long.getLong("harness.bandwidth", 0))
+				.setCredentials(System.getProperty("harness.userName"), System.getProperty("harness.password"))
+				.build();
+
+		SocksMetrics metrics = new SocksMetrics();
+		int concurrency = Integer.getInteger("harness.concurrency", 64);
+		int admissionLatencyTarget = Integer.getInteger("harness.admissionLatencyTarget", 0);
+		ProxyAdmissionController admissionController = admissionLatencyTarget > 0
+				? new ProxyAdmissionController(concurrency, Integer.getInteger("harness.admissionQueue", concurrency / 4),
+						admissionLatencyTarget, TimeUnit.MILLISECONDS)
+				: null;
+
+		try (StubSocksServer socksServer = new StubSocksServer(settings);
+			 StubHttpOrigin origin = new StubHttpOrigin(Integer.getInteger("harness.bodySize", 1024))) {
+			SocksThroughputHarness harness = new SocksThroughputHarness(
+					concurrency,
+					Boolean.parseBoolean(System.getProperty("harness.keepAlive", "true")),
+					Integer.getInteger("harness.ioThreads", Runtime.getRuntime().availableProcessors()),
+					System.getProperty("harness.target", "127.0.0.1"),
+					Integer.getInteger("harness.socksVersion", 4),
+					Boolean.getBoolean("harness.pipelined"),
+					SocksConfig.custom()
+							.setEarlyDataRoutes(Boolean.getBoolean("harness.earlyData") ? Predicates.<HttpRoute>alwaysTrue() : Predicates.<HttpRoute>alwaysFalse())
+							.setLocalResolutionRoutes(Boolean.getBoolean("harness.localResolution") ? Predicates.<HttpRoute>alwaysTrue() : Predicates.<HttpRoute>alwaysFalse())
+							.setHandshakeTimeout(Integer.getInteger("harness.handshakeTimeout", 0))
+							.setEventListener(admissionController != null ? SocksEventListeners.compose(metrics, admissionController) : metrics)
+							.build(),
+					socksServer, origin);
+			harness.setPrewarm(Integer.getInteger("harness.prewarm", 0));
+			harness.setShards(Integer.getInteger("harness.shards", 0));
+			harness.setAdmissionController(admissionController);
+
+			Result result = harness.run(Integer.getInteger("harness.warmup", 3), Integer.getInteger("harness.duration", 10), TimeUnit.SECONDS);
+			System.out.println(result);
+			System.out.println(String.format(Locale.ROOT, "socks server granted: %d, rejected: %d, with early data: %d",
+					socksServer.getGrantedCount(), socksServer.getRejectedCount(), socksServer.getEarlyDataCount()));
+			// including the warmup
+			for (ProxyMetrics proxyMetrics : metrics.getAll())
+				System.out.println(String.format(Locale.ROOT, "proxy %s connect: %s, handshake: %s, rejected: %s, errors: %d",
+						proxyMetrics.getProxy(), proxyMetrics.getConnectTime(), proxyMetrics.getHandshakeTime(),
+						proxyMetrics.getRejectionsByReplyCode(), proxyMetrics.getHandshakeErrors()));
+			if (admissionController != null)
+				System.out.println("admission: " + admissionController);
+		}
+	}
+
+	public void setPrewarm(int prewarm) {
+		this.prewarm = prewarm;
+	}
+
+	/**
+	 * Runs a {@link ShardedConnectingIOReactor} with the I/O threads per shard instead of a single reactor.
+	 */
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * Sends the requests through the controller, which has to be the event listener of the config as well.
+	 */
+	public void setAdmissionController(ProxyAdmissionController admissionController) {
+		this.admissionController = admissionController;
+	}
+
+	public Result run(long warmup, long duration, TimeUnit unit) throws IOException, InterruptedException {
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setTcpNoDelay(true)
+				.build();
+		ConnectingIOReactor ioReactor = shards > 0
+				? new ShardedConnectingIOReactor(shards, reactorConfig, ShardedConnectingIOReactor.Affinity.ROUTE, socksConfig.getEventListener())
+				: new SocksConnectingIOReactor(reactorConfig, socksConfig.getEventListener());
+
+		SSLIOSessionStrategy sslioSessionStrategy = SSLIOSessionStrategy.getDefaultStrategy();
+		StubSocksServer.Settings settings = socksServer.getSettings();
+		UsernamePasswordCredentials credentials = settings.getUserName() != null
+				? new UsernamePasswordCredentials(settings.getUserName(), settings.getPassword())
+				: null;
+		Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+				.register("socks", new SocksScheme4IOSessionStrategy(sslioSessionStrategy, socksConfig))
+				.register("socks5", new SocksScheme5IOSessionStrategy(sslioSessionStrategy, credentials, pipelined, socksConfig))
+				.register("http", NoopIOSessionStrategy.INSTANCE)
+				.register("https", sslioSessionStrategy)
+				.build();
+
+		PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, sessionStrategyRegistry);
+		// warm tunnels count against the limits, leave room for them next to the requests in flight
+		connectionManager.setMaxTotal(concurrency + prewarm);
+		connectionManager.setDefaultMaxPerRoute(concurrency + prewarm);
+
+		HttpAsyncClientBuilder clientBuilder = HttpAsyncClientBuilder.create()
+				.setConnectionManager(connectionManager);
+		if (!keepAlive)
+			clientBuilder.setConnectionReuseStrategy(NoConnectionReuseStrategy.INSTANCE);
+
+		HttpHost proxy = new HttpHost(socksServer.getAddress().getAddress().getHostAddress(), socksServer.getAddress().getPort(),
+				socksVersion == 5 ? "socks5" : "socks");
+		HttpHost targetHost = new HttpHost(target, origin.getAddress().getPort(), "http");
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setProxy(proxy)
+				.setSocketTimeout(10000)
+				.setConnectTimeout(1000)
+				.setConnectionRequestTimeout(10000)
+				.build();
+
+		try (CloseableHttpAsyncClient client = clientBuilder.build();
+			 SocksTunnelPrewarmer prewarmer = new SocksTunnelPrewarmer(connectionManager, 10, 1000, 30000, TimeUnit.MILLISECONDS)) {
+			client.start();
+			if (prewarm > 0) {
+				prewarmer.prewarm(new HttpRoute(targetHost, null, proxy, false), prewarm);
+				prewarmer.start();
+			}
+
+			drive(client, targetHost, requestConfig, System.nanoTime() + unit.toNanos(warmup));
+
+			latencies.reset();
+			completed.set(0);
+			failed.set(0);
+			long tunnelsBefore = socksServer.getConnectCount();
+			long reactorCpuBefore = reactorCpuNanos();
+			long start = System.nanoTime();
+
+			drive(client, targetHost, requestConfig, start + unit.toNanos(duration));
+
+			long elapsed = System.nanoTime() - start;
+			return new Result(elapsed, completed.get(), failed.get(), socksServer.getConnectCount() - tunnelsBefore,
+					reactorCpuNanos() - reactorCpuBefore, latencies);
+		}
+	}
+
+	/**
+	 * CPU time consumed so far by the I/O dispatcher threads of all reactors.
+	 */
+	private static long reactorCpuNanos() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpu = 0;
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith("I/O dispatcher")) {
+				long threadCpu = threads.getThreadCpuTime(info.getThreadId());
+				if (threadCpu > 0)
+					cpu += threadCpu;
+			}
+		}
+		return cpu;
+	}
+
+	private void drive(CloseableHttpAsyncClient client, HttpHost targetHost, RequestConfig requestConfig, long deadline) throws InterruptedException {
+		final Semaphore inFlight = new Semaphore(concurrency);
+
+		while (System.nanoTime() - deadline < 0) {
+			inFlight.acquire();
+
+			HttpClientContext context = HttpClientContext.create();
+			context.setRequestConfig(requestConfig);
+
+			final long start = System.nanoTime();
+			BasicAsyncRequestProducer requestProducer = new BasicAsyncRequestProducer(targetHost, new HttpGet("/"));
+			BasicAsyncResponseConsumer responseConsumer = new BasicAsyncResponseConsumer();
+			FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>() {
+				@Override
+				public void completed(HttpResponse result) {
+					latencies.recordNanos(System.nanoTime() - start);
+					completed.incrementAndGet();
+					inFlight.release();
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					failed.incrementAndGet();
+					inFlight.release();
+				}
+
+				@Override
+				public void cancelled() {
+					failed.incrementAndGet();
+					inFlight.release();
+				}
+			};
+
+			if (admissionController != null)
+				admissionController.execute(client, requestProducer, responseConsumer, context, callback);
+			else
+				client.execute(requestProducer, responseConsumer, context, callback);
+		}
+
+		inFlight.acquire(concurrency);
+	}
+
+	public static class Result {
+		private final long elapsedNanos;
+		private final long requests;
+		private final long failures;
+		private final long tunnels;
+		private final long reactorCpuNanos;
+		private final LatencyHistogram latencies;
+
+		Result(long elapsedNanos, long requests, long failures, long tunnels, long reactorCpuNanos, LatencyHistogram latencies) {
+			this.elapsedNanos = elapsedNanos;
+			this.requests = requests;
+			this.failures = failures;
+			this.tunnels = tunnels;
+			this.reactorCpuNanos = reactorCpuNanos;
+			this.latencies = latencies;
+		}
+
+		public double getRequestsPerSecond() {
+			return requests / seconds();
+		}
+
+		public double getConnectionsPerSecond() {
+			return tunnels / seconds();
+		}
+
+		/**
+		 * @return I/O dispatcher CPU time per tunnel opened, in microseconds
+		 */
+		public double getReactorCpuPerTunnel() {
+			return tunnels > 0 ? reactorCpuNanos / 1000.0 / tunnels : 0;
+		}
+
+		/**
+		 * @return I/O dispatcher CPU time per request, in microseconds
+		 */
+		public double getReactorCpuPerRequest() {
+			long total = requests + failures;
+			return total > 0 ? reactorCpuNanos / 1000.0 / total : 0;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		public LatencyHistogram getLatencies() {
+			return latencies;
+		}
+
+		private double seconds() {
+			return elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"requests: %d (%.1f/s), failures: %d, tunnels: %d (%.1f/s), reactor cpu us/tunnel: %.1f, us/request: %.1f, "
+							+ "latency ms p50: %.3f, p99: %.3f, p999: %.3f, max: %.3f",
+					requests, getRequestsPerSecond(), failures, tunnels, getConnectionsPerSecond(),
+					getReactorCpuPerTunnel(), getReactorCpuPerRequest(),
+					latencies.getPercentile(50, TimeUnit.MILLISECONDS),
+					latencies.getPercentile(99, TimeUnit.MILLISECONDS),
+					latencies.getPercentile(99.9, TimeUnit.MILLISECONDS),
+					latencies.getMax(TimeUnit.MICROSECONDS) / 1000.0);
+		}
+	}
+}
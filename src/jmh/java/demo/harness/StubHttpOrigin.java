@@ -0,0 +1,117 @@
+package demo.harness;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback HTTP/1.1 origin answering every request head with the same {@code 200 OK} response. Supports keep-alive
+ * and pipelining, request bodies are not supported.
+ */
+public class StubHttpOrigin extends StubServer {
+	private final byte[] response;
+	private final AtomicLong connectionCount = new AtomicLong();
+	private final AtomicLong requestCount = new AtomicLong();
+
+	public StubHttpOrigin(int bodySize) throws IOException {
+		super("stub-http-origin");
+
+		String body = Strings.repeat("x", bodySize);
+		response = ("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/plain\r\n"
+				+ "Content-Length: " + bodySize + "\r\n"
+				+ "\r\n"
+				+ body).getBytes(Charsets.US_ASCII);
+	}
+
+	public long getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	@Override
+	protected Handler accepted(SocketChannel channel) {
+		connectionCount.incrementAndGet();
+		return new Connection(channel);
+	}
+
+	private class Connection implements Handler {
+		private final SocketChannel channel;
+		private final ByteBuffer in = ByteBuffer.allocate(8192);
+		private final ByteBuffer out = ByteBuffer.wrap(response);
+
+		private int pendingResponses;
+		private int scanned;
+		private boolean endOfStream;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+			out.position(out.limit());
+		}
+
+		@Override
+		public void ready(SelectionKey key) throws IOException {
+			if (key.isReadable()) {
+				int read = channel.read(in);
+				if (read == -1)
+					endOfStream = true;
+				parseRequests();
+				if (!in.hasRemaining())
+					throw new IOException("request head too large");
+			}
+
+			while (true) {
+				if (!out.hasRemaining()) {
+					if (pendingResponses == 0)
+						break;
+					pendingResponses--;
+					out.rewind();
+				}
+				channel.write(out);
+				if (out.hasRemaining())
+					break;
+			}
+
+			if (endOfStream && pendingResponses == 0 && !out.hasRemaining()) {
+				close();
+				return;
+			}
+
+			key.interestOps((endOfStream ? 0 : SelectionKey.OP_READ)
+					| (out.hasRemaining() || pendingResponses > 0 ? SelectionKey.OP_WRITE : 0));
+		}
+
+		private void parseRequests() {
+			int end = in.position();
+			int consumed = 0;
+			for (int i = Math.max(scanned, 3); i < end; i++) {
+				if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+					pendingResponses++;
+					requestCount.incrementAndGet();
+					consumed = i + 1;
+				}
+			}
+			scanned = end;
+
+			if (consumed > 0) {
+				in.flip();
+				in.position(consumed);
+				in.compact();
+				scanned = in.position();
+			}
+		}
+
+		@Override
+		public void close() {
+			closeQuietly(channel);
+		}
+	}
+}
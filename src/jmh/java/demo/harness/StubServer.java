@@ -0,0 +1,173 @@
+package demo.harness;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single threaded non-blocking loopback server. Every registered key carries a {@link Handler} as attachment,
+ * delayed work is run on the selector thread via {@link #schedule(long, TimeUnit, Runnable)}.
+ */
+abstract class StubServer implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(StubServer.class);
+
+	interface Handler {
+		void ready(SelectionKey key) throws IOException;
+
+		void close();
+	}
+
+	protected final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	private long timerSequence;
+
+	protected StubServer(String name) throws IOException {
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.configureBlocking(false);
+		serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				loop();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public InetSocketAddress getAddress() {
+		return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+	}
+
+	protected abstract Handler accepted(SocketChannel channel) throws IOException;
+
+	/**
+	 * Must only be called from the selector thread.
+	 */
+	protected void schedule(long delay, TimeUnit unit, Runnable task) {
+		timers.add(new Timer(System.nanoTime() + unit.toNanos(delay), timerSequence++, task));
+	}
+
+	private void loop() {
+		try {
+			while (running) {
+				long timeout = 0;
+				Timer next = timers.peek();
+				if (next != null)
+					timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime()));
+
+				selector.select(timeout);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					dispatch(key);
+				}
+
+				long now = System.nanoTime();
+				while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+					timers.poll();
+					next.task.run();
+				}
+			}
+		} catch (IOException e) {
+			if (running && log.isErrorEnabled())
+				log.error("stub server loop failed", e);
+		} finally {
+			for (SelectionKey key : selector.keys())
+				if (key.attachment() instanceof Handler)
+					((Handler) key.attachment()).close();
+			closeQuietly(selector);
+			closeQuietly(serverChannel);
+		}
+	}
+
+	private void dispatch(SelectionKey key) {
+		if (!key.isValid())
+			return;
+
+		if (key.isAcceptable()) {
+			SocketChannel channel = null;
+			try {
+				channel = serverChannel.accept();
+				if (channel == null)
+					return;
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				channel.register(selector, SelectionKey.OP_READ, accepted(channel));
+			} catch (IOException e) {
+				if (log.isDebugEnabled())
+					log.debug("failed to accept connection", e);
+				closeQuietly(channel);
+			}
+			return;
+		}
+
+		Handler handler = (Handler) key.attachment();
+		try {
+			handler.ready(key);
+		} catch (IOException e) {
+			if (log.isTraceEnabled())
+				log.trace("closing connection", e);
+			handler.close();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	static void closeQuietly(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private static class Timer implements Comparable<Timer> {
+		final long deadline;
+		final long sequence;
+		final Runnable task;
+
+		Timer(long deadline, long sequence, Runnable task) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer o) {
+			long diff = deadline - o.deadline;
+			if (diff != 0)
+				return diff < 0 ? -1 : 1;
+			return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+		}
+	}
+}
@@ -0,0 +1,682 @@
+package demo.harness;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.InetAddresses;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Non-blocking loopback SOCKSv4/4a and SOCKS5 server relaying granted tunnels to the requested target.
+ * <p>
+ * Reply delay, reject code, SOCKS5 credentials and per tunnel bandwidth are configurable through {@link Settings}.
+ * Only literal addresses and {@code localhost} are accepted as targets so that the server never touches the network,
+ * any other host name is rejected with code 91 (SOCKS5: general failure).
+ * <p>
+ * The reply delay stands in for the round trip to a remote proxy: replies to requests that arrived together go out
+ * together once the delay has passed, so a pipelined SOCKS5 handshake pays it once and a negotiating one per step.
+ */
+public class StubSocksServer extends StubServer {
+	public static final int GRANTED = 90;
+	public static final int REJECTED = 91;
+	public static final int IDENTD_UNREACHABLE = 92;
+	public static final int IDENTD_MISMATCH = 93;
+
+	private static final byte METHOD_NO_AUTHENTICATION = 0x00;
+	private static final byte METHOD_USERNAME_PASSWORD = 0x02;
+	private static final byte NO_ACCEPTABLE_METHODS = (byte) 0xff;
+
+	private static final int BUFFER_SIZE = 16 * 1024;
+
+	private final Settings settings;
+	private final AtomicLong connectCount = new AtomicLong();
+	private final AtomicLong grantedCount = new AtomicLong();
+	private final AtomicLong rejectedCount = new AtomicLong();
+	private final AtomicLong earlyDataCount = new AtomicLong();
+
+	public StubSocksServer(Settings settings) throws IOException {
+		super("stub-socks");
+		this.settings = settings;
+	}
+
+	public Settings getSettings() {
+		return settings;
+	}
+
+	public long getConnectCount() {
+		return connectCount.get();
+	}
+
+	public long getGrantedCount() {
+		return grantedCount.get();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return granted tunnels on which the client sent data before the connect reply
+	 */
+	public long getEarlyDataCount() {
+		return earlyDataCount.get();
+	}
+
+	@Override
+	protected Handler accepted(SocketChannel channel) {
+		return new Tunnel(channel);
+	}
+
+	private enum State {
+		GREETING, AUTHENTICATING, REQUEST, CONNECTING, REPLYING, RELAY, CLOSED
+	}
+
+	private class Tunnel implements Handler {
+		private final SocketChannel client;
+		private final ByteBuffer toOrigin = ByteBuffer.allocate(BUFFER_SIZE);
+		private final ByteBuffer toClient = ByteBuffer.allocate(BUFFER_SIZE);
+		private final ByteBuffer pendingReplies = ByteBuffer.allocate(64);
+		private final Throttle upstream = new Throttle(settings.bytesPerSecond);
+		private final Throttle downstream = new Throttle(settings.bytesPerSecond);
+
+		private SocketChannel origin;
+		private SelectionKey originKey;
+		private State state = State.GREETING;
+		private int version;
+		private long requestReceived;
+		private boolean repliesScheduled;
+		private int replyCode;
+		private boolean rejected;
+		private boolean clientEndOfStream;
+		private boolean originEndOfStream;
+
+		Tunnel(SocketChannel client) {
+			this.client = client;
+		}
+
+		@Override
+		public void ready(SelectionKey key) throws IOException {
+			if (key.channel() == client) {
+				if (key.isReadable())
+					readFrom(client, toOrigin, upstream, true);
+				if (key.isValid() && key.isWritable())
+					writeTo(client, toClient);
+			} else {
+				if (key.isConnectable()) {
+					try {
+						origin.finishConnect();
+					} catch (IOException e) {
+						closeQuietly(origin);
+						originKey = null;
+						replyCode = REJECTED;
+					}
+					queueConnectReply();
+				}
+				if (key.isValid() && key.isReadable())
+					readFrom(origin, toClient, downstream, false);
+				if (key.isValid() && key.isWritable())
+					writeTo(origin, toOrigin);
+			}
+
+			parseHandshake();
+			if (state == State.RELAY)
+				propagateEndOfStream();
+
+			if (state == State.RELAY && clientEndOfStream && originEndOfStream
+					&& toOrigin.position() == 0 && toClient.position() == 0) {
+				close();
+				return;
+			}
+
+			updateInterest();
+		}
+
+		private void readFrom(SocketChannel channel, ByteBuffer buffer, Throttle throttle, boolean fromClient) throws IOException {
+			int allowance = state == State.RELAY ? throttle.allowance() : Integer.MAX_VALUE;
+			if (allowance == 0)
+				return;
+
+			buffer.limit((int) Math.min(buffer.capacity(), (long) buffer.position() + allowance));
+			int read = channel.read(buffer);
+			buffer.limit(buffer.capacity());
+
+			if (read > 0 && state == State.RELAY)
+				throttle.consume(read);
+			// replies to everything that arrived together go out together, one round trip
+			if (read > 0 && fromClient && !repliesScheduled && isHandshaking())
+				requestReceived = System.nanoTime();
+			if (read == -1) {
+				if (fromClient)
+					clientEndOfStream = true;
+				else
+					originEndOfStream = true;
+				if (state != State.RELAY)
+					close();
+			}
+		}
+
+		/**
+		 * Propagates a half-close once everything read before end of stream has been delivered, also if nothing was
+		 * pending when it arrived.
+		 */
+		private void propagateEndOfStream() throws IOException {
+			if (clientEndOfStream && toOrigin.position() == 0)
+				origin.shutdownOutput();
+			if (originEndOfStream && toClient.position() == 0)
+				client.shutdownOutput();
+		}
+
+		private boolean isHandshaking() {
+			return state == State.GREETING || state == State.AUTHENTICATING || state == State.REQUEST;
+		}
+
+		private void writeTo(SocketChannel channel, ByteBuffer buffer) throws IOException {
+			buffer.flip();
+			channel.write(buffer);
+			buffer.compact();
+
+			if (buffer.position() == 0 && rejected && pendingReplies.position() == 0)
+				close();
+		}
+
+		private void parseHandshake() throws IOException {
+			boolean parsed = true;
+			while (parsed && state != State.CLOSED) {
+				switch (state) {
+					case GREETING:
+						parsed = parseGreeting();
+						break;
+					case AUTHENTICATING:
+						parsed = parseAuthentication();
+						break;
+					case REQUEST:
+						parsed = version == 4 ? parseRequest4() : parseRequest5();
+						break;
+					default:
+						parsed = false;
+				}
+			}
+
+			// waiting for the next request of a negotiating client
+			if (isHandshaking() && pendingReplies.position() > 0)
+				scheduleReplies();
+		}
+
+		private boolean parseGreeting() throws IOException {
+			/*
+			+----+----------+----------+
+			|VER | NMETHODS | METHODS  |
+			+----+----------+----------+
+			 */
+			int end = toOrigin.position();
+			if (end < 1)
+				return false;
+			version = toOrigin.get(0);
+			if (version == 4) {
+				state = State.REQUEST;
+				return true;
+			}
+			if (version != 5)
+				throw new IOException("not a SOCKS4 or SOCKS5 request");
+
+			if (end < 2)
+				return false;
+			int methods = toOrigin.get(1) & 0xff;
+			if (end < 2 + methods)
+				return false;
+
+			byte wanted = settings.userName != null ? METHOD_USERNAME_PASSWORD : METHOD_NO_AUTHENTICATION;
+			byte method = NO_ACCEPTABLE_METHODS;
+			for (int i = 0; i < methods; i++)
+				if (toOrigin.get(2 + i) == wanted)
+					method = wanted;
+			consume(2 + methods);
+
+			pendingReplies.put((byte) 5).put(method);
+			if (method == NO_ACCEPTABLE_METHODS)
+				rejectHandshake();
+			else
+				state = method == METHOD_USERNAME_PASSWORD ? State.AUTHENTICATING : State.REQUEST;
+			return true;
+		}
+
+		private boolean parseAuthentication() throws IOException {
+			/*
+			+----+------+----------+------+----------+
+			|VER | ULEN |  UNAME   | PLEN |  PASSWD  |
+			+----+------+----------+------+----------+
+			 */
+			int end = toOrigin.position();
+			if (end < 2)
+				return false;
+			if (toOrigin.get(0) != 1)
+				throw new IOException("not a username/password authentication");
+			int userLength = toOrigin.get(1) & 0xff;
+			if (end < 3 + userLength)
+				return false;
+			int passwordLength = toOrigin.get(2 + userLength) & 0xff;
+			if (end < 3 + userLength + passwordLength)
+				return false;
+
+			String user = new String(toOrigin.array(), 2, userLength, Charsets.UTF_8);
+			String password = new String(toOrigin.array(), 3 + userLength, passwordLength, Charsets.UTF_8);
+			consume(3 + userLength + passwordLength);
+
+			boolean authenticated = settings.userName.equals(user) && settings.password.equals(password);
+			pendingReplies.put((byte) 1).put((byte) (authenticated ? 0 : 1));
+			if (authenticated)
+				state = State.REQUEST;
+			else
+				rejectHandshake();
+			return true;
+		}
+
+		private boolean parseRequest4() throws IOException {
+			/*
+			+----+----+----+----+----+----+----+----+----+----+....+----+ [....+----+]
+			| VN | CD | DSTPORT |      DSTIP        | USERID       |NULL| [HOST |NULL]
+			+----+----+----+----+----+----+----+----+----+----+....+----+ [....+----+]
+			 */
+			int end = toOrigin.position();
+			if (end < 9)
+				return false;
+			if (toOrigin.get(0) != 4 || toOrigin.get(1) != 1)
+				throw new IOException("not a SOCKS4 connect request");
+
+			int userEnd = indexOfNull(8, end);
+			if (userEnd < 0)
+				return false;
+
+			int port = ((toOrigin.get(2) & 0xff) << 8) | (toOrigin.get(3) & 0xff);
+			int ip = toOrigin.getInt(4);
+			int requestLength = userEnd + 1;
+
+			InetAddress address = null;
+			if ((ip & 0xffffff00) == 0 && ip != 0) {
+				// SOCKS4a: 0.0.0.x followed by the host name
+				int hostEnd = indexOfNull(requestLength, end);
+				if (hostEnd < 0)
+					return false;
+				String host = new String(toOrigin.array(), requestLength, hostEnd - requestLength, Charsets.ISO_8859_1);
+				requestLength = hostEnd + 1;
+				address = resolve(host);
+			} else {
+				address = InetAddresses.fromInteger(ip);
+			}
+
+			// keep anything sent after the request (early data) for the origin
+			consume(requestLength);
+			connect(address, port);
+			return true;
+		}
+
+		private boolean parseRequest5() throws IOException {
+			/*
+			+----+-----+-------+------+----------+----------+
+			|VER | CMD |  RSV  | ATYP | DST.ADDR | DST.PORT |
+			+----+-----+-------+------+----------+----------+
+			 */
+			int end = toOrigin.position();
+			if (end < 5)
+				return false;
+			if (toOrigin.get(0) != 5 || toOrigin.get(1) != 1)
+				throw new IOException("not a SOCKS5 connect request");
+
+			int atyp = toOrigin.get(3);
+			int addressLength = atyp == 1 ? 4 : atyp == 4 ? 16 : 1 + (toOrigin.get(4) & 0xff);
+			int requestLength = 4 + addressLength + 2;
+			if (end < requestLength)
+				return false;
+
+			InetAddress address;
+			if (atyp == 3) {
+				address = resolve(new String(toOrigin.array(), 5, addressLength - 1, Charsets.ISO_8859_1));
+			} else {
+				byte[] raw = new byte[addressLength];
+				System.arraycopy(toOrigin.array(), 4, raw, 0, addressLength);
+				address = InetAddress.getByAddress(raw);
+			}
+			int port = ((toOrigin.get(4 + addressLength) & 0xff) << 8) | (toOrigin.get(5 + addressLength) & 0xff);
+
+			consume(requestLength);
+			connect(address, port);
+			return true;
+		}
+
+		private InetAddress resolve(String host) {
+			if ("localhost".equalsIgnoreCase(host))
+				return InetAddress.getLoopbackAddress();
+			if (InetAddresses.isInetAddress(host))
+				return InetAddresses.forString(host);
+			return null;
+		}
+
+		private void consume(int length) {
+			toOrigin.flip();
+			toOrigin.position(length);
+			toOrigin.compact();
+		}
+
+		private int indexOfNull(int from, int end) {
+			for (int i = from; i < end; i++)
+				if (toOrigin.get(i) == 0)
+					return i;
+			return -1;
+		}
+
+		private void connect(InetAddress address, int port) throws IOException {
+			connectCount.incrementAndGet();
+
+			if (settings.rejectCode != GRANTED || address == null) {
+				replyCode = address == null ? REJECTED : settings.rejectCode;
+				queueConnectReply();
+				return;
+			}
+
+			origin = SocketChannel.open();
+			origin.configureBlocking(false);
+			origin.socket().setTcpNoDelay(true);
+			originKey = origin.register(selector, SelectionKey.OP_CONNECT, this);
+			replyCode = GRANTED;
+			state = State.CONNECTING;
+			if (origin.connect(new InetSocketAddress(address, port)))
+				queueConnectReply();
+		}
+
+		private void rejectHandshake() {
+			rejected = true;
+			rejectedCount.incrementAndGet();
+			state = State.REPLYING;
+			scheduleReplies();
+		}
+
+		private void queueConnectReply() {
+			if (version == 4) {
+				/*
+				+----+----+----+----+----+----+----+----+
+				| VN | CD | DSTPORT |      DSTIP        |
+				+----+----+----+----+----+----+----+----+
+				 */
+				pendingReplies.put((byte) 0).put((byte) replyCode).putShort((short) 0).putInt(0);
+			} else {
+				/*
+				+----+-----+-------+------+----------+----------+
+				|VER | REP |  RSV  | ATYP | BND.ADDR | BND.PORT |
+				+----+-----+-------+------+----------+----------+
+				 */
+				pendingReplies.put((byte) 5).put((byte) socks5ReplyCode(replyCode)).put((byte) 0).put((byte) 1).putInt(0).putShort((short) 0);
+			}
+
+			if (replyCode == GRANTED) {
+				grantedCount.incrementAndGet();
+			} else {
+				rejected = true;
+				rejectedCount.incrementAndGet();
+			}
+			state = State.REPLYING;
+			scheduleReplies();
+		}
+
+		private void scheduleReplies() {
+			if (repliesScheduled)
+				return;
+
+			long remaining = settings.replyDelayNanos - (System.nanoTime() - requestReceived);
+			if (remaining <= 0) {
+				sendReplies();
+				return;
+			}
+
+			repliesScheduled = true;
+			schedule(remaining, TimeUnit.NANOSECONDS, new Runnable() {
+				@Override
+				public void run() {
+					repliesScheduled = false;
+					sendReplies();
+				}
+			});
+		}
+
+		private void sendReplies() {
+			if (state == State.CLOSED)
+				return;
+
+			// nothing is read from the origin before the connect reply, so the replies can go out in order
+			pendingReplies.flip();
+			toClient.put(pendingReplies);
+			pendingReplies.clear();
+
+			if (state == State.REPLYING && !rejected) {
+				if (toOrigin.position() > 0)
+					earlyDataCount.incrementAndGet();
+				state = State.RELAY;
+			}
+
+			try {
+				updateInterest();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void updateInterest() throws IOException {
+			if (state == State.CLOSED)
+				return;
+
+			SelectionKey clientKey = client.keyFor(selector);
+			if (clientKey == null || !clientKey.isValid())
+				throw new ClosedChannelException();
+
+			int clientOps = 0;
+			if (!clientEndOfStream && toOrigin.hasRemaining() && !upstream.isThrottled())
+				clientOps |= SelectionKey.OP_READ;
+			if (toClient.position() > 0)
+				clientOps |= SelectionKey.OP_WRITE;
+			clientKey.interestOps(clientOps);
+
+			if (originKey != null && originKey.isValid()) {
+				int originOps = 0;
+				if (state == State.CONNECTING)
+					originOps = SelectionKey.OP_CONNECT;
+				else if (state == State.RELAY) {
+					if (!originEndOfStream && toClient.hasRemaining() && !downstream.isThrottled())
+						originOps |= SelectionKey.OP_READ;
+					if (toOrigin.position() > 0)
+						originOps |= SelectionKey.OP_WRITE;
+				}
+				originKey.interestOps(originOps);
+			}
+
+			scheduleUnthrottle(upstream);
+			scheduleUnthrottle(downstream);
+		}
+
+		private void scheduleUnthrottle(final Throttle throttle) {
+			if (!throttle.isThrottled() || throttle.wakeupScheduled)
+				return;
+
+			throttle.wakeupScheduled = true;
+			schedule(throttle.nanosUntilAvailable(), TimeUnit.NANOSECONDS, new Runnable() {
+				@Override
+				public void run() {
+					throttle.wakeupScheduled = false;
+					try {
+						updateInterest();
+					} catch (IOException e) {
+						close();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void close() {
+			state = State.CLOSED;
+			closeQuietly(client);
+			closeQuietly(origin);
+		}
+	}
+
+	/**
+	 * Maps the SOCKS4 reply codes the server is configured with to SOCKS5 ones.
+	 */
+	private static int socks5ReplyCode(int socks4ReplyCode) {
+		switch (socks4ReplyCode) {
+			case GRANTED:
+				return 0x00;
+			case IDENTD_UNREACHABLE:
+				return 0x04;
+			case IDENTD_MISMATCH:
+				return 0x02;
+			default:
+				return 0x01;
+		}
+	}
+
+	/**
+	 * Token bucket allowing a burst of up to one second worth of bytes.
+	 */
+	private static class Throttle {
+		private final long bytesPerSecond;
+		private double tokens;
+		private long lastRefill = System.nanoTime();
+		boolean wakeupScheduled;
+
+		Throttle(long bytesPerSecond) {
+			this.bytesPerSecond = bytesPerSecond;
+			this.tokens = bytesPerSecond;
+		}
+
+		int allowance() {
+			if (bytesPerSecond <= 0)
+				return Integer.MAX_VALUE;
+			refill();
+			return (int) Math.min(Integer.MAX_VALUE, (long) tokens);
+		}
+
+		void consume(int bytes) {
+			if (bytesPerSecond > 0)
+				tokens -= bytes;
+		}
+
+		boolean isThrottled() {
+			return allowance() == 0;
+		}
+
+		long nanosUntilAvailable() {
+			return Math.max(TimeUnit.MILLISECONDS.toNanos(1), (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond));
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+		}
+	}
+
+	public static class Settings {
+		private final long replyDelayNanos;
+		private final int rejectCode;
+		private final long bytesPerSecond;
+		private final String userName;
+		private final String password;
+
+		private Settings(long replyDelayNanos, int rejectCode, long bytesPerSecond, String userName, String password) {
+			this.replyDelayNanos = replyDelayNanos;
+			this.rejectCode = rejectCode;
+			this.bytesPerSecond = bytesPerSecond;
+			this.userName = userName;
+			this.password = password;
+		}
+
+		public static Builder custom() {
+			return new Builder();
+		}
+
+		public long getReplyDelay(TimeUnit unit) {
+			return unit.convert(replyDelayNanos, TimeUnit.NANOSECONDS);
+		}
+
+		public int getRejectCode() {
+			return rejectCode;
+		}
+
+		public long getBytesPerSecond() {
+			return bytesPerSecond;
+		}
+
+		public String getUserName() {
+			return userName;
+		}
+
+		public String getPassword() {
+			return password;
+		}
+
+		@Override
+		public String toString() {
+			return "[replyDelay=" + TimeUnit.NANOSECONDS.toMillis(replyDelayNanos) + "ms, replyCode=" + rejectCode
+					+ ", bytesPerSecond=" + (bytesPerSecond > 0 ? bytesPerSecond : "unlimited")
+					+ ", userName=" + userName + "]";
+		}
+
+		public static class Builder {
+			private long replyDelayNanos;
+			private int rejectCode = GRANTED;
+			private long bytesPerSecond;
+			private String userName;
+			private String password;
+
+			/**
+			 * Delay before replying to the requests of one round trip.
+			 */
+			public Builder setReplyDelay(long delay, TimeUnit unit) {
+				checkArgument(delay >= 0, "negative reply delay");
+				this.replyDelayNanos = unit.toNanos(delay);
+				return this;
+			}
+
+			/**
+			 * Reply code sent for every request, {@link #GRANTED} (default) or one of 91, 92, 93. SOCKS5 clients get
+			 * general failure, host unreachable and connection not allowed respectively.
+			 */
+			public Builder setRejectCode(int rejectCode) {
+				checkArgument(rejectCode >= GRANTED && rejectCode <= IDENTD_MISMATCH, "invalid reply code %s", rejectCode);
+				this.rejectCode = rejectCode;
+				return this;
+			}
+
+			/**
+			 * Relay bandwidth per tunnel and direction, {@code 0} for unlimited.
+			 */
+			public Builder setBytesPerSecond(long bytesPerSecond) {
+				checkArgument(bytesPerSecond >= 0, "negative bandwidth");
+				this.bytesPerSecond = bytesPerSecond;
+				return this;
+			}
+
+			/**
+			 * Credentials SOCKS5 clients have to authenticate with, {@code null} (default) for no authentication.
+			 */
+			public Builder setCredentials(String userName, String password) {
+				checkArgument((userName == null) == (password == null), "user name and password go together");
+				this.userName = userName;
+				this.password = password;
+				return this;
+			}
+
+			public Settings build() {
+				return new Settings(replyDelayNanos, rejectCode, bytesPerSecond, userName, password);
+			}
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package demo.socks.bench;
+
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.SessionBufferStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reactor-less {@link IOSession} whose channel reads from a preloaded inbound buffer and discards everything written.
+ * <p>
+ * For tests the channel can also take inbound bytes as they arrive ({@link #feed(byte...)}), report the end of the
+ * stream, take a limited number of bytes until more room is given ({@link #setWriteBudget(int)}) and keep what was
+ * written ({@link #recordWrites()}).
+ */
+public class InMemoryIOSession implements IOSession {
+	private static final SocketAddress LOCAL_ADDRESS = new InetSocketAddress("127.0.0.1", 50000);
+	private static final SocketAddress REMOTE_ADDRESS = new InetSocketAddress("127.0.0.1", 1080);
+
+	private final Map<String, Object> attributes = new HashMap<>();
+	private final InMemoryChannel channel = new InMemoryChannel();
+
+	private int eventMask;
+	private int socketTimeout;
+	private int status = ACTIVE;
+
+	public InMemoryIOSession(Object attachment) {
+		attributes.put(ATTACHMENT_KEY, attachment);
+	}
+
+	/**
+	 * Rewinds the session for another round: the channel will return {@code inbound} on subsequent reads
+	 * and all attributes but the attachment are dropped.
+	 */
+	public void reset(ByteBuffer inbound) {
+		Object attachment = attributes.get(ATTACHMENT_KEY);
+		attributes.clear();
+		attributes.put(ATTACHMENT_KEY, attachment);
+		channel.reset(inbound);
+		status = ACTIVE;
+	}
+
+	public long getBytesWritten() {
+		return channel.written;
+	}
+
+	/**
+	 * Appends bytes for the following reads to return, e.g. the next part of a reply split over several reads.
+	 */
+	public void feed(byte... bytes) {
+		ByteBuffer next = ByteBuffer.allocate(channel.inbound.remaining() + bytes.length);
+		next.put(channel.inbound).put(bytes).flip();
+		channel.inbound = next;
+	}
+
+	/**
+	 * Reads return the end of the stream once the inbound bytes are consumed.
+	 */
+	public void endOfStream() {
+		channel.endOfStream = true;
+	}
+
+	/**
+	 * Lets the channel take the given number of bytes, further writes return 0 as on a full socket buffer.
+	 *
+	 * @param bytes -1 for no limit, the default
+	 */
+	public void setWriteBudget(int bytes) {
+		channel.writeBudget = bytes;
+	}
+
+	/**
+	 * Keeps the bytes written from now on for {@link #getWritten()}.
+	 */
+	public void recordWrites() {
+		channel.recorded = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * @return the bytes written since {@link #recordWrites()}, which takes them
+	 */
+	public byte[] getWritten() {
+		byte[] written = channel.recorded.toByteArray();
+		channel.recorded.reset();
+		return written;
+	}
+
+	@Override
+	public ByteChannel channel() {
+		return channel;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return REMOTE_ADDRESS;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() {
+		return LOCAL_ADDRESS;
+	}
+
+	@Override
+	public int getEventMask() {
+		return eventMask;
+	}
+
+	@Override
+	public void setEventMask(int ops) {
+		eventMask = ops;
+	}
+
+	@Override
+	public void setEvent(int op) {
+		eventMask |= op;
+	}
+
+	@Override
+	public void clearEvent(int op) {
+		eventMask &= ~op;
+	}
+
+	@Override
+	public void close() {
+		status = CLOSED;
+	}
+
+	@Override
+	public void shutdown() {
+		status = CLOSED;
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return status == CLOSED;
+	}
+
+	@Override
+	public int getSocketTimeout() {
+		return socketTimeout;
+	}
+
+	@Override
+	public void setSocketTimeout(int timeout) {
+		socketTimeout = timeout;
+	}
+
+	@Override
+	public void setBufferStatus(SessionBufferStatus status) {
+	}
+
+	@Override
+	public boolean hasBufferedInput() {
+		return false;
+	}
+
+	@Override
+	public boolean hasBufferedOutput() {
+		return false;
+	}
+
+	@Override
+	public void setAttribute(String name, Object obj) {
+		attributes.put(name, obj);
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@Override
+	public Object removeAttribute(String name) {
+		return attributes.remove(name);
+	}
+
+	private static class InMemoryChannel implements ByteChannel {
+		private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+		private ByteBuffer inbound = EMPTY;
+		private boolean endOfStream;
+		private long written;
+		private int writeBudget = -1;
+		private ByteArrayOutputStream recorded;
+
+		void reset(ByteBuffer inbound) {
+			this.inbound = inbound != null ? inbound : EMPTY;
+			this.inbound.rewind();
+			endOfStream = false;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) {
+			if (!inbound.hasRemaining())
+				return endOfStream ? -1 : 0;
+
+			int n = Math.min(dst.remaining(), inbound.remaining());
+			int limit = inbound.limit();
+			inbound.limit(inbound.position() + n);
+			dst.put(inbound);
+			inbound.limit(limit);
+			return n;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = writeBudget >= 0 ? Math.min(src.remaining(), writeBudget) : src.remaining();
+			if (recorded != null)
+				recorded.write(src.array(), src.arrayOffset() + src.position(), n);
+			src.position(src.position() + n);
+			written += n;
+			if (writeBudget >= 0)
+				writeBudget -= n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+	}
+}
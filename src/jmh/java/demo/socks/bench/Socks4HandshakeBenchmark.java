@@ -0,0 +1,63 @@
+package demo.socks.bench;
+
+import demo.socks.SocksConfig;
+import demo.socks.v4.Socks4IOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-connection cost of the SOCKS4 handshake driven by {@link Socks4IOSession#initialize()}: wrapping the session,
+ * {@code start()} taking the CONNECT packet from the templates and flushing it until the session awaits the reply
+ * ({@code sendSocksConnect}), and on top of that reading and verifying the reply in {@code receive(..)}
+ * ({@code sendAndReceiveSocksConnect}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Socks4HandshakeBenchmark {
+	static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks");
+
+	// literal address -> SOCKS4, host name -> SOCKS4a
+	@Param({"10.0.0.1", "localhost"})
+	public String target;
+
+	private InMemoryIOSession session;
+	private ByteBuffer granted;
+
+	@Setup
+	public void setUp() {
+		HttpRoute route = new HttpRoute(new HttpHost(target, 80, "http"), null, PROXY, false);
+		session = new InMemoryIOSession(route);
+		granted = ByteBuffer.wrap(new byte[]{0, 90, 0, 80, 10, 0, 0, 1});
+	}
+
+	@Benchmark
+	public boolean sendSocksConnect() throws IOException {
+		session.reset(null);
+		return new Socks4IOSession(session, SocksConfig.DEFAULT).initialize();
+	}
+
+	@Benchmark
+	public boolean sendAndReceiveSocksConnect() throws IOException {
+		session.reset(granted);
+		return new Socks4IOSession(session, SocksConfig.DEFAULT).initialize();
+	}
+}
@@ -0,0 +1,66 @@
+package demo.socks.bench;
+
+import demo.socks.SocksConfig;
+import demo.socks.v5.Socks5ConnectTemplates;
+import demo.socks.v5.Socks5IOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.conn.routing.HttpRoute;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-connection cost of the SOCKS5 handshake with username/password authentication against an in-memory channel
+ * that already holds the method selection, authentication and connect replies, negotiated step by step or pipelined.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Socks5HandshakeBenchmark {
+	static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks5");
+
+	@Param({"false", "true"})
+	public boolean pipelined;
+
+	// literal address -> ATYP IPv4, host name -> ATYP domain name
+	@Param({"10.0.0.1", "localhost"})
+	public String target;
+
+	private InMemoryIOSession session;
+	private Socks5ConnectTemplates templates;
+	private ByteBuffer replies;
+
+	@Setup
+	public void setUp() {
+		HttpRoute route = new HttpRoute(new HttpHost(target, 80, "http"), null, PROXY, false);
+		session = new InMemoryIOSession(route);
+		templates = new Socks5ConnectTemplates(new UsernamePasswordCredentials("user", "password"));
+		replies = ByteBuffer.wrap(new byte[]{
+				5, 2, // username/password selected
+				1, 0, // authenticated
+				5, 0, 0, 1, 10, 0, 0, 1, 0, 80 // connected, bound to 10.0.0.1:80
+		});
+	}
+
+	@Benchmark
+	public boolean sendAndReceiveSocksConnect() throws IOException {
+		session.reset(replies);
+		return new Socks5IOSession(session, templates, pipelined, SocksConfig.DEFAULT).initialize();
+	}
+}
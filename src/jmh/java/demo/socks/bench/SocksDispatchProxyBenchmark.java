@@ -0,0 +1,107 @@
+package demo.socks.bench;
+
+import demo.socks.SocksConfig;
+import demo.socks.SocksIOEventDispatchProxy;
+import demo.socks.v4.Socks4IOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-event cost the {@link SocksIOEventDispatchProxy} adds in front of the HTTP dispatch for a session without
+ * SOCKS ({@code plain}), one waiting for the SOCKS reply ({@code pending}) and one with an established tunnel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SocksDispatchProxyBenchmark {
+	@Param({"plain", "pending", "established"})
+	public String sessionState;
+
+	private CountingIOEventDispatch delegate;
+	private SocksIOEventDispatchProxy proxy;
+	private InMemoryIOSession session;
+
+	@Setup
+	public void setUp() throws IOException {
+		HttpRoute route = new HttpRoute(new HttpHost("10.0.0.1", 80, "http"), null, Socks4HandshakeBenchmark.PROXY, false);
+		delegate = new CountingIOEventDispatch();
+		proxy = new SocksIOEventDispatchProxy(delegate);
+		session = new InMemoryIOSession(route);
+
+		switch (sessionState) {
+			case "plain":
+				break;
+			case "pending":
+				new Socks4IOSession(session, SocksConfig.DEFAULT).initialize();
+				break;
+			case "established":
+				session.reset(ByteBuffer.wrap(new byte[]{0, 90, 0, 80, 10, 0, 0, 1}));
+				if (!new Socks4IOSession(session, SocksConfig.DEFAULT).initialize())
+					throw new IllegalStateException("handshake did not complete");
+				break;
+			default:
+				throw new IllegalArgumentException(sessionState);
+		}
+	}
+
+	@Benchmark
+	public int inputReady() {
+		proxy.inputReady(session);
+		return delegate.events;
+	}
+
+	@Benchmark
+	public int outputReady() {
+		proxy.outputReady(session);
+		return delegate.events;
+	}
+
+	private static class CountingIOEventDispatch implements IOEventDispatch {
+		int events;
+
+		@Override
+		public void connected(IOSession session) {
+			events++;
+		}
+
+		@Override
+		public void inputReady(IOSession session) {
+			events++;
+		}
+
+		@Override
+		public void outputReady(IOSession session) {
+			events++;
+		}
+
+		@Override
+		public void timeout(IOSession session) {
+			events++;
+		}
+
+		@Override
+		public void disconnected(IOSession session) {
+			events++;
+		}
+	}
+}
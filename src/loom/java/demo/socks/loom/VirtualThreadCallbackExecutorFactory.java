@@ -0,0 +1,23 @@
+package demo.socks.loom;
+
+import demo.socks.CallbackExecutorFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs every callback on a virtual thread of its own. Blocking callbacks park their virtual thread and free the carrier,
+ * so thousands of slow callbacks cost a few carrier threads instead of a platform thread each. Registered with the
+ * {@link java.util.ServiceLoader}, putting the {@code loom} jar on the class path of a Java 21 JVM is enough.
+ */
+public class VirtualThreadCallbackExecutorFactory implements CallbackExecutorFactory {
+	@Override
+	public Executor newExecutor() {
+		return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("socks-callback-", 0).factory());
+	}
+
+	@Override
+	public String toString() {
+		return "virtual threads";
+	}
+}
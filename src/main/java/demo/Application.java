@@ -1,48 +1,61 @@
 package demo;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.net.UrlEscapers;
-import demo.socks.SocksConnectingIOReactor;
+import demo.socks.BulkExecutor;
+import demo.socks.LatencyAwareProxySelector;
+import demo.socks.PooledByteConsumer;
+import demo.socks.ResumingSSLIOSessionStrategy;
+import demo.socks.ShardedConnectingIOReactor;
+import demo.socks.SocksConfig;
+import demo.socks.SocksEventListener;
+import demo.socks.SocksEventListeners;
+import demo.socks.SocksRoutePlanner;
+import demo.socks.metrics.SocksMetrics;
 import demo.socks.v4.SocksScheme4IOSessionStrategy;
+import demo.socks.v5.SocksScheme5IOSessionStrategy;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpException;
 import org.apache.http.HttpHost;
-import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.IOControl;
-import org.apache.http.nio.client.methods.AsyncCharConsumer;
 import org.apache.http.nio.conn.NHttpClientConnectionManager;
 import org.apache.http.nio.conn.NoopIOSessionStrategy;
 import org.apache.http.nio.conn.SchemeIOSessionStrategy;
 import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
-import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
-import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
 import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
-import java.nio.CharBuffer;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 public class Application {
 	private static final Logger log = LoggerFactory.getLogger(Application.class);
 	private static final int HTTP_REQUEST_COUNT = 20;
+	private static final int MAX_IN_FLIGHT = 8;
+	private static final int MAX_IN_FLIGHT_PER_PROXY = 2;
+	private static final int MAX_BODY_LENGTH = 64 * 1024;
 
-	public static void main(String[] args) throws IOException, ExecutionException, InterruptedException {
+	public static void main(String[] args) throws IOException {
 		HttpHost[] proxies = new HttpHost[]{
 				new HttpHost("127.0.0.1", 8888, "socks"), // local socks4 proxy
 				new HttpHost("127.0.0.1", 8889, "socks"), // local socks4 proxy
@@ -50,13 +63,28 @@ public class Application {
 				new HttpHost("127.0.0.1", 9999, "socks") // invalid local socks4 proxy
 		};
 
-        SocksConnectingIOReactor ioReactor = new SocksConnectingIOReactor(IOReactorConfig.custom().build());
-
-		SSLIOSessionStrategy sslioSessionStrategy = SSLIOSessionStrategy.getDefaultStrategy();
-        SchemeIOSessionStrategy socksSchemeIOSessionStrategy = new SocksScheme4IOSessionStrategy(sslioSessionStrategy);
+		// learns from connects and handshakes which proxies are fast and which are down, the connect timeout as penalty
+		final LatencyAwareProxySelector proxySelector = new LatencyAwareProxySelector(Arrays.asList(proxies), 2, 1000, 1000,
+				TimeUnit.MILLISECONDS);
+		// per proxy connect, handshake and TLS times, see the demo.socks domain in JConsole
+		SocksMetrics metrics = new SocksMetrics(ManagementFactory.getPlatformMBeanServer());
+		SocksEventListener eventListener = SocksEventListeners.compose(proxySelector, metrics);
+		SocksConfig socksConfig = SocksConfig.custom()
+				.setEventListener(eventListener)
+				// a proxy accepting connections without replying fails long before the 10 s socket timeout
+				.setHandshakeTimeout(2000)
+				.build();
+
+        // one reactor per core, each proxy pinned to one of them so a dead proxy only holds up its own shard
+        ShardedConnectingIOReactor ioReactor = new ShardedConnectingIOReactor(IOReactorConfig.custom().build(), eventListener);
+
+		// repeated tunnels to an origin resume its TLS session
+		SSLIOSessionStrategy sslioSessionStrategy = ResumingSSLIOSessionStrategy.getDefaultStrategy();
+        SchemeIOSessionStrategy socksSchemeIOSessionStrategy = new SocksScheme4IOSessionStrategy(sslioSessionStrategy, socksConfig);
 
         Registry<SchemeIOSessionStrategy> sessionStrategyRegistry = RegistryBuilder.<SchemeIOSessionStrategy>create()
                 .register("socks", socksSchemeIOSessionStrategy)
+                .register("socks5", new SocksScheme5IOSessionStrategy(sslioSessionStrategy, null, false, socksConfig))
                 .register("http", NoopIOSessionStrategy.INSTANCE)
                 .register("https", sslioSessionStrategy)
                 .build();
@@ -65,121 +93,113 @@ public class Application {
 
         CloseableHttpAsyncClient client = HttpAsyncClientBuilder.create()
                 .setConnectionManager(connectionManager)
+                // SOCKS tunnels carry https without CONNECT
+                .setRoutePlanner(new SocksRoutePlanner())
                 .build();
         client.start();
 
-        URI requestUri = URI.create("http://httpbin.org/get");
+        final URI requestUri = URI.create("http://httpbin.org/get");
 
         try {
-			List<Future<String>> successFutures = new ArrayList<>();
-			List<Future<String>> failFutures = new ArrayList<>();
-			//Random random = new Random(System.currentTimeMillis());
-
-			for (int i = 0; i < HTTP_REQUEST_COUNT; i++) {
-				HttpHost proxy = proxies[i % proxies.length];
-
-				HttpRequest request = new HttpGet(requestUri + "?proxy=" + UrlEscapers.urlFragmentEscaper().escape(proxy.toString()) + "&requestNo=" + (i + 1));
-
-				HttpAsyncRequestProducer requestProducer = new BasicAsyncRequestProducer(
-						new HttpHost(requestUri.getHost(), requestUri.getPort(), requestUri.getScheme()),
-						request);
-
-				HttpClientContext httpContext = new HttpClientContext();
-				httpContext.setRequestConfig(RequestConfig.custom()
-						.setProxy(proxy)
-						.setSocketTimeout(10000)
-						.setConnectTimeout(1000)
-						.setConnectionRequestTimeout(1000)
-						.build());
-
-				FutureCallback<String> callback = new LoggingFutureCallback();
-				HttpAsyncResponseConsumer<String> responseConsumer = new LoggingAsyncCharConsumer();
-
-				Future<String> future = client.execute(requestProducer, responseConsumer, httpContext, callback);
-
-				if (proxy.getPort() >= 9000)
-					failFutures.add(future);
-				else
-					successFutures.add(future);
-			}
-
-			List<String> results = new ArrayList<>();
-
-			for (Future<String> future : successFutures)
-				try {
-					String response = future.get();
-					results.add("Successful response: " + response.replace('\n', ' '));
-				} catch (Exception e) {
-					log.error("http request failed", e);
-					results.add("Failed response: " + e.getMessage());
+			RequestConfig requestConfig = RequestConfig.custom()
+					.setSocketTimeout(10000)
+					.setConnectTimeout(1000)
+					.setConnectionRequestTimeout(1000)
+					.build();
+
+			// created once there is room for them, so the selector picks each proxy knowing about the finished requests
+			Iterator<BulkExecutor.Job> jobs = new AbstractIterator<BulkExecutor.Job>() {
+				private int requestNo;
+
+				@Override
+				protected BulkExecutor.Job computeNext() {
+					if (requestNo == HTTP_REQUEST_COUNT)
+						return endOfData();
+					requestNo++;
+
+					HttpHost proxy = proxySelector.select();
+					URI uri = URI.create(requestUri + "?proxy=" + UrlEscapers.urlFragmentEscaper().escape(proxy.toString()) + "&requestNo=" + requestNo);
+					return new BulkExecutor.Job(uri, proxy);
 				}
-
-			for (Future<String> future : failFutures) {
-				try {
-					String response = future.get();
-					log.error("shouldn't be able to get fail future");
-					results.add("Failed error: " + response);
-				} catch (Exception e) {
-					results.add("Successful error: " + e.getMessage());
+			};
+
+			BulkExecutor<String> bulkExecutor = new BulkExecutor<>(client, requestConfig, MAX_IN_FLIGHT, MAX_IN_FLIGHT_PER_PROXY,
+					new Function<BulkExecutor.Job, HttpAsyncResponseConsumer<String>>() {
+						@Override
+						public HttpAsyncResponseConsumer<String> apply(BulkExecutor.Job job) {
+							return new LoggingByteConsumer();
+						}
+					});
+
+			// results in the order they complete, a slow proxy holds back none of the others
+			bulkExecutor.execute(jobs, new BulkExecutor.ResultHandler<String>() {
+				@Override
+				public void handle(BulkExecutor.Result<String> result) {
+					boolean failureExpected = result.getJob().getProxy().getPort() >= 9000;
+					String line;
+					if (result.isSuccess()) {
+						line = (failureExpected ? "Failed error: " : "Successful response: ") + result.getResult().replace('\n', ' ');
+					} else {
+						if (!failureExpected && log.isErrorEnabled())
+							log.error("http request {} failed", result.getJob(), result.getFailure());
+						line = (failureExpected ? "Successful error: " : "Failed response: ") + result.getFailure().getMessage();
+					}
+
+					if (line.startsWith("Failed"))
+						System.err.println(line);
+					else
+						System.out.println(line);
 				}
-			}
-
-			for (String result : results) {
-				if (result.startsWith("Failed"))
-					System.err.println(result);
-				else
-					System.out.println(result);
-			}
+			});
+
+			if (log.isInfoEnabled())
+				log.info("proxies: {}", proxySelector);
+			if (log.isInfoEnabled())
+				log.info("proxy metrics: {}", metrics);
 		} finally {
 			client.close();
+			metrics.close();
 		}
 	}
 
-	private static class LoggingFutureCallback implements FutureCallback<String> {
-		private static final Logger log = LoggerFactory.getLogger(LoggingFutureCallback.class);
+	/**
+	 * Keeps the body as bytes, at most {@link #MAX_BODY_LENGTH} of them, and decodes it once it is complete.
+	 */
+	private static class LoggingByteConsumer extends PooledByteConsumer<String> {
+		private static final Logger log = LoggerFactory.getLogger(LoggingByteConsumer.class);
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+		private Charset charset = Charsets.UTF_8;
 
-		@Override
-		public void completed(String result) {
-			if (log.isInfoEnabled())
-				log.info("future completed, result: {}...", result.replace('\n', ' ').substring(0, Math.min(8, result.length())));
-		}
-
-		@Override
-		public void failed(Exception ex) {
-			if (log.isErrorEnabled())
-				log.error("future error", ex);
+		LoggingByteConsumer() {
+			super(MAX_BODY_LENGTH);
 		}
 
 		@Override
-		public void cancelled() {
-			if (log.isInfoEnabled())
-				log.info("cancelled");
-		}
-	}
-
-	private static class LoggingAsyncCharConsumer extends AsyncCharConsumer<String> {
-		private static final Logger log = LoggerFactory.getLogger(LoggingAsyncCharConsumer.class);
-		private StringBuilder builder = new StringBuilder(1024);
-
-		@Override
-		protected void onCharReceived(CharBuffer buf, IOControl ioctrl) throws IOException {
+		protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
 			if (log.isTraceEnabled())
-				log.trace("char received");
-			builder.append(buf);
+				log.trace("bytes received");
+			body.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
 		}
 
 		@Override
 		protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
 			if (log.isInfoEnabled())
 				log.info("response received: status {}", response.getStatusLine().getStatusCode());
-			builder.delete(0, builder.length());
+			body.reset();
+		}
+
+		@Override
+		protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+			super.onEntityEnclosed(entity, contentType);
+			if (contentType.getCharset() != null)
+				charset = contentType.getCharset();
 		}
 
 		@Override
 		protected String buildResult(HttpContext context) throws Exception {
 			if (log.isInfoEnabled())
 				log.info("build result");
-			return builder.toString();
+			return new String(body.toByteArray(), charset);
 		}
 	}
 }
@@ -0,0 +1,331 @@
+package demo.socks;
+
+import com.google.common.base.Function;
+import com.google.common.collect.AbstractIterator;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.BasicAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs a stream of requests, each through its own proxy, with a bounded number of them in flight overall and per
+ * proxy, and hands out the results in the order they complete. Jobs are pulled from their iterator only when there is
+ * room for them, and a result counts as in flight until it is taken, so a run of any length holds at most the limit
+ * of responses and a few jobs in memory. A slow proxy only holds back the jobs waiting for it.
+ * <p>
+ * {@link #execute(Iterator)} returns the results as an iterator driven by the calling thread, which also submits the
+ * jobs; {@link #execute(Iterator, ResultHandler)} does the same with a callback. The limits apply to each run.
+ *
+ * @param <T> the result of the response consumers
+ */
+public class BulkExecutor<T> {
+	private final HttpAsyncClient client;
+	private final RequestConfig requestConfig;
+	private final int maxInFlight;
+	private final int maxInFlightPerProxy;
+	private final Function<Job, ? extends HttpAsyncResponseConsumer<T>> consumerFactory;
+
+	/**
+	 * @param requestConfig       the config of all requests, with the proxy of their job
+	 * @param maxInFlight         requests running or with a result not taken yet
+	 * @param maxInFlightPerProxy the same per proxy, or for requests without a proxy
+	 * @param consumerFactory     creates the response consumer of each job
+	 */
+	public BulkExecutor(HttpAsyncClient client, RequestConfig requestConfig, int maxInFlight, int maxInFlightPerProxy,
+						Function<Job, ? extends HttpAsyncResponseConsumer<T>> consumerFactory) {
+		checkArgument(maxInFlight > 0, "max in flight must be positive");
+		checkArgument(maxInFlightPerProxy > 0, "max in flight per proxy must be positive");
+		this.client = checkNotNull(client, "client");
+		this.requestConfig = requestConfig != null ? requestConfig : RequestConfig.DEFAULT;
+		this.maxInFlight = maxInFlight;
+		this.maxInFlightPerProxy = maxInFlightPerProxy;
+		this.consumerFactory = checkNotNull(consumerFactory, "consumer factory");
+	}
+
+	/**
+	 * Starts the jobs as the results are iterated. Closing the iterator before the end cancels the requests in flight
+	 * and drops the remaining jobs.
+	 */
+	public Results execute(Iterator<Job> jobs) {
+		return new Results(jobs);
+	}
+
+	/**
+	 * Runs all jobs, handing each result to the handler on the calling thread as soon as it completed.
+	 */
+	public void execute(Iterator<Job> jobs, ResultHandler<T> handler) {
+		try (Results results = execute(jobs)) {
+			while (results.hasNext())
+				handler.handle(results.next());
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "BulkExecutor[maxInFlight=" + maxInFlight + ", maxInFlightPerProxy=" + maxInFlightPerProxy + "]";
+	}
+
+	public interface ResultHandler<T> {
+		void handle(Result<T> result);
+	}
+
+	/**
+	 * A request and the proxy to send it through.
+	 */
+	public static class Job {
+		private final HttpUriRequest request;
+		private final HttpHost proxy;
+
+		/**
+		 * @param proxy null for a direct request
+		 */
+		public Job(HttpUriRequest request, HttpHost proxy) {
+			this.request = checkNotNull(request, "request");
+			this.proxy = proxy;
+		}
+
+		/**
+		 * A {@code GET} of the URI.
+		 */
+		public Job(URI uri, HttpHost proxy) {
+			this(new HttpGet(uri), proxy);
+		}
+
+		public HttpUriRequest getRequest() {
+			return request;
+		}
+
+		public HttpHost getProxy() {
+			return proxy;
+		}
+
+		@Override
+		public String toString() {
+			return request.getRequestLine() + " via " + proxy;
+		}
+	}
+
+	/**
+	 * The outcome of a job, either its result or why it failed.
+	 */
+	public static class Result<T> {
+		private final Job job;
+		private final T result;
+		private final Exception failure;
+
+		private Result(Job job, T result, Exception failure) {
+			this.job = job;
+			this.result = result;
+			this.failure = failure;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public boolean isSuccess() {
+			return failure == null;
+		}
+
+		/**
+		 * @return null if the job failed
+		 */
+		public T getResult() {
+			return result;
+		}
+
+		/**
+		 * @return null if the job succeeded, a {@link CancellationException} if it was cancelled
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			return job + (failure == null ? " completed" : " failed: " + failure);
+		}
+	}
+
+	/**
+	 * The results of one run. Only the thread iterating them submits jobs and keeps the counts, the requests report
+	 * their results through a queue.
+	 */
+	public class Results extends AbstractIterator<Result<T>> implements Closeable {
+		private final Iterator<Job> jobs;
+		private final BlockingQueue<Result<T>> completed = new LinkedBlockingQueue<>();
+		// jobs pulled while their proxy was at its limit, at most one per free slot
+		private final ArrayDeque<Job> waiting = new ArrayDeque<>();
+		private final Map<HttpHost, Integer> inFlightByProxy = new HashMap<>();
+		private final Set<Future<T>> running = Collections.newSetFromMap(new IdentityHashMap<Future<T>, Boolean>());
+		private int inFlight;
+		private boolean closed;
+
+		private Results(Iterator<Job> jobs) {
+			this.jobs = checkNotNull(jobs, "jobs");
+		}
+
+		@Override
+		protected Result<T> computeNext() {
+			if (!closed)
+				submit();
+			if (inFlight == 0)
+				return endOfData();
+
+			Result<T> result;
+			try {
+				result = completed.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new CancellationException("interrupted waiting for results");
+			}
+			release(result.job.proxy);
+			// keep the pipeline full while the caller handles the result
+			if (!closed)
+				submit();
+			return result;
+		}
+
+		/**
+		 * Starts waiting jobs and pulls new ones as long as the limits allow.
+		 */
+		private void submit() {
+			for (Iterator<Job> it = waiting.iterator(); it.hasNext() && inFlight < maxInFlight; ) {
+				Job job = it.next();
+				if (hasRoom(job.proxy)) {
+					it.remove();
+					start(job);
+				}
+			}
+
+			while (inFlight < maxInFlight && waiting.size() < maxInFlight - inFlight && jobs.hasNext()) {
+				Job job = jobs.next();
+				if (hasRoom(job.proxy))
+					start(job);
+				else
+					waiting.add(job);
+			}
+		}
+
+		private boolean hasRoom(HttpHost proxy) {
+			Integer count = inFlightByProxy.get(proxy);
+			return count == null || count < maxInFlightPerProxy;
+		}
+
+		private void start(final Job job) {
+			Integer count = inFlightByProxy.get(job.proxy);
+			inFlightByProxy.put(job.proxy, count == null ? 1 : count + 1);
+			inFlight++;
+
+			HttpClientContext context = HttpClientContext.create();
+			context.setRequestConfig(RequestConfig.copy(requestConfig).setProxy(job.proxy).build());
+
+			// the callback may run before execute(..) returns
+			final AtomicReference<Future<T>> future = new AtomicReference<>();
+			FutureCallback<T> callback = new FutureCallback<T>() {
+				@Override
+				public void completed(T result) {
+					done(future, new Result<>(job, result, null));
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					done(future, new Result<T>(job, null, ex));
+				}
+
+				@Override
+				public void cancelled() {
+					done(future, new Result<T>(job, null, new CancellationException("request cancelled")));
+				}
+			};
+
+			HttpAsyncResponseConsumer<T> responseConsumer = null;
+			try {
+				BasicAsyncRequestProducer requestProducer = new BasicAsyncRequestProducer(
+						URIUtils.extractHost(job.request.getURI()), job.request);
+				responseConsumer = consumerFactory.apply(job);
+				Future<T> started = client.execute(requestProducer, responseConsumer, context, callback);
+				synchronized (running) {
+					future.set(started);
+					if (!started.isDone())
+						running.add(started);
+				}
+			} catch (RuntimeException e) {
+				// e.g. a relative URI or a stopped client, the job is counted in flight until its result is taken
+				if (responseConsumer != null)
+					closeQuietly(responseConsumer);
+				completed.add(new Result<T>(job, null, e));
+			}
+		}
+
+		private void closeQuietly(Closeable closeable) {
+			try {
+				closeable.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		private void done(AtomicReference<Future<T>> future, Result<T> result) {
+			synchronized (running) {
+				Future<T> started = future.get();
+				if (started != null)
+					running.remove(started);
+			}
+			completed.add(result);
+		}
+
+		private void release(HttpHost proxy) {
+			int count = inFlightByProxy.get(proxy) - 1;
+			if (count == 0)
+				inFlightByProxy.remove(proxy);
+			else
+				inFlightByProxy.put(proxy, count);
+			inFlight--;
+		}
+
+		/**
+		 * Cancels the requests in flight, their results are still handed out, and drops the jobs not started yet.
+		 */
+		@Override
+		public void close() {
+			if (closed)
+				return;
+			closed = true;
+			waiting.clear();
+
+			Future<?>[] cancelled;
+			synchronized (running) {
+				cancelled = running.toArray(new Future<?>[running.size()]);
+				running.clear();
+			}
+			for (Future<?> future : cancelled)
+				future.cancel(true);
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package demo.socks;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Creates the executor of {@link CallbackOffloader#getDefault()}. The first implementation found by the
+ * {@link java.util.ServiceLoader} replaces the default pool of platform threads, e.g. the one of the {@code loom} jar
+ * running every callback on a virtual thread of its own.
+ */
+public interface CallbackExecutorFactory {
+	/**
+	 * Called once. Tasks submitted to the executor may block, it has to run them without holding up the others.
+	 */
+	Executor newExecutor();
+}
@@ -0,0 +1,226 @@
+package demo.socks;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs the callbacks of requests on an executor instead of the I/O dispatcher thread that completed them. Response
+ * consumers still parse on the dispatcher thread, but callbacks and result handlers may block or take their time
+ * without stalling the handshakes and exchanges of the other sessions of the dispatcher.
+ * <p>
+ * The default offloader runs callbacks on a shared cached pool of daemon threads, or on a virtual thread each with the
+ * {@code loom} jar on the class path on Java 21, see {@link CallbackExecutorFactory}. Callbacks the executor rejects
+ * run on the dispatcher thread, they are counted by {@link #getRunInline()}.
+ */
+public class CallbackOffloader {
+	private static final Logger log = LoggerFactory.getLogger(CallbackOffloader.class);
+
+	private final Executor executor;
+
+	private final AtomicLong offloaded = new AtomicLong();
+	private final AtomicLong runInline = new AtomicLong();
+
+	public CallbackOffloader(Executor executor) {
+		this.executor = checkNotNull(executor, "executor");
+	}
+
+	public static CallbackOffloader getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * Executes the request, see
+	 * {@link HttpAsyncClient#execute(HttpAsyncRequestProducer, HttpAsyncResponseConsumer, HttpContext, FutureCallback)},
+	 * with the callback run on the executor. The future completes on the dispatcher thread, the callback may still be
+	 * running when a thread waiting for the future resumes.
+	 */
+	public <T> Future<T> execute(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+								 HttpAsyncResponseConsumer<T> responseConsumer, HttpContext context,
+								 FutureCallback<T> callback) {
+		return client.execute(requestProducer, responseConsumer, context, callback != null ? offload(callback) : null);
+	}
+
+	/**
+	 * Executes the request and hands the result of the consumer to the result handler on the executor. The future and
+	 * the callback complete with the outcome of the handler, on the executor as well.
+	 *
+	 * @param resultHandler turns the result of the consumer into the result of the request, may block
+	 */
+	public <T, R> Future<R> execute(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+									HttpAsyncResponseConsumer<T> responseConsumer, HttpContext context,
+									Function<? super T, ? extends R> resultHandler, FutureCallback<R> callback) {
+		final HandledFuture<T, R> future = new HandledFuture<>(checkNotNull(resultHandler, "result handler"), callback);
+		future.exchange = client.execute(requestProducer, responseConsumer, context, offload(new FutureCallback<T>() {
+			@Override
+			public void completed(T result) {
+				future.handle(result);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				future.failed(ex);
+			}
+
+			@Override
+			public void cancelled() {
+				future.cancel(true);
+			}
+		}));
+		// cancelled before the exchange was known
+		if (future.isCancelled())
+			future.exchange.cancel(true);
+		return future;
+	}
+
+	/**
+	 * @return a callback passing everything on to the given one on the executor
+	 */
+	public <T> FutureCallback<T> offload(final FutureCallback<T> callback) {
+		checkNotNull(callback, "callback");
+		return new FutureCallback<T>() {
+			@Override
+			public void completed(final T result) {
+				run(new Runnable() {
+					@Override
+					public void run() {
+						callback.completed(result);
+					}
+				});
+			}
+
+			@Override
+			public void failed(final Exception ex) {
+				run(new Runnable() {
+					@Override
+					public void run() {
+						callback.failed(ex);
+					}
+				});
+			}
+
+			@Override
+			public void cancelled() {
+				run(new Runnable() {
+					@Override
+					public void run() {
+						callback.cancelled();
+					}
+				});
+			}
+		};
+	}
+
+	private void run(Runnable task) {
+		try {
+			executor.execute(task);
+			offloaded.incrementAndGet();
+		} catch (RejectedExecutionException e) {
+			runInline.incrementAndGet();
+			if (log.isWarnEnabled())
+				log.warn("callback executor rejected a callback, running it on the dispatcher thread", e);
+			task.run();
+		}
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return callbacks handed to the executor so far
+	 */
+	public long getOffloaded() {
+		return offloaded.get();
+	}
+
+	/**
+	 * @return callbacks run on the dispatcher thread because the executor rejected them
+	 */
+	public long getRunInline() {
+		return runInline.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CallbackOffloader[executor=" + executor + ", offloaded=" + offloaded + ", runInline=" + runInline + "]";
+	}
+
+	/**
+	 * @return the executor of the first {@link CallbackExecutorFactory} registered in {@code META-INF/services}, a pool
+	 * of daemon threads if there is none or it does not run on this JVM (e.g. the virtual threads before Java 21)
+	 */
+	private static Executor loadExecutor() {
+		try {
+			Iterator<CallbackExecutorFactory> factories = ServiceLoader.load(CallbackExecutorFactory.class,
+					CallbackExecutorFactory.class.getClassLoader()).iterator();
+			if (factories.hasNext()) {
+				CallbackExecutorFactory factory = factories.next();
+				if (log.isDebugEnabled())
+					log.debug("running callbacks with {}", factory);
+				return factory.newExecutor();
+			}
+		} catch (ServiceConfigurationError | LinkageError e) {
+			log.warn("loading callback executor failed, callbacks run on platform threads", e);
+		}
+		return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+				.setNameFormat("socks-callback-%d")
+				.setDaemon(true)
+				.build());
+	}
+
+	private static class DefaultHolder {
+		static final CallbackOffloader INSTANCE = new CallbackOffloader(loadExecutor());
+	}
+
+	/**
+	 * Completed by the offloaded callback of the exchange, so the result handler and the callback run on the executor.
+	 */
+	private static class HandledFuture<T, R> extends BasicFuture<R> {
+		private final Function<? super T, ? extends R> resultHandler;
+		private volatile Future<T> exchange;
+
+		HandledFuture(Function<? super T, ? extends R> resultHandler, FutureCallback<R> callback) {
+			super(callback);
+			this.resultHandler = resultHandler;
+		}
+
+		void handle(T result) {
+			R handled;
+			try {
+				handled = resultHandler.apply(result);
+			} catch (RuntimeException e) {
+				failed(e);
+				return;
+			}
+			completed(handled);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future<T> running = exchange;
+			if (running != null)
+				running.cancel(mayInterruptIfRunning);
+			return cancelled;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package demo.socks;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Streams response bodies to a channel and returns the response head. Bodies going to a {@link FileChannel} are
+ * copied from the socket straight into the file channel where the decoder allows it, without being buffered on the
+ * heap, bodies of chunked responses and bodies going to other channels pass through a pooled buffer, see
+ * {@link PooledByteConsumer}. Either way no response holds more than a buffer in memory.
+ * <p>
+ * The sink belongs to the caller and stays open. It is written on the I/O dispatcher thread and has to be blocking, a
+ * slow sink stalls the other sessions of the dispatcher.
+ */
+public class ChannelResponseConsumer extends PooledByteConsumer<HttpResponse> {
+	private final WritableByteChannel sink;
+
+	private HttpResponse response;
+	private long position = -1;
+
+	/**
+	 * @param sink             written from its current position
+	 * @param maxContentLength bytes written per response at most, -1 for no limit
+	 */
+	public ChannelResponseConsumer(WritableByteChannel sink, long maxContentLength) {
+		super(maxContentLength);
+		this.sink = checkNotNull(sink, "sink");
+	}
+
+	/**
+	 * @param buffers pool chunked content and content for channels other than files is read into
+	 */
+	public ChannelResponseConsumer(WritableByteChannel sink, SocksBufferPool buffers, long maxContentLength) {
+		super(buffers, maxContentLength);
+		this.sink = checkNotNull(sink, "sink");
+	}
+
+	@Override
+	protected void onResponseReceived(HttpResponse response) throws HttpException, IOException {
+		this.response = response;
+	}
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		super.onEntityEnclosed(entity, contentType);
+		if (sink instanceof FileChannel)
+			position = ((FileChannel) sink).position();
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		if (position < 0 || !(decoder instanceof FileContentDecoder)) {
+			super.onContentReceived(decoder, ioctrl);
+			return;
+		}
+
+		long count = Integer.MAX_VALUE;
+		if (getMaxContentLength() >= 0) {
+			count = Math.min(count, getMaxContentLength() - getContentLength());
+			// at the maximum, more content goes through the buffer and fails before anything is written
+			if (count == 0) {
+				super.onContentReceived(decoder, ioctrl);
+				return;
+			}
+		}
+
+		// transfers write at the given position and leave the position of the channel alone
+		FileChannel file = (FileChannel) sink;
+		long transferred = ((FileContentDecoder) decoder).transfer(file, position, count);
+		if (transferred > 0) {
+			position += transferred;
+			received(transferred);
+		}
+		if (decoder.isCompleted())
+			file.position(position);
+	}
+
+	@Override
+	protected void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException {
+		while (buf.hasRemaining())
+			sink.write(buf);
+		if (position >= 0)
+			position = ((FileChannel) sink).position();
+	}
+
+	@Override
+	protected HttpResponse buildResult(HttpContext context) throws Exception {
+		return response;
+	}
+
+	public WritableByteChannel getSink() {
+		return sink;
+	}
+
+	@Override
+	protected void releaseResources() {
+		response = null;
+	}
+
+	@Override
+	public String toString() {
+		return "ChannelResponseConsumer[sink=" + sink + ", contentLength=" + getContentLength() + "]";
+	}
+}
@@ -0,0 +1,207 @@
+package demo.socks;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs many short-lived deadlines on one thread, e.g. one per SOCKS handshake (see
+ * {@link SocksConfig.Builder#setHandshakeTimeout(int)}). Deadlines are hashed into the slots of a wheel that advances
+ * one slot per tick, so scheduling and cancelling are O(1) and neither takes a lock: scheduling enqueues, cancelling
+ * flips a flag and the worker drops the deadline once it visits its slot.
+ * <p>
+ * Deadlines fire up to one tick late. The tasks run on the worker thread and have to be short, they must not block.
+ */
+public class HashedTimerWheel implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(HashedTimerWheel.class);
+
+	private static final long DEFAULT_TICK_MILLIS = 10;
+	private static final int DEFAULT_SLOTS = 512;
+
+	private final long tickNanos;
+	private final Slot[] slots;
+	private final int mask;
+	private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+	private final long startNanos = System.nanoTime();
+	private final Thread worker;
+	private volatile boolean closed;
+
+	// worker only
+	private long tick;
+
+	/**
+	 * Ticks every 10 ms with 512 slots, about 5 s per revolution.
+	 */
+	public HashedTimerWheel() {
+		this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param slots rounded up to a power of two, deadlines further away than a revolution take several
+	 */
+	public HashedTimerWheel(long tickDuration, TimeUnit unit, int slots) {
+		checkArgument(tickDuration > 0, "tick duration must be positive");
+		checkArgument(slots > 0 && slots <= 1 << 20, "slots must be between 1 and 2^20");
+
+		this.tickNanos = Math.max(unit.toNanos(tickDuration), TimeUnit.MILLISECONDS.toNanos(1));
+		int size = Integer.highestOneBit(slots) == slots ? slots : Integer.highestOneBit(slots) << 1;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++)
+			this.slots[i] = new Slot();
+		this.mask = size - 1;
+
+		this.worker = new ThreadFactoryBuilder()
+				.setNameFormat("socks-timer-%d")
+				.setDaemon(true)
+				.build()
+				.newThread(new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				});
+		worker.start();
+	}
+
+	/**
+	 * @return the wheel shared by configs without one of their own, started on first use and never closed
+	 */
+	public static HashedTimerWheel getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * Runs the task on the worker thread once the delay passed, unless it is cancelled first.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		checkNotNull(task, "task");
+		checkState(!closed, "timer wheel closed");
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(delay, 0)));
+		scheduled.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the worker, pending deadlines never fire.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(worker);
+	}
+
+	private void work() {
+		while (!closed) {
+			long next = startNanos + (tick + 1) * tickNanos;
+			long now;
+			while ((now = System.nanoTime()) - next < 0) {
+				LockSupport.parkNanos(this, next - now);
+				if (closed)
+					return;
+			}
+
+			transferScheduled();
+			expire(slots[(int) (tick & mask)].timeouts, now);
+			tick++;
+		}
+	}
+
+	private void transferScheduled() {
+		Timeout timeout;
+		while ((timeout = scheduled.poll()) != null) {
+			if (timeout.state != Timeout.PENDING)
+				continue;
+			// due in the slot of the current tick at the earliest, already overdue ones fire right away
+			long ticks = Math.max((timeout.deadlineNanos - startNanos) / tickNanos, tick);
+			timeout.remainingRounds = (ticks - tick) / slots.length;
+			slots[(int) (ticks & mask)].timeouts.add(timeout);
+		}
+	}
+
+	private void expire(List<Timeout> slot, long now) {
+		int kept = 0;
+		for (int i = 0, size = slot.size(); i < size; i++) {
+			Timeout timeout = slot.get(i);
+			if (timeout.state != Timeout.PENDING)
+				continue;
+			if (timeout.remainingRounds > 0 || timeout.deadlineNanos - now > 0) {
+				if (timeout.remainingRounds > 0)
+					timeout.remainingRounds--;
+				slot.set(kept++, timeout);
+				continue;
+			}
+			timeout.expire();
+		}
+		slot.subList(kept, slot.size()).clear();
+	}
+
+	@Override
+	public String toString() {
+		return "HashedTimerWheel[tick=" + TimeUnit.NANOSECONDS.toMillis(tickNanos) + " ms, slots=" + slots.length + "]";
+	}
+
+	/**
+	 * The deadlines hashed into one slot, a holder because arrays of generic lists cannot be created.
+	 */
+	private static final class Slot {
+		final List<Timeout> timeouts = new ArrayList<>();
+	}
+
+	private static class DefaultHolder {
+		static final HashedTimerWheel INSTANCE = new HashedTimerWheel();
+	}
+
+	public static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+				AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+		private final Runnable task;
+		private final long deadlineNanos;
+		private volatile int state = PENDING;
+		// worker only
+		private long remainingRounds;
+
+		private Timeout(Runnable task, long deadlineNanos) {
+			this.task = task;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		/**
+		 * @return {@code true} if the task will not run, {@code false} if it ran or is running already
+		 */
+		public boolean cancel() {
+			return STATE.compareAndSet(this, PENDING, CANCELLED) || state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state == EXPIRED;
+		}
+
+		private void expire() {
+			if (!STATE.compareAndSet(this, PENDING, EXPIRED))
+				return;
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				if (log.isWarnEnabled())
+					log.warn("timer task {} failed", task, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package demo.socks;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Picks the proxy for the next request out of a fixed set, preferring fast and healthy proxies. It learns about them
+ * as the {@link SocksEventListener} of the {@link SocksConfig} and the {@link SocksConnectingIOReactor}:
+ * <ul>
+ * <li>Each proxy is scored with exponentially weighted moving averages of its connect and handshake times. A failed
+ * attempt counts as a sample of at least the failure penalty.</li>
+ * <li>Of two proxies drawn at random the one with the lower score is picked, so the fastest proxies get most requests
+ * without all of them piling onto one.</li>
+ * <li>After a number of consecutive failures the circuit of a proxy opens and it is out of rotation. Once the open
+ * time passed a single request probes it: success closes the circuit, failure keeps it open twice as long.</li>
+ * </ul>
+ * If all circuits are open the proxy probed next is picked, requests never go out without a proxy.
+ * <p>
+ * Only new connections are measured, a request leasing a pooled tunnel reports nothing. Proxies with a {@code socks}
+ * scheme count as working once the handshake completed, other proxies once connected. Rejections about the target
+ * ({@link SocksException.Scope#TARGET}) count as completed handshakes, the proxy itself worked.
+ */
+public class LatencyAwareProxySelector implements SocksEventListener {
+	private static final Logger log = LoggerFactory.getLogger(LatencyAwareProxySelector.class);
+
+	// weight of the latest sample in the moving averages
+	private static final double SAMPLE_WEIGHT = 0.3;
+	private static final long MAX_OPEN_MILLIS = 60000;
+
+	private final ProxyState[] states;
+	private final Map<HttpHost, ProxyState> statesByProxy;
+	private final int failureThreshold;
+	private final long openNanos;
+	private final long failurePenaltyNanos;
+
+	/**
+	 * Opens the circuit after 3 consecutive failures for 1 s at first, failures count as 1 s.
+	 */
+	public LatencyAwareProxySelector(Collection<HttpHost> proxies) {
+		this(proxies, 3, 1000, 1000, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param failureThreshold consecutive failures opening the circuit of a proxy
+	 * @param openDuration     time until an open circuit is probed the first time, doubled after every failed probe
+	 * @param failurePenalty   minimum latency a failed connect or handshake counts with, e.g. the connect timeout
+	 */
+	public LatencyAwareProxySelector(Collection<HttpHost> proxies, int failureThreshold, long openDuration,
+									 long failurePenalty, TimeUnit unit) {
+		checkArgument(!proxies.isEmpty(), "no proxies");
+		checkArgument(failureThreshold > 0, "failure threshold must be positive");
+		checkArgument(openDuration > 0 && unit.toMillis(openDuration) <= MAX_OPEN_MILLIS,
+				"open duration must be positive and at most %s ms", MAX_OPEN_MILLIS);
+		checkArgument(failurePenalty >= 0, "failure penalty must not be negative");
+
+		this.failureThreshold = failureThreshold;
+		this.openNanos = unit.toNanos(openDuration);
+		this.failurePenaltyNanos = unit.toNanos(failurePenalty);
+
+		ImmutableMap.Builder<HttpHost, ProxyState> builder = ImmutableMap.builder();
+		for (HttpHost proxy : proxies)
+			builder.put(proxy, new ProxyState(proxy));
+		this.statesByProxy = builder.build();
+		this.states = statesByProxy.values().toArray(new ProxyState[statesByProxy.size()]);
+	}
+
+	/**
+	 * @return the proxy for the next request
+	 */
+	public HttpHost select() {
+		long now = System.nanoTime();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		ProxyState first = null;
+		ProxyState second = null;
+		ProxyState nextProbed = null;
+		int closed = 0;
+		for (ProxyState state : states) {
+			if (state.open) {
+				if (state.tryProbe(now))
+					return state.proxy;
+				if (nextProbed == null || state.openUntil - nextProbed.openUntil < 0)
+					nextProbed = state;
+				continue;
+			}
+
+			// keeps two random proxies out of the closed ones without collecting them
+			closed++;
+			int slot = closed <= 2 ? closed - 1 : random.nextInt(closed);
+			if (slot == 0)
+				first = state;
+			else if (slot == 1)
+				second = state;
+		}
+
+		if (first == null)
+			return nextProbed.proxy;
+		if (second == null)
+			return first.proxy;
+		return first.score <= second.score ? first.proxy : second.proxy;
+	}
+
+	/**
+	 * @return a copy of the config with the proxy for the next request
+	 */
+	public RequestConfig select(RequestConfig config) {
+		return RequestConfig.copy(config).setProxy(select()).build();
+	}
+
+	@Override
+	public void connected(HttpHost proxy, long nanos) {
+		ProxyState state = statesByProxy.get(proxy);
+		if (state != null)
+			state.connected(nanos);
+	}
+
+	@Override
+	public void connectFailed(HttpHost proxy, long nanos, IOException ex) {
+		ProxyState state = statesByProxy.get(proxy);
+		if (state != null)
+			state.connectFailed(nanos);
+	}
+
+	@Override
+	public void handshakeCompleted(HttpHost proxy, long nanos) {
+		ProxyState state = statesByProxy.get(proxy);
+		if (state != null)
+			state.handshakeCompleted(nanos);
+	}
+
+	@Override
+	public void handshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+		ProxyState state = statesByProxy.get(proxy);
+		if (state == null)
+			return;
+		// the proxy replied in time, the target is what failed
+		if (ex instanceof SocksException && ((SocksException) ex).getScope() == SocksException.Scope.TARGET)
+			state.handshakeCompleted(nanos);
+		else
+			state.handshakeFailed(nanos);
+	}
+
+	@Override
+	public void tlsHandshakeCompleted(HttpHost proxy, long nanos) {
+		// depends on the target rather than on the proxy
+	}
+
+	@Override
+	public void tlsHandshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+	}
+
+	@Override
+	public void versionNegotiated(HttpHost proxy, SocksVersion version, int method) {
+	}
+
+	@Override
+	public void versionDowngraded(HttpHost proxy, SocksVersion from, SocksVersion to) {
+	}
+
+	@Override
+	public String toString() {
+		return statesByProxy.values().toString();
+	}
+
+	private class ProxyState {
+		final HttpHost proxy;
+		final boolean socks;
+
+		// read by select() without locking
+		volatile double score;
+		volatile boolean open;
+		volatile long openUntil;
+
+		private double connectNanos = Double.NaN;
+		private double handshakeNanos = Double.NaN;
+		private int consecutiveFailures;
+		private long currentOpenNanos = openNanos;
+		private boolean probing;
+		private long probeStarted;
+
+		ProxyState(HttpHost proxy) {
+			this.proxy = proxy;
+			this.socks = proxy.getSchemeName().startsWith("socks");
+		}
+
+		synchronized void connected(long nanos) {
+			connectNanos = average(connectNanos, nanos);
+			updateScore();
+			if (!socks)
+				succeeded();
+		}
+
+		synchronized void connectFailed(long nanos) {
+			connectNanos = average(connectNanos, Math.max(nanos, failurePenaltyNanos));
+			updateScore();
+			failed();
+		}
+
+		synchronized void handshakeCompleted(long nanos) {
+			handshakeNanos = average(handshakeNanos, nanos);
+			updateScore();
+			succeeded();
+		}
+
+		synchronized void handshakeFailed(long nanos) {
+			handshakeNanos = average(handshakeNanos, Math.max(nanos, failurePenaltyNanos));
+			updateScore();
+			failed();
+		}
+
+		private double average(double average, long sample) {
+			return Double.isNaN(average) ? sample : average + SAMPLE_WEIGHT * (sample - average);
+		}
+
+		private void updateScore() {
+			// proxies without samples score 0 and get tried first
+			score = (Double.isNaN(connectNanos) ? 0 : connectNanos) + (Double.isNaN(handshakeNanos) ? 0 : handshakeNanos);
+		}
+
+		private void succeeded() {
+			consecutiveFailures = 0;
+			if (!open)
+				return;
+
+			open = false;
+			probing = false;
+			currentOpenNanos = openNanos;
+			if (log.isInfoEnabled())
+				log.info("proxy {} works again, back in rotation", proxy);
+		}
+
+		private void failed() {
+			consecutiveFailures++;
+			if (open) {
+				// only a failed probe extends the open time, not requests still in flight when the circuit opened
+				if (probing) {
+					probing = false;
+					currentOpenNanos = Math.min(2 * currentOpenNanos, TimeUnit.MILLISECONDS.toNanos(MAX_OPEN_MILLIS));
+					openUntil = System.nanoTime() + currentOpenNanos;
+					if (log.isDebugEnabled())
+						log.debug("probing proxy {} failed, next probe in {} ms", proxy, TimeUnit.NANOSECONDS.toMillis(currentOpenNanos));
+				}
+			} else if (consecutiveFailures >= failureThreshold) {
+				open = true;
+				openUntil = System.nanoTime() + currentOpenNanos;
+				if (log.isWarnEnabled())
+					log.warn("proxy {} failed {} times in a row, out of rotation for {} ms", proxy, consecutiveFailures,
+							TimeUnit.NANOSECONDS.toMillis(currentOpenNanos));
+			}
+		}
+
+		/**
+		 * @return {@code true} if the caller got to probe the open circuit
+		 */
+		synchronized boolean tryProbe(long now) {
+			if (!open || now - openUntil < 0)
+				return false;
+			// a probe that never reports back, e.g. it leased a pooled tunnel or was cancelled, is replaced eventually
+			if (probing && now - probeStarted - currentOpenNanos < 0)
+				return false;
+
+			probing = true;
+			probeStarted = now;
+			return true;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return proxy + "[score=" + TimeUnit.NANOSECONDS.toMicros((long) score) + " us, "
+					+ (open ? "open" : "closed") + ", consecutiveFailures=" + consecutiveFailures + "]";
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package demo.socks;
+
+import org.apache.http.ContentTooLongException;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Consumes response bodies as raw bytes, like {@link org.apache.http.nio.client.methods.AsyncByteConsumer}, without a
+ * buffer of its own. Content is read into a buffer of a {@link SocksBufferPool} that goes back to the pool before the
+ * I/O dispatcher thread moves on, so the dispatcher threads share a handful of buffers however many responses are in
+ * flight, and nothing is decoded to chars.
+ * <p>
+ * Bodies longer than the maximum content length fail with a {@link ContentTooLongException}, those announcing it in
+ * their {@code Content-Length} before a byte is read.
+ *
+ * @param <T> the result of the response processing
+ */
+public abstract class PooledByteConsumer<T> extends AbstractAsyncResponseConsumer<T> {
+	private static final SocksBufferPool DEFAULT_BUFFERS = new SocksBufferPool(8 * 1024, 1);
+
+	private final SocksBufferPool buffers;
+	private final long maxContentLength;
+
+	private long contentLength;
+
+	/**
+	 * @param buffers          pool the content is read into, buffers are acquired and released on the dispatcher thread
+	 * @param maxContentLength bytes of content accepted per response, -1 for no limit
+	 */
+	protected PooledByteConsumer(SocksBufferPool buffers, long maxContentLength) {
+		checkArgument(maxContentLength >= -1, "max content length must not be less than -1");
+		this.buffers = checkNotNull(buffers, "buffers");
+		this.maxContentLength = maxContentLength;
+	}
+
+	/**
+	 * Reads into 8 KiB buffers shared by all consumers using the default pool.
+	 */
+	protected PooledByteConsumer(long maxContentLength) {
+		this(DEFAULT_BUFFERS, maxContentLength);
+	}
+
+	/**
+	 * Invoked to process a chunk of content. The buffer belongs to the pool again once this method returns, the
+	 * content has to be consumed or copied before.
+	 *
+	 * @param buf    content read, flipped for reading
+	 * @param ioctrl I/O control of the underlying connection
+	 */
+	protected abstract void onByteReceived(ByteBuffer buf, IOControl ioctrl) throws IOException;
+
+	@Override
+	protected void onEntityEnclosed(HttpEntity entity, ContentType contentType) throws IOException {
+		contentLength = 0;
+		if (maxContentLength >= 0 && entity.getContentLength() > maxContentLength)
+			throw new ContentTooLongException("Content-Length " + entity.getContentLength()
+					+ " exceeds the maximum of " + maxContentLength + " bytes");
+	}
+
+	@Override
+	protected void onContentReceived(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+		// the event mask is only reachable through the connection, see AsyncByteConsumer
+		IOSession iosession = ioctrl instanceof ManagedNHttpClientConnection
+				? ((ManagedNHttpClientConnection) ioctrl).getIOSession()
+				: null;
+
+		ByteBuffer buffer = buffers.acquire();
+		try {
+			while (!isDone()) {
+				int bytesRead = decoder.read(buffer);
+				if (bytesRead <= 0)
+					break;
+				received(bytesRead);
+
+				buffer.flip();
+				onByteReceived(buffer, ioctrl);
+				buffer.clear();
+				if (decoder.isCompleted())
+					break;
+				// stop reading once the consumer suspended input
+				if (iosession != null && (iosession.isClosed() || (iosession.getEventMask() & SelectionKey.OP_READ) == 0))
+					break;
+			}
+		} finally {
+			buffers.release(buffer);
+		}
+	}
+
+	/**
+	 * Counts content consumed without {@link #onByteReceived(ByteBuffer, IOControl)}, for subclasses reading the
+	 * decoder themselves.
+	 *
+	 * @throws ContentTooLongException if the content exceeds the maximum content length with these bytes
+	 */
+	protected void received(long bytes) throws ContentTooLongException {
+		contentLength += bytes;
+		if (maxContentLength >= 0 && contentLength > maxContentLength)
+			throw new ContentTooLongException("content exceeds the maximum of " + maxContentLength + " bytes");
+	}
+
+	/**
+	 * @return bytes of content received so far
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
+	/**
+	 * @return bytes of content accepted per response, -1 for no limit
+	 */
+	public long getMaxContentLength() {
+		return maxContentLength;
+	}
+
+	@Override
+	protected void releaseResources() {
+	}
+}
@@ -0,0 +1,403 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Admits requests per proxy in front of the connection pool, so an overloaded proxy gets a short queue and fast
+ * rejections instead of requests piling up in the pool until the connection request timeout.
+ * <ul>
+ * <li>Every proxy has a concurrency limit. Requests beyond it wait in a queue of bounded length, requests beyond that
+ * fail right away with a {@link ProxyOverloadedException}.</li>
+ * <li>The limit adapts additive-increase/multiplicative-decrease: every response within the latency target raises it
+ * by about one per limit's worth of responses, a slower response, a failed exchange, a failed connect or handshake
+ * and a handshake slower than the target cut it to {@value #DECREASE_FACTOR} of itself, at most once per latency
+ * target.</li>
+ * <li>With a {@link PoolingNHttpClientConnectionManager} the max per route of the routes through the proxy follows
+ * the limit.</li>
+ * </ul>
+ * Requests go through {@link #execute}, the proxy is taken from the {@link RequestConfig} of the context. Requests
+ * without a proxy are passed on unlimited. Handshakes are observed as the {@link SocksEventListener} of the
+ * {@link SocksConfig}. Queued requests start on the thread completing the request they wait for, usually an I/O
+ * dispatcher, which only hands them to the client.
+ */
+public class ProxyAdmissionController implements SocksEventListener {
+	private static final Logger log = LoggerFactory.getLogger(ProxyAdmissionController.class);
+
+	static final double DECREASE_FACTOR = 0.7;
+	// routes per proxy whose max per route follows the limit
+	private static final int MAX_ROUTES = 64;
+
+	private final PoolingNHttpClientConnectionManager connManager;
+	private final int minLimit;
+	private final int maxLimit;
+	private final int maxQueued;
+	private final long latencyTargetNanos;
+	private final ConcurrentMap<HttpHost, ProxyLimiter> limiters = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxConcurrency the limit every proxy starts with and never exceeds
+	 * @param maxQueued      requests per proxy waiting for the limit, beyond that they are rejected
+	 * @param latencyTarget  response and handshake time above which the limit is decreased
+	 */
+	public ProxyAdmissionController(int maxConcurrency, int maxQueued, long latencyTarget, TimeUnit unit) {
+		this(null, 1, maxConcurrency, maxQueued, latencyTarget, unit);
+	}
+
+	/**
+	 * @param connManager    pool whose max per route follows the limits, {@code null} to leave it alone
+	 * @param minConcurrency lower bound of the limits
+	 * @param maxConcurrency the limit every proxy starts with and never exceeds
+	 */
+	public ProxyAdmissionController(PoolingNHttpClientConnectionManager connManager, int minConcurrency,
+									int maxConcurrency, int maxQueued, long latencyTarget, TimeUnit unit) {
+		checkArgument(minConcurrency > 0 && minConcurrency <= maxConcurrency,
+				"concurrency must be positive and the minimum must not exceed the maximum");
+		checkArgument(maxQueued >= 0, "max queued must not be negative");
+		checkArgument(latencyTarget > 0, "latency target must be positive");
+
+		this.connManager = connManager;
+		this.minLimit = minConcurrency;
+		this.maxLimit = maxConcurrency;
+		this.maxQueued = maxQueued;
+		this.latencyTargetNanos = unit.toNanos(latencyTarget);
+	}
+
+	/**
+	 * Executes the request once the proxy admits it, see {@link HttpAsyncClient#execute(HttpAsyncRequestProducer,
+	 * HttpAsyncResponseConsumer, HttpContext, FutureCallback)}.
+	 *
+	 * @return fails with a {@link ProxyOverloadedException} if the queue is full, cancelling it dequeues the request
+	 */
+	public <T> Future<T> execute(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+								 HttpAsyncResponseConsumer<T> responseConsumer, HttpContext context,
+								 FutureCallback<T> callback) {
+		HttpClientContext clientContext = HttpClientContext.adapt(context != null ? context : HttpClientContext.create());
+		HttpHost proxy = clientContext.getRequestConfig().getProxy();
+		if (proxy == null)
+			return client.execute(requestProducer, responseConsumer, clientContext, callback);
+
+		Admission<T> admission = new Admission<>(limiter(proxy), client, requestProducer, responseConsumer,
+				clientContext, callback);
+		admission.limiter.admit(admission);
+		return admission;
+	}
+
+	/**
+	 * @return the current concurrency limit of the proxy, the maximum for proxies not seen yet
+	 */
+	public int getLimit(HttpHost proxy) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		return limiter != null ? limiter.getLimit() : maxLimit;
+	}
+
+	public int getInFlight(HttpHost proxy) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		return limiter != null ? limiter.getInFlight() : 0;
+	}
+
+	public int getQueued(HttpHost proxy) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		return limiter != null ? limiter.getQueued() : 0;
+	}
+
+	public long getRejected(HttpHost proxy) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		return limiter != null ? limiter.getRejected() : 0;
+	}
+
+	@Override
+	public void connected(HttpHost proxy, long nanos) {
+	}
+
+	@Override
+	public void connectFailed(HttpHost proxy, long nanos, IOException ex) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		if (limiter != null)
+			limiter.adjust(false);
+	}
+
+	@Override
+	public void handshakeCompleted(HttpHost proxy, long nanos) {
+		// fast handshakes are part of fast responses, only slow ones add a signal of their own
+		ProxyLimiter limiter = limiters.get(proxy);
+		if (limiter != null && nanos > latencyTargetNanos)
+			limiter.adjust(false);
+	}
+
+	@Override
+	public void handshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		if (limiter != null)
+			limiter.adjust(false);
+	}
+
+	@Override
+	public void tlsHandshakeCompleted(HttpHost proxy, long nanos) {
+	}
+
+	@Override
+	public void tlsHandshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+	}
+
+	@Override
+	public void versionNegotiated(HttpHost proxy, SocksVersion version, int method) {
+	}
+
+	@Override
+	public void versionDowngraded(HttpHost proxy, SocksVersion from, SocksVersion to) {
+	}
+
+	@Override
+	public String toString() {
+		return limiters.values().toString();
+	}
+
+	private ProxyLimiter limiter(HttpHost proxy) {
+		ProxyLimiter limiter = limiters.get(proxy);
+		if (limiter == null) {
+			ProxyLimiter created = new ProxyLimiter(proxy);
+			limiter = limiters.putIfAbsent(proxy, created);
+			if (limiter == null)
+				limiter = created;
+		}
+		return limiter;
+	}
+
+	private class ProxyLimiter {
+		final HttpHost proxy;
+
+		private double limit = maxLimit;
+		private int inFlight;
+		private long rejected;
+		private long lastDecrease = System.nanoTime() - latencyTargetNanos;
+		private final ArrayDeque<Admission<?>> queue = new ArrayDeque<>();
+		private final Set<HttpRoute> routes = new LinkedHashSet<>();
+
+		ProxyLimiter(HttpHost proxy) {
+			this.proxy = proxy;
+		}
+
+		void admit(Admission<?> admission) {
+			synchronized (this) {
+				if (inFlight < (int) limit) {
+					inFlight++;
+				} else if (queue.size() < maxQueued) {
+					queue.addLast(admission);
+					return;
+				} else {
+					rejected++;
+					admission.reject(new ProxyOverloadedException(proxy, "admission queue of " + maxQueued
+							+ " requests full, limit " + (int) limit));
+					return;
+				}
+			}
+			admission.start();
+		}
+
+		synchronized boolean dequeue(Admission<?> admission) {
+			return queue.remove(admission);
+		}
+
+		long latencyTargetNanos() {
+			return latencyTargetNanos;
+		}
+
+		/**
+		 * Frees the slot of a finished exchange and starts the requests fitting the limit now.
+		 *
+		 * @param route the route of the exchange, {@code null} if unknown
+		 */
+		void release(HttpRoute route) {
+			List<Admission<?>> next = null;
+			int newRouteLimit = 0;
+			synchronized (this) {
+				inFlight--;
+				if (route != null && connManager != null && routes.size() < MAX_ROUTES && routes.add(route))
+					newRouteLimit = (int) limit;
+				while (inFlight < (int) limit && !queue.isEmpty()) {
+					if (next == null)
+						next = new ArrayList<>(1);
+					next.add(queue.pollFirst());
+					inFlight++;
+				}
+			}
+
+			// the pool is not called under the lock, it may call back into the client
+			if (newRouteLimit > 0)
+				connManager.setMaxPerRoute(route, newRouteLimit);
+			if (next != null) {
+				for (Admission<?> admission : next)
+					admission.start();
+			}
+		}
+
+		void adjust(boolean increase) {
+			List<HttpRoute> resized = null;
+			int resizedLimit;
+			synchronized (this) {
+				int before = (int) limit;
+				if (increase) {
+					limit = Math.min(limit + 1 / limit, maxLimit);
+				} else {
+					long now = System.nanoTime();
+					// one cut per latency target, the exchanges in flight report the same congestion
+					if (now - lastDecrease < latencyTargetNanos)
+						return;
+					lastDecrease = now;
+					limit = Math.max(limit * DECREASE_FACTOR, minLimit);
+					if (log.isDebugEnabled())
+						log.debug("proxy {} congested, limit {} -> {}", proxy, before, (int) limit);
+				}
+
+				resizedLimit = (int) limit;
+				if (resizedLimit == before || connManager == null || routes.isEmpty())
+					return;
+				resized = new ArrayList<>(routes);
+			}
+
+			for (HttpRoute route : resized)
+				connManager.setMaxPerRoute(route, resizedLimit);
+		}
+
+		synchronized int getLimit() {
+			return (int) limit;
+		}
+
+		synchronized int getInFlight() {
+			return inFlight;
+		}
+
+		synchronized int getQueued() {
+			return queue.size();
+		}
+
+		synchronized long getRejected() {
+			return rejected;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return proxy + "[limit=" + (int) limit + ", inFlight=" + inFlight + ", queued=" + queue.size()
+					+ ", rejected=" + rejected + "]";
+		}
+	}
+
+	/**
+	 * The future handed out for one request, completed by the exchange once it was admitted.
+	 */
+	private static class Admission<T> extends BasicFuture<T> {
+		final ProxyLimiter limiter;
+		private final HttpAsyncClient client;
+		private final HttpAsyncRequestProducer requestProducer;
+		private final HttpAsyncResponseConsumer<T> responseConsumer;
+		private final HttpClientContext context;
+
+		private volatile Future<T> exchange;
+
+		Admission(ProxyLimiter limiter, HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+				  HttpAsyncResponseConsumer<T> responseConsumer, HttpClientContext context, FutureCallback<T> callback) {
+			super(callback);
+			this.limiter = limiter;
+			this.client = checkNotNull(client, "client");
+			this.requestProducer = checkNotNull(requestProducer, "request producer");
+			this.responseConsumer = checkNotNull(responseConsumer, "response consumer");
+			this.context = context;
+		}
+
+		void start() {
+			if (isDone()) {
+				// cancelled while its slot was handed over
+				limiter.release(null);
+				return;
+			}
+
+			final long startNanos = System.nanoTime();
+			try {
+				exchange = client.execute(requestProducer, responseConsumer, context, new FutureCallback<T>() {
+					@Override
+					public void completed(T result) {
+						limiter.adjust(System.nanoTime() - startNanos <= limiter.latencyTargetNanos());
+						limiter.release(routeOf(context));
+						Admission.super.completed(result);
+					}
+
+					@Override
+					public void failed(Exception ex) {
+						limiter.adjust(false);
+						limiter.release(routeOf(context));
+						Admission.super.failed(ex);
+					}
+
+					@Override
+					public void cancelled() {
+						// says nothing about the proxy
+						limiter.release(null);
+						Admission.super.cancel(true);
+					}
+				});
+			} catch (RuntimeException e) {
+				// e.g. the client is stopped, the exchange never started and its slot is free again
+				limiter.release(null);
+				reject(e);
+			}
+		}
+
+		void reject(Exception ex) {
+			closeQuietly(requestProducer);
+			closeQuietly(responseConsumer);
+			super.failed(ex);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (limiter.dequeue(this)) {
+				closeQuietly(requestProducer);
+				closeQuietly(responseConsumer);
+				return super.cancel(mayInterruptIfRunning);
+			}
+
+			Future<T> running = exchange;
+			if (running != null)
+				return running.cancel(mayInterruptIfRunning);
+			return super.cancel(mayInterruptIfRunning);
+		}
+
+		private static HttpRoute routeOf(HttpClientContext context) {
+			return context.getHttpRoute() instanceof HttpRoute ? (HttpRoute) context.getHttpRoute() : null;
+		}
+
+		private static void closeQuietly(Closeable closeable) {
+			try {
+				closeable.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package demo.socks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Retries requests on another proxy when their proxy rejects the tunnel. A {@link SocksException} of
+ * {@link SocksException.Scope#PROXY} scope guarantees that nothing reached the target, so an idempotent request with a
+ * repeatable producer is executed again through the next proxy that was not tried yet, without the caller seeing the
+ * rejection. Rejections about the target, other failures and requests that cannot be repeated fail as usual.
+ * <p>
+ * The producer and consumer are reused between the attempts: they see neither the failure nor the close of a rejected
+ * attempt, and the producer is reset before the next one. Rejections are the cached, stackless
+ * {@link SocksException}s, so failing over during an outage of a proxy allocates little more than the next exchange.
+ */
+public class ProxyFailoverExecutor {
+	private static final Logger log = LoggerFactory.getLogger(ProxyFailoverExecutor.class);
+
+	// RFC 7231, section 4.2.2
+	private static final Set<String> IDEMPOTENT_METHODS = ImmutableSet.of("GET", "HEAD", "OPTIONS", "TRACE", "PUT", "DELETE");
+	private static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	private final List<HttpHost> proxies;
+	private final int maxAttempts;
+
+	private final AtomicLong failovers = new AtomicLong();
+
+	/**
+	 * Tries up to three of the proxies.
+	 */
+	public ProxyFailoverExecutor(Collection<HttpHost> proxies) {
+		this(proxies, Math.min(proxies.size(), DEFAULT_MAX_ATTEMPTS));
+	}
+
+	/**
+	 * @param proxies     failed over to in their order, starting after the proxy of the failed attempt
+	 * @param maxAttempts attempts per request including the first one
+	 */
+	public ProxyFailoverExecutor(Collection<HttpHost> proxies, int maxAttempts) {
+		checkArgument(!proxies.isEmpty(), "proxies must not be empty");
+		checkArgument(maxAttempts > 0, "max attempts must be positive");
+		this.proxies = ImmutableList.copyOf(proxies);
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Executes the request through the proxy of the {@link RequestConfig} of the context, see
+	 * {@link HttpAsyncClient#execute(HttpAsyncRequestProducer, HttpAsyncResponseConsumer, HttpContext, FutureCallback)}.
+	 * The proxy ending up in the {@link RequestConfig} of the context is the one of the last attempt.
+	 */
+	public <T> Future<T> execute(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+								 HttpAsyncResponseConsumer<T> responseConsumer, HttpContext context,
+								 FutureCallback<T> callback) {
+		HttpClientContext clientContext = HttpClientContext.adapt(context != null ? context : HttpClientContext.create());
+		Failover<T> failover = new Failover<>(client, requestProducer, responseConsumer, clientContext, callback);
+		failover.execute(clientContext.getRequestConfig().getProxy());
+		return failover;
+	}
+
+	/**
+	 * @param ex the failure of an attempt
+	 * @return {@code true} if another proxy might open the tunnel the failed attempt did not get
+	 */
+	public static boolean isProxyRejection(Exception ex) {
+		return ex instanceof SocksException && ((SocksException) ex).getScope() == SocksException.Scope.PROXY;
+	}
+
+	/**
+	 * @return requests executed again on another proxy so far
+	 */
+	public long getFailovers() {
+		return failovers.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ProxyFailoverExecutor[proxies=" + proxies + ", maxAttempts=" + maxAttempts + ", failovers=" + failovers + "]";
+	}
+
+	/**
+	 * @return the first proxy after the given one that was not tried yet, {@code null} if all were
+	 */
+	private HttpHost nextProxy(HttpHost proxy, Set<HttpHost> tried) {
+		int start = proxies.indexOf(proxy) + 1;
+		for (int i = 0; i < proxies.size(); i++) {
+			HttpHost candidate = proxies.get((start + i) % proxies.size());
+			if (!tried.contains(candidate))
+				return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * The future handed out for one request, running its attempts one after another.
+	 */
+	private class Failover<T> extends BasicFuture<T> {
+		private final HttpAsyncClient client;
+		private final HttpAsyncRequestProducer requestProducer;
+		private final HttpAsyncResponseConsumer<T> responseConsumer;
+		private final HttpClientContext context;
+
+		// attempts run one after another, each started by the failure of the previous one on its dispatcher thread
+		private final Set<HttpHost> tried = Sets.newConcurrentHashSet();
+		private volatile HttpRequest request;
+		private volatile Future<T> exchange;
+
+		Failover(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+				 HttpAsyncResponseConsumer<T> responseConsumer, HttpClientContext context, FutureCallback<T> callback) {
+			super(callback);
+			this.client = client;
+			this.requestProducer = requestProducer;
+			this.responseConsumer = responseConsumer;
+			this.context = context;
+		}
+
+		void execute(HttpHost proxy) {
+			if (proxy != null)
+				tried.add(proxy);
+			final Attempt attempt = new Attempt(proxy);
+			exchange = client.execute(attempt.requestProducer, attempt.responseConsumer, context, new FutureCallback<T>() {
+				@Override
+				public void completed(T result) {
+					Failover.super.completed(result);
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					HttpHost next = attempt.failOver(ex);
+					if (next == null) {
+						Failover.super.failed(ex);
+						return;
+					}
+					retry(attempt.proxy, next);
+				}
+
+				@Override
+				public void cancelled() {
+					Failover.super.cancel(true);
+				}
+			});
+			// cancelled while the previous attempt failed over
+			if (isCancelled())
+				exchange.cancel(true);
+		}
+
+		private void retry(HttpHost proxy, HttpHost next) {
+			try {
+				requestProducer.resetRequest();
+			} catch (IOException e) {
+				abort(e);
+				return;
+			}
+
+			failovers.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("proxy {} rejected the tunnel for {}, failing over to {}", proxy, requestProducer.getTarget(), next);
+			context.setRequestConfig(RequestConfig.copy(context.getRequestConfig()).setProxy(next).build());
+			execute(next);
+		}
+
+		/**
+		 * Fails the request after the exchange let go of the producer and consumer.
+		 */
+		private void abort(Exception ex) {
+			requestProducer.failed(ex);
+			responseConsumer.failed(ex);
+			closeQuietly();
+			super.failed(ex);
+		}
+
+		private void closeQuietly() {
+			try {
+				requestProducer.close();
+			} catch (IOException ignore) {
+			}
+			try {
+				responseConsumer.close();
+			} catch (IOException ignore) {
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Future<T> running = exchange;
+			if (running != null)
+				running.cancel(mayInterruptIfRunning);
+			return cancelled;
+		}
+
+		/**
+		 * One exchange of the request. Its producer and consumer pass everything on, except for the failure and close
+		 * of an attempt that fails over.
+		 */
+		private class Attempt {
+			private final HttpHost proxy;
+			private final AttemptRequestProducer requestProducer = new AttemptRequestProducer(this);
+			private final AttemptResponseConsumer responseConsumer = new AttemptResponseConsumer(this);
+			private boolean decided;
+			private HttpHost next;
+
+			Attempt(HttpHost proxy) {
+				this.proxy = proxy;
+			}
+
+			/**
+			 * Decides once per attempt, the exchange reports its failure to the producer, the consumer and the callback.
+			 *
+			 * @return the proxy to fail over to, {@code null} to fail the request
+			 */
+			synchronized HttpHost failOver(Exception ex) {
+				if (!decided) {
+					decided = true;
+					next = canFailOver(ex) ? nextProxy(proxy, tried) : null;
+				}
+				return next;
+			}
+
+			synchronized boolean isFailingOver() {
+				return next != null;
+			}
+
+			private boolean canFailOver(Exception ex) {
+				HttpRequest generated = request;
+				return isProxyRejection(ex)
+						&& tried.size() < maxAttempts
+						&& !isDone()
+						&& generated != null
+						&& IDEMPOTENT_METHODS.contains(generated.getRequestLine().getMethod().toUpperCase(Locale.ROOT))
+						&& Failover.this.requestProducer.isRepeatable();
+			}
+		}
+
+		private class AttemptRequestProducer implements HttpAsyncRequestProducer {
+			private final Attempt attempt;
+
+			AttemptRequestProducer(Attempt attempt) {
+				this.attempt = attempt;
+			}
+
+			@Override
+			public HttpHost getTarget() {
+				return requestProducer.getTarget();
+			}
+
+			@Override
+			public HttpRequest generateRequest() throws IOException, HttpException {
+				HttpRequest generated = requestProducer.generateRequest();
+				request = generated;
+				return generated;
+			}
+
+			@Override
+			public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+				requestProducer.produceContent(encoder, ioctrl);
+			}
+
+			@Override
+			public void requestCompleted(HttpContext context) {
+				requestProducer.requestCompleted(context);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				if (attempt.failOver(ex) == null)
+					requestProducer.failed(ex);
+			}
+
+			@Override
+			public boolean isRepeatable() {
+				return requestProducer.isRepeatable();
+			}
+
+			@Override
+			public void resetRequest() throws IOException {
+				requestProducer.resetRequest();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (!attempt.isFailingOver())
+					requestProducer.close();
+			}
+		}
+
+		private class AttemptResponseConsumer implements HttpAsyncResponseConsumer<T> {
+			private final Attempt attempt;
+
+			AttemptResponseConsumer(Attempt attempt) {
+				this.attempt = attempt;
+			}
+
+			@Override
+			public void responseReceived(HttpResponse response) throws IOException, HttpException {
+				responseConsumer.responseReceived(response);
+			}
+
+			@Override
+			public void consumeContent(ContentDecoder decoder, IOControl ioctrl) throws IOException {
+				responseConsumer.consumeContent(decoder, ioctrl);
+			}
+
+			@Override
+			public void responseCompleted(HttpContext context) {
+				responseConsumer.responseCompleted(context);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				if (attempt.failOver(ex) == null)
+					responseConsumer.failed(ex);
+			}
+
+			@Override
+			public Exception getException() {
+				return responseConsumer.getException();
+			}
+
+			@Override
+			public T getResult() {
+				return responseConsumer.getResult();
+			}
+
+			@Override
+			public boolean isDone() {
+				return responseConsumer.isDone();
+			}
+
+			@Override
+			public boolean cancel() {
+				return responseConsumer.cancel();
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (!attempt.isFailingOver())
+					responseConsumer.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+
+import java.io.IOException;
+
+/**
+ * Rejection of a request by the {@link ProxyAdmissionController} because the queue of its proxy is full. The request
+ * was never sent and can be retried later or through another proxy.
+ * <p>
+ * Rejections come in bursts while a proxy is overloaded, so they carry no stack trace.
+ */
+public class ProxyOverloadedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final HttpHost proxy;
+
+	public ProxyOverloadedException(HttpHost proxy, String message) {
+		super(message + " (proxy " + proxy + ")");
+		this.proxy = proxy;
+	}
+
+	public HttpHost getProxy() {
+		return proxy;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
@@ -0,0 +1,133 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * {@link TimedSSLIOSessionStrategy} resuming TLS sessions of repeated tunnels to the same origin. Engines are created
+ * for the remote address of the session, which for SOCKS tunnels is the target's host and port instead of the proxy
+ * (see {@link SocksIOSession#getRemoteAddress()}), so the client session cache of the {@link SSLContext} finds the
+ * session of an earlier tunnel to the origin and the abbreviated handshake skips the key exchange and certificate
+ * verification.
+ * <p>
+ * The session cache belongs to the {@link SSLContext}: the size and timeout given here apply to every user of the
+ * context, pass a context of its own to keep them apart. The handshakes of this strategy are counted,
+ * {@link #getResumptionRate()} reports the share of resumed ones.
+ */
+public class ResumingSSLIOSessionStrategy extends TimedSSLIOSessionStrategy {
+	private static final String HANDSHAKE_STARTED_KEY = "demo.socks.tls-handshake-started";
+
+	private static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+	private static final long DEFAULT_SESSION_TIMEOUT_SECONDS = 3600;
+
+	private final AtomicLong handshakes = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong withoutOrigin = new AtomicLong();
+
+	/**
+	 * @param sessionCacheSize sessions kept in the client session cache of the context, least recently used ones are
+	 *                         dropped first
+	 * @param sessionTimeout   time a session can be resumed after it was established, at least a second
+	 */
+	public ResumingSSLIOSessionStrategy(SSLContext sslContext, String[] supportedProtocols, String[] supportedCipherSuites,
+										X509HostnameVerifier hostnameVerifier, int sessionCacheSize, long sessionTimeout,
+										TimeUnit unit) {
+		super(sslContext, supportedProtocols, supportedCipherSuites, hostnameVerifier);
+		checkArgument(sessionCacheSize > 0, "session cache size must be positive");
+		checkArgument(unit.toSeconds(sessionTimeout) > 0 && unit.toSeconds(sessionTimeout) <= Integer.MAX_VALUE,
+				"session timeout must be between a second and 2^31 - 1 seconds");
+
+		SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+		sessionContext.setSessionCacheSize(sessionCacheSize);
+		sessionContext.setSessionTimeout((int) unit.toSeconds(sessionTimeout));
+	}
+
+	/**
+	 * Keeps 1024 sessions for an hour.
+	 */
+	public ResumingSSLIOSessionStrategy(SSLContext sslContext, X509HostnameVerifier hostnameVerifier) {
+		this(sslContext, null, null, hostnameVerifier, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Same as {@link SSLIOSessionStrategy#getDefaultStrategy()} with a context of its own keeping 1024 sessions for an
+	 * hour.
+	 */
+	public static ResumingSSLIOSessionStrategy getDefaultStrategy() {
+		return new ResumingSSLIOSessionStrategy(SSLContexts.createDefault(), BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+	}
+
+	@Override
+	public SSLIOSession upgrade(HttpHost host, IOSession iosession) throws IOException {
+		// the engine is created for the remote address, without host and port the session cannot be found again
+		SocketAddress remoteAddress = iosession.getRemoteAddress();
+		if (!(remoteAddress instanceof InetSocketAddress) || ((InetSocketAddress) remoteAddress).getPort() <= 0)
+			withoutOrigin.incrementAndGet();
+
+		iosession.setAttribute(HANDSHAKE_STARTED_KEY, System.currentTimeMillis());
+		return super.upgrade(host, iosession);
+	}
+
+	@Override
+	protected void verifySession(HttpHost host, IOSession iosession, SSLSession sslsession) throws SSLException {
+		super.verifySession(host, iosession, sslsession);
+
+		handshakes.incrementAndGet();
+		// a resumed session keeps the creation time of the full handshake that established it
+		Object started = iosession.removeAttribute(HANDSHAKE_STARTED_KEY);
+		if (started instanceof Long && sslsession.getCreationTime() < (Long) started)
+			resumed.incrementAndGet();
+	}
+
+	/**
+	 * @return TLS handshakes completed so far
+	 */
+	public long getHandshakes() {
+		return handshakes.get();
+	}
+
+	/**
+	 * @return handshakes that resumed a cached session
+	 */
+	public long getResumedHandshakes() {
+		return resumed.get();
+	}
+
+	/**
+	 * @return the share of resumed handshakes, 0 before the first one
+	 */
+	public double getResumptionRate() {
+		long total = handshakes.get();
+		return total == 0 ? 0 : (double) resumed.get() / total;
+	}
+
+	/**
+	 * @return handshakes started for sessions without a remote host and port, which can never be resumed
+	 */
+	public long getHandshakesWithoutOrigin() {
+		return withoutOrigin.get();
+	}
+
+	@Override
+	public String toString() {
+		return "ResumingSSLIOSessionStrategy[handshakes=" + handshakes + ", resumed=" + resumed
+				+ ", withoutOrigin=" + withoutOrigin + "]";
+	}
+}
@@ -0,0 +1,330 @@
+package demo.socks;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.IOReactorStatus;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Runs several {@link SocksConnectingIOReactor}s side by side and pins every proxy (or route) to one of them. Each
+ * shard has its own session request queue and I/O dispatcher threads, so a slow or failing proxy only competes with
+ * the proxies of its own shard, and handshakes of different shards run on different cores. The reply and packet
+ * buffers of {@link SocksBufferPool} are kept per thread and thereby per shard.
+ * <p>
+ * Used like a single reactor, e.g. with a {@link org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager}:
+ * {@link #execute(IOEventDispatch)} runs the first shard on the calling thread and the others on threads of their
+ * own. Connects without a route attached are spread round robin.
+ */
+public class ShardedConnectingIOReactor implements ConnectingIOReactor {
+	private static final Logger log = LoggerFactory.getLogger(ShardedConnectingIOReactor.class);
+
+	private static final long SHUTDOWN_POLL_MILLIS = 10;
+
+	/**
+	 * What pins a connect to its shard.
+	 */
+	public enum Affinity {
+		/**
+		 * The proxy of the route, the target host for routes without a proxy.
+		 */
+		PROXY,
+		/**
+		 * The whole route, spreading one proxy over the shards by target.
+		 */
+		ROUTE
+	}
+
+	private final Shard[] shards;
+	private final Affinity affinity;
+	private final AtomicInteger nextUnrouted = new AtomicInteger();
+
+	/**
+	 * One shard with a single I/O dispatcher per available processor, pinned by proxy.
+	 *
+	 * @param config applied to every shard except for the I/O thread count
+	 */
+	public ShardedConnectingIOReactor(IOReactorConfig config, SocksEventListener eventListener) throws IOReactorException {
+		this(Runtime.getRuntime().availableProcessors(), IOReactorConfig.copy(config).setIoThreadCount(1).build(),
+				Affinity.PROXY, eventListener);
+	}
+
+	/**
+	 * @param shardConfig   applied to every shard, the I/O thread count is per shard
+	 * @param eventListener notified about connects to proxies, usually the one of the {@link SocksConfig}
+	 */
+	public ShardedConnectingIOReactor(int shards, IOReactorConfig shardConfig, Affinity affinity,
+									  SocksEventListener eventListener) throws IOReactorException {
+		checkArgument(shards > 0, "shards must be positive");
+		this.affinity = checkNotNull(affinity, "affinity");
+
+		this.shards = new Shard[shards];
+		try {
+			for (int i = 0; i < shards; i++)
+				this.shards[i] = new Shard(i, new SocksConnectingIOReactor(shardConfig, eventListener));
+		} catch (IOReactorException e) {
+			for (Shard shard : this.shards) {
+				if (shard != null)
+					shard.shutdownQuietly(1);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the shard connects of the route go to
+	 */
+	public Shard getShard(HttpRoute route) {
+		HttpHost proxy = route.getProxyHost();
+		int hash = affinity == Affinity.ROUTE ? route.hashCode()
+				: proxy != null ? proxy.hashCode() : route.getTargetHost().hashCode();
+		return shards[((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % shards.length];
+	}
+
+	public List<Shard> getShards() {
+		return ImmutableList.copyOf(shards);
+	}
+
+	@Override
+	public SessionRequest connect(SocketAddress remoteAddress, SocketAddress localAddress, Object attachment,
+								  SessionRequestCallback callback) {
+		// the connection pools attach the route
+		Shard shard = attachment instanceof HttpRoute
+				? getShard((HttpRoute) attachment)
+				: shards[(nextUnrouted.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+		return shard.connect(remoteAddress, localAddress, attachment, callback);
+	}
+
+	/**
+	 * Runs all shards until they are shut down. If one of them fails the others are shut down as well.
+	 */
+	@Override
+	public void execute(final IOEventDispatch eventDispatch) throws InterruptedIOException, IOReactorException {
+		checkNotNull(eventDispatch, "event dispatch");
+
+		final AtomicReference<Exception> failure = new AtomicReference<>();
+		ThreadFactory threadFactory = new ThreadFactoryBuilder()
+				.setNameFormat("socks-reactor-shard-%d")
+				.build();
+		Thread[] threads = new Thread[shards.length];
+		for (int i = 1; i < shards.length; i++) {
+			final Shard shard = shards[i];
+			threads[i] = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					executeShard(shard, eventDispatch, failure);
+				}
+			});
+			threads[i].start();
+		}
+
+		executeShard(shards[0], eventDispatch, failure);
+
+		try {
+			for (int i = 1; i < threads.length; i++)
+				threads[i].join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for the reactor shards to shut down");
+		}
+
+		Exception e = failure.get();
+		if (e instanceof InterruptedIOException)
+			throw (InterruptedIOException) e;
+		if (e instanceof IOReactorException)
+			throw (IOReactorException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+	}
+
+	private void executeShard(Shard shard, IOEventDispatch eventDispatch, AtomicReference<Exception> failure) {
+		try {
+			shard.reactor.execute(eventDispatch);
+		} catch (InterruptedIOException | IOReactorException | RuntimeException e) {
+			if (failure.compareAndSet(null, e) && log.isErrorEnabled())
+				log.error("reactor shard {} failed, shutting down all shards", shard.index, e);
+			for (Shard other : shards)
+				other.shutdownQuietly(1);
+		}
+	}
+
+	/**
+	 * @return the least advanced status of the shards, e.g. {@link IOReactorStatus#ACTIVE} until all shut down
+	 */
+	@Override
+	public IOReactorStatus getStatus() {
+		IOReactorStatus status = IOReactorStatus.SHUT_DOWN;
+		for (Shard shard : shards) {
+			IOReactorStatus shardStatus = shard.reactor.getStatus();
+			if (shardStatus.compareTo(status) < 0)
+				status = shardStatus;
+		}
+		return status;
+	}
+
+	@Override
+	public void shutdown() throws IOException {
+		shutdown(2000);
+	}
+
+	/**
+	 * Requests all shards to shut down at once, then waits for them together.
+	 *
+	 * @param waitMs 0 waits until all shards shut down
+	 */
+	@Override
+	public void shutdown(long waitMs) throws IOException {
+		for (Shard shard : shards)
+			shard.shutdownQuietly(1);
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+		try {
+			for (Shard shard : shards) {
+				while (shard.reactor.getStatus() != IOReactorStatus.SHUT_DOWN) {
+					if (waitMs > 0 && System.nanoTime() - deadline >= 0)
+						return;
+					Thread.sleep(SHUTDOWN_POLL_MILLIS);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ShardedConnectingIOReactor[affinity=").append(affinity).append(", shards=");
+		for (int i = 0; i < shards.length; i++)
+			sb.append(i == 0 ? "" : ", ").append(shards[i]);
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * One reactor of the sharded reactor with its connect counters.
+	 */
+	public static final class Shard {
+		private final int index;
+		private final SocksConnectingIOReactor reactor;
+		private final AtomicLong connects = new AtomicLong();
+		private final AtomicLong connectFailures = new AtomicLong();
+		private final AtomicInteger pendingConnects = new AtomicInteger();
+
+		private Shard(int index, SocksConnectingIOReactor reactor) {
+			this.index = index;
+			this.reactor = reactor;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public IOReactorStatus getStatus() {
+			return reactor.getStatus();
+		}
+
+		/**
+		 * @return connects requested so far
+		 */
+		public long getConnects() {
+			return connects.get();
+		}
+
+		/**
+		 * @return connects that failed or timed out
+		 */
+		public long getConnectFailures() {
+			return connectFailures.get();
+		}
+
+		/**
+		 * @return connects waiting in the session request queue or for the TCP handshake
+		 */
+		public int getPendingConnects() {
+			return pendingConnects.get();
+		}
+
+		private SessionRequest connect(SocketAddress remoteAddress, SocketAddress localAddress, Object attachment,
+									   SessionRequestCallback callback) {
+			connects.incrementAndGet();
+			pendingConnects.incrementAndGet();
+			return reactor.connect(remoteAddress, localAddress, attachment, new CountingSessionRequestCallback(callback));
+		}
+
+		private void shutdownQuietly(long waitMs) {
+			try {
+				reactor.shutdown(waitMs);
+			} catch (IOException e) {
+				if (log.isWarnEnabled())
+					log.warn("shutting down reactor shard {} failed", index, e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "[shard=" + index + ", status=" + reactor.getStatus() + ", connects=" + connects
+					+ ", connectFailures=" + connectFailures + ", pendingConnects=" + pendingConnects + "]";
+		}
+
+		/**
+		 * Passes the same session request on, the pools look it up by identity.
+		 */
+		private class CountingSessionRequestCallback implements SessionRequestCallback {
+			private final SessionRequestCallback delegate;
+
+			CountingSessionRequestCallback(SessionRequestCallback delegate) {
+				this.delegate = delegate;
+			}
+
+			@Override
+			public void completed(SessionRequest request) {
+				pendingConnects.decrementAndGet();
+				if (delegate != null)
+					delegate.completed(request);
+			}
+
+			@Override
+			public void failed(SessionRequest request) {
+				pendingConnects.decrementAndGet();
+				connectFailures.incrementAndGet();
+				if (delegate != null)
+					delegate.failed(request);
+			}
+
+			@Override
+			public void timeout(SessionRequest request) {
+				pendingConnects.decrementAndGet();
+				connectFailures.incrementAndGet();
+				if (delegate != null)
+					delegate.timeout(request);
+			}
+
+			@Override
+			public void cancelled(SessionRequest request) {
+				pendingConnects.decrementAndGet();
+				if (delegate != null)
+					delegate.cancelled(request);
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package demo.socks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Pool of equally sized heap buffers kept per thread. Every I/O dispatcher thread owns its sessions, so buffers
+ * acquired and released on a reactor thread never need to be synchronized.
+ */
+public class SocksBufferPool {
+	private final int bufferSize;
+	private final int maxPooled;
+
+	private final ThreadLocal<ArrayDeque<ByteBuffer>> pools = new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+		@Override
+		protected ArrayDeque<ByteBuffer> initialValue() {
+			return new ArrayDeque<>(maxPooled);
+		}
+	};
+
+	public SocksBufferPool(int bufferSize, int maxPooled) {
+		checkArgument(bufferSize > 0, "buffer size must be positive");
+		checkArgument(maxPooled >= 0, "max pooled buffers must not be negative");
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return a cleared buffer of {@link #getBufferSize()} bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = pools.get().pollFirst();
+		if (buffer == null)
+			return ByteBuffer.allocate(bufferSize);
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize)
+			return;
+
+		ArrayDeque<ByteBuffer> pool = pools.get();
+		if (pool.size() < maxPooled) {
+			buffer.clear();
+			pool.offerFirst(buffer);
+		}
+	}
+}
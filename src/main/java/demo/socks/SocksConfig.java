@@ -0,0 +1,234 @@
+package demo.socks;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableMap;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Immutable settings shared by the SOCKS session strategies, built with {@link #custom()}.
+ */
+public class SocksConfig {
+	// initialized before DEFAULT, whose builder picks it up
+	private static final SocksTracer LOADED_TRACER = SocksTracers.load();
+
+	public static final SocksConfig DEFAULT = custom().build();
+
+	private final String userName;
+	private final Predicate<HttpRoute> earlyDataRoutes;
+	private final SocksEventListener eventListener;
+	private final SocksTracer tracer;
+	private final Predicate<HttpRoute> localResolutionRoutes;
+	private final SocksDnsCache dnsCache;
+	private final int handshakeTimeout;
+	private final Map<HttpHost, Integer> handshakeTimeouts;
+	private final HashedTimerWheel timerWheel;
+
+	private SocksConfig(String userName, Predicate<HttpRoute> earlyDataRoutes, SocksEventListener eventListener,
+						SocksTracer tracer, Predicate<HttpRoute> localResolutionRoutes, SocksDnsCache dnsCache,
+						int handshakeTimeout, Map<HttpHost, Integer> handshakeTimeouts, HashedTimerWheel timerWheel) {
+		this.userName = userName;
+		this.earlyDataRoutes = earlyDataRoutes;
+		this.eventListener = eventListener;
+		this.tracer = tracer;
+		this.localResolutionRoutes = localResolutionRoutes;
+		this.dnsCache = dnsCache;
+		this.handshakeTimeout = handshakeTimeout;
+		this.handshakeTimeouts = handshakeTimeouts;
+		this.timerWheel = timerWheel;
+	}
+
+	public static Builder custom() {
+		return new Builder();
+	}
+
+	public static Builder copy(SocksConfig config) {
+		return new Builder()
+				.setUserName(config.userName)
+				.setEarlyDataRoutes(config.earlyDataRoutes)
+				.setEventListener(config.eventListener)
+				.setTracer(config.tracer)
+				.setLocalResolutionRoutes(config.localResolutionRoutes)
+				.setDnsCache(config.dnsCache)
+				.setHandshakeTimeout(config.handshakeTimeout)
+				.setHandshakeTimeouts(config.handshakeTimeouts)
+				.setTimerWheel(config.timerWheel);
+	}
+
+	/**
+	 * @return the SOCKS4 user id
+	 */
+	public String getUserName() {
+		return userName;
+	}
+
+	/**
+	 * @return whether the HTTP request may follow the SOCKS {@code CONNECT} request before the proxy replied, only
+	 * ever for plain HTTP targets. {@link SocksRoutePlanner} plans {@code https} targets as routes that are not
+	 * secure, the SOCKS session strategies add TLS themselves, so the scheme of the target decides.
+	 */
+	public boolean isEarlyData(HttpRoute route) {
+		return !route.isSecure() && !"https".equalsIgnoreCase(route.getTargetHost().getSchemeName())
+				&& earlyDataRoutes.apply(route);
+	}
+
+	public SocksEventListener getEventListener() {
+		return eventListener;
+	}
+
+	public SocksTracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * @return whether the client resolves the target host name instead of passing it on to the proxy
+	 */
+	public boolean isLocalResolution(HttpRoute route) {
+		return localResolutionRoutes.apply(route);
+	}
+
+	public SocksDnsCache getDnsCache() {
+		return dnsCache != null ? dnsCache : SocksDnsCache.getDefault();
+	}
+
+	/**
+	 * @return the handshake timeout in milliseconds for tunnels through the proxy, 0 if only the socket timeout
+	 * applies
+	 */
+	public int getHandshakeTimeout(HttpHost proxy) {
+		Integer timeout = handshakeTimeouts.get(proxy);
+		return timeout != null ? timeout : handshakeTimeout;
+	}
+
+	public HashedTimerWheel getTimerWheel() {
+		return timerWheel != null ? timerWheel : HashedTimerWheel.getDefault();
+	}
+
+	@Override
+	public String toString() {
+		return "[userName=" + userName + ", earlyDataRoutes=" + earlyDataRoutes + ", eventListener=" + eventListener + ", tracer=" + tracer
+				+ ", localResolutionRoutes=" + localResolutionRoutes + ", dnsCache=" + dnsCache
+				+ ", handshakeTimeout=" + handshakeTimeout + ", handshakeTimeouts=" + handshakeTimeouts + "]";
+	}
+
+	public static class Builder {
+		private String userName = "user";
+		private Predicate<HttpRoute> earlyDataRoutes = Predicates.alwaysFalse();
+		private SocksEventListener eventListener = SocksEventListener.NOOP;
+		private SocksTracer tracer = LOADED_TRACER;
+		private Predicate<HttpRoute> localResolutionRoutes = Predicates.alwaysFalse();
+		private SocksDnsCache dnsCache;
+		private int handshakeTimeout;
+		private final Map<HttpHost, Integer> handshakeTimeouts = new HashMap<>();
+		private HashedTimerWheel timerWheel;
+
+		/**
+		 * SOCKS4 user id sent with every {@code CONNECT} request, {@code user} by default.
+		 */
+		public Builder setUserName(String userName) {
+			this.userName = checkNotNull(userName, "user name");
+			return this;
+		}
+
+		/**
+		 * Routes for which the HTTP layer may write right after the SOCKS {@code CONNECT} request instead of waiting
+		 * for the proxy's reply, saving a round trip to the proxy on every new connection. Only meant for trusted
+		 * proxies: if the proxy rejects the tunnel the request bytes are discarded and the exchange fails with a
+		 * {@link SocksException}, the request never reached the target and can be retried. Secure routes never send
+		 * early data. None by default.
+		 */
+		public Builder setEarlyDataRoutes(Predicate<HttpRoute> earlyDataRoutes) {
+			this.earlyDataRoutes = checkNotNull(earlyDataRoutes, "early data routes");
+			return this;
+		}
+
+		/**
+		 * Notified about the outcome and the duration of every SOCKS handshake, e.g. a
+		 * {@link LatencyAwareProxySelector}. None by default.
+		 */
+		public Builder setEventListener(SocksEventListener eventListener) {
+			this.eventListener = checkNotNull(eventListener, "event listener");
+			return this;
+		}
+
+		/**
+		 * Traces the steps of every handshake. By default the first {@link SocksTracer} registered with the
+		 * {@link java.util.ServiceLoader}, e.g. the Java Flight Recorder events of the {@code jfr} jar, if there is none
+		 * handshakes are not traced.
+		 */
+		public Builder setTracer(SocksTracer tracer) {
+			this.tracer = checkNotNull(tracer, "tracer");
+			return this;
+		}
+
+		/**
+		 * Routes whose target host names are resolved by the client, e.g. for proxies that cannot resolve names or to
+		 * pin the address. The {@code CONNECT} request then carries an address: SOCKS4 instead of SOCKS4a, an IPv4 or
+		 * IPv6 address instead of a domain name with SOCKS5. SOCKS4 falls back to SOCKS4a for names without an IPv4
+		 * address. Names are looked up asynchronously in the {@link #setDnsCache DNS cache}, the handshake starts once
+		 * the address is known. None by default, the proxy resolves names.
+		 */
+		public Builder setLocalResolutionRoutes(Predicate<HttpRoute> localResolutionRoutes) {
+			this.localResolutionRoutes = checkNotNull(localResolutionRoutes, "local resolution routes");
+			return this;
+		}
+
+		/**
+		 * Cache for routes with local resolution, {@code null} for {@link SocksDnsCache#getDefault()}, which is
+		 * created only once a route resolves locally.
+		 */
+		public Builder setDnsCache(SocksDnsCache dnsCache) {
+			this.dnsCache = dnsCache;
+			return this;
+		}
+
+		/**
+		 * Fails a tunnel whose SOCKS handshake, including a local name lookup, did not complete within the timeout
+		 * with a {@link java.net.SocketTimeoutException}, so a proxy that accepts connections but never replies gives
+		 * the connection back to the pool right away instead of after the socket timeout. In milliseconds, 0 (the
+		 * default) leaves it to the socket timeout.
+		 */
+		public Builder setHandshakeTimeout(int handshakeTimeout) {
+			checkArgument(handshakeTimeout >= 0, "handshake timeout must not be negative");
+			this.handshakeTimeout = handshakeTimeout;
+			return this;
+		}
+
+		/**
+		 * Handshake timeout in milliseconds for tunnels through one proxy, overriding
+		 * {@link #setHandshakeTimeout(int)}.
+		 */
+		public Builder setHandshakeTimeout(HttpHost proxy, int handshakeTimeout) {
+			checkNotNull(proxy, "proxy");
+			checkArgument(handshakeTimeout >= 0, "handshake timeout must not be negative");
+			handshakeTimeouts.put(proxy, handshakeTimeout);
+			return this;
+		}
+
+		private Builder setHandshakeTimeouts(Map<HttpHost, Integer> handshakeTimeouts) {
+			this.handshakeTimeouts.putAll(handshakeTimeouts);
+			return this;
+		}
+
+		/**
+		 * Wheel tracking the handshake timeouts, {@code null} for {@link HashedTimerWheel#getDefault()}, which is
+		 * started only once a handshake timeout is set.
+		 */
+		public Builder setTimerWheel(HashedTimerWheel timerWheel) {
+			this.timerWheel = timerWheel;
+			return this;
+		}
+
+		public SocksConfig build() {
+			return new SocksConfig(userName, earlyDataRoutes, eventListener, tracer, localResolutionRoutes, dnsCache,
+					handshakeTimeout, ImmutableMap.copyOf(handshakeTimeouts), timerWheel);
+		}
+	}
+}
@@ -1,25 +1,102 @@
 package demo.socks;
 
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
 import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
 
+import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class SocksConnectingIOReactor extends DefaultConnectingIOReactor {
     private static final Logger log = LoggerFactory.getLogger(SocksConnectingIOReactor.class);
 
+	private final SocksEventListener eventListener;
+
     public SocksConnectingIOReactor(IOReactorConfig config) throws IOReactorException {
-        super(config);
+        this(config, SocksEventListener.NOOP);
     }
 
+	/**
+	 * @param eventListener notified about connects to proxies, usually the one of the {@link SocksConfig}
+	 */
+	public SocksConnectingIOReactor(IOReactorConfig config, SocksEventListener eventListener) throws IOReactorException {
+		super(config);
+		this.eventListener = checkNotNull(eventListener, "event listener");
+	}
+
     @Override
     public void execute(IOEventDispatch eventDispatch) throws InterruptedIOException, IOReactorException {
         if (log.isTraceEnabled())
             log.trace("proxying IOEventDispatch");
         super.execute(new SocksIOEventDispatchProxy(eventDispatch));
     }
+
+	@Override
+	public SessionRequest connect(SocketAddress remoteAddress, SocketAddress localAddress, Object attachment,
+								  SessionRequestCallback callback) {
+		// the connection pools attach the route
+		if (eventListener != SocksEventListener.NOOP && attachment instanceof HttpRoute) {
+			HttpHost proxy = ((HttpRoute) attachment).getProxyHost();
+			if (proxy != null)
+				callback = new TimedSessionRequestCallback(proxy, callback);
+		}
+		return super.connect(remoteAddress, localAddress, attachment, callback);
+	}
+
+	/**
+	 * Reports the connect to the listener and passes the same session request on, the pools look it up by identity.
+	 */
+	private class TimedSessionRequestCallback implements SessionRequestCallback {
+		private final HttpHost proxy;
+		private final SessionRequestCallback delegate;
+		private final long startNanos = System.nanoTime();
+
+		TimedSessionRequestCallback(HttpHost proxy, SessionRequestCallback delegate) {
+			this.proxy = proxy;
+			this.delegate = delegate;
+		}
+
+		@Override
+		public void completed(SessionRequest request) {
+			eventListener.connected(proxy, System.nanoTime() - startNanos);
+			if (delegate != null)
+				delegate.completed(request);
+		}
+
+		@Override
+		public void failed(SessionRequest request) {
+			IOException ex = request.getException() != null
+					? request.getException()
+					: new IOException("connect to proxy " + proxy + " failed");
+			eventListener.connectFailed(proxy, System.nanoTime() - startNanos, ex);
+			if (delegate != null)
+				delegate.failed(request);
+		}
+
+		@Override
+		public void timeout(SessionRequest request) {
+			eventListener.connectFailed(proxy, System.nanoTime() - startNanos,
+					new SocketTimeoutException("connect to proxy " + proxy + " timed out"));
+			if (delegate != null)
+				delegate.timeout(request);
+		}
+
+		@Override
+		public void cancelled(SessionRequest request) {
+			// not the proxy's fault, e.g. the pool was shut down
+			if (delegate != null)
+				delegate.cancelled(request);
+		}
+	}
 }
@@ -0,0 +1,242 @@
+package demo.socks;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Resolves target host names for tunnels with local resolution, see
+ * {@link SocksConfig.Builder#setLocalResolutionRoutes}. Lookups run on resolver threads of their own, never on the
+ * I/O dispatchers: a session finding no fresh entry waits for the callback of {@link #resolve} without blocking.
+ * <p>
+ * Concurrent lookups of the same name are coalesced. Found addresses are kept for the positive time to live, failed
+ * lookups for the negative one, by default the JVM's {@code networkaddress.cache.ttl} and
+ * {@code networkaddress.cache.negative.ttl}. Once the cache is full the least recently used names are evicted.
+ */
+public class SocksDnsCache implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SocksDnsCache.class);
+
+	private static final int DEFAULT_MAX_SIZE = 4096;
+	private static final int DEFAULT_RESOLVER_THREADS = 2;
+	// the JVM defaults without a security manager
+	private static final long DEFAULT_TTL_SECONDS = 30;
+	private static final long DEFAULT_NEGATIVE_TTL_SECONDS = 10;
+	// what "cache forever" amounts to here
+	private static final long MAX_TTL_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+	private final long ttlNanos;
+	private final long negativeTtlNanos;
+	private final Cache<String, Entry> entries;
+	private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<>();
+	private final ExecutorService resolver;
+
+	/**
+	 * Caches up to 4096 names for the JVM's DNS cache times, resolving on 2 threads.
+	 */
+	public SocksDnsCache() {
+		this(DEFAULT_MAX_SIZE, jvmTtl("networkaddress.cache.ttl", "sun.net.inetaddr.ttl", DEFAULT_TTL_SECONDS),
+				jvmTtl("networkaddress.cache.negative.ttl", "sun.net.inetaddr.negative.ttl", DEFAULT_NEGATIVE_TTL_SECONDS),
+				TimeUnit.SECONDS, DEFAULT_RESOLVER_THREADS);
+	}
+
+	/**
+	 * @param ttl         how long found addresses are used, 0 resolves every tunnel
+	 * @param negativeTtl how long a name that could not be resolved fails right away
+	 */
+	public SocksDnsCache(int maxSize, long ttl, long negativeTtl, TimeUnit unit, int resolverThreads) {
+		checkArgument(maxSize > 0, "max size must be positive");
+		checkArgument(ttl >= 0 && negativeTtl >= 0, "time to live must not be negative");
+		checkArgument(resolverThreads > 0, "resolver threads must be positive");
+
+		this.ttlNanos = unit.toNanos(ttl);
+		this.negativeTtlNanos = unit.toNanos(negativeTtl);
+		this.entries = CacheBuilder.newBuilder()
+				.maximumSize(maxSize)
+				.expireAfterWrite(Math.max(ttlNanos, negativeTtlNanos), TimeUnit.NANOSECONDS)
+				.build();
+		this.resolver = Executors.newFixedThreadPool(resolverThreads, new ThreadFactoryBuilder()
+				.setNameFormat("socks-dns-%d")
+				.setDaemon(true)
+				.build());
+	}
+
+	/**
+	 * @return the cache shared by configs without one of their own, created on first use and never closed
+	 */
+	public static SocksDnsCache getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+
+	/**
+	 * @return the addresses of the host, {@code null} if there is no fresh entry
+	 * @throws UnknownHostException if the last lookup of the host failed and that is still fresh
+	 */
+	public List<InetAddress> getIfPresent(String host) throws UnknownHostException {
+		Entry entry = entries.getIfPresent(host);
+		if (entry == null || System.nanoTime() - entry.expiresAt >= 0)
+			return null;
+		if (entry.failure != null)
+			throw new UnknownHostException(entry.failure);
+		return entry.addresses;
+	}
+
+	/**
+	 * Looks the host up on a resolver thread, or joins the lookup already running. The callback is called on a
+	 * resolver thread, or right away if the lookup just completed, and fails with an {@link UnknownHostException}.
+	 */
+	public void resolve(String host, FutureCallback<List<InetAddress>> callback) {
+		Lookup lookup = lookups.get(host);
+		if (lookup == null) {
+			Lookup created = new Lookup(host);
+			lookup = lookups.putIfAbsent(host, created);
+			if (lookup == null) {
+				lookup = created;
+				lookup.add(callback);
+				try {
+					resolver.execute(lookup);
+				} catch (RejectedExecutionException e) {
+					lookups.remove(host, lookup);
+					lookup.complete(new Entry(null, "dns cache closed, " + host + " not resolved", 0));
+				}
+				return;
+			}
+		}
+		lookup.add(callback);
+	}
+
+	/**
+	 * Drops all entries, e.g. after the network changed.
+	 */
+	public void invalidateAll() {
+		entries.invalidateAll();
+	}
+
+	/**
+	 * Stops the resolver threads, lookups still queued fail.
+	 */
+	@Override
+	public void close() {
+		for (Runnable queued : resolver.shutdownNow())
+			((Lookup) queued).complete(new Entry(null, "dns cache closed", 0));
+	}
+
+	@Override
+	public String toString() {
+		return "SocksDnsCache[size=" + entries.size() + ", ttl=" + TimeUnit.NANOSECONDS.toSeconds(ttlNanos)
+				+ " s, negativeTtl=" + TimeUnit.NANOSECONDS.toSeconds(negativeTtlNanos) + " s]";
+	}
+
+	private static long jvmTtl(String securityProperty, String systemProperty, long defaultSeconds) {
+		String value = Security.getProperty(securityProperty);
+		if (value == null)
+			value = System.getProperty(systemProperty);
+		if (value == null)
+			return defaultSeconds;
+		try {
+			long seconds = Long.parseLong(value.trim());
+			return seconds < 0 ? MAX_TTL_SECONDS : Math.min(seconds, MAX_TTL_SECONDS);
+		} catch (NumberFormatException e) {
+			return defaultSeconds;
+		}
+	}
+
+	private static class DefaultHolder {
+		static final SocksDnsCache INSTANCE = new SocksDnsCache();
+	}
+
+	private static class Entry {
+		final List<InetAddress> addresses;
+		// message of the UnknownHostException, every caller gets an exception of its own
+		final String failure;
+		final long expiresAt;
+
+		Entry(List<InetAddress> addresses, String failure, long ttlNanos) {
+			this.addresses = addresses;
+			this.failure = failure;
+			this.expiresAt = System.nanoTime() + ttlNanos;
+		}
+	}
+
+	private class Lookup implements Runnable {
+		private final String host;
+		private List<FutureCallback<List<InetAddress>>> callbacks = new ArrayList<>(1);
+		private Entry result;
+
+		Lookup(String host) {
+			this.host = host;
+		}
+
+		@Override
+		public void run() {
+			Entry entry;
+			try {
+				entry = new Entry(ImmutableList.copyOf(InetAddress.getAllByName(host)), null, ttlNanos);
+			} catch (UnknownHostException e) {
+				if (log.isDebugEnabled())
+					log.debug("resolving {} failed", host, e);
+				entry = new Entry(null, e.getMessage() != null ? e.getMessage() : host, negativeTtlNanos);
+			}
+
+			// cached before the lookup is gone, so no caller misses both
+			entries.put(host, entry);
+			lookups.remove(host, this);
+			complete(entry);
+		}
+
+		void add(FutureCallback<List<InetAddress>> callback) {
+			Entry entry;
+			synchronized (this) {
+				entry = result;
+				if (entry == null) {
+					callbacks.add(callback);
+					return;
+				}
+			}
+			notify(callback, entry);
+		}
+
+		void complete(Entry entry) {
+			List<FutureCallback<List<InetAddress>>> completed;
+			synchronized (this) {
+				if (result != null)
+					return;
+				result = entry;
+				completed = callbacks;
+				callbacks = null;
+			}
+			for (FutureCallback<List<InetAddress>> callback : completed)
+				notify(callback, entry);
+		}
+
+		private void notify(FutureCallback<List<InetAddress>> callback, Entry entry) {
+			try {
+				if (entry.failure != null)
+					callback.failed(new UnknownHostException(entry.failure));
+				else
+					callback.completed(entry.addresses);
+			} catch (RuntimeException e) {
+				if (log.isWarnEnabled())
+					log.warn("dns callback for {} failed", host, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+
+import java.io.IOException;
+
+/**
+ * Notified about connects to proxies and SOCKS handshakes, set with {@link SocksConfig.Builder#setEventListener} and
+ * {@link SocksConnectingIOReactor}. Called on the I/O dispatcher threads (the first handshake step on whichever
+ * thread upgrades the connection), implementations must neither block nor throw.
+ * <p>
+ * Every tunnel reports at most one handshake outcome. Connects are reported for any route through a proxy, handshakes
+ * only for SOCKS proxies, TLS on top of a tunnel only with a {@link TimedSSLIOSessionStrategy}, versions only with a
+ * {@link SocksNegotiatingIOSessionStrategy}. Several listeners are
+ * combined with {@link SocksEventListeners#compose(SocksEventListener...)}.
+ */
+public interface SocksEventListener {
+	SocksEventListener NOOP = new SocksEventListener() {
+		@Override
+		public void connected(HttpHost proxy, long nanos) {
+		}
+
+		@Override
+		public void connectFailed(HttpHost proxy, long nanos, IOException ex) {
+		}
+
+		@Override
+		public void handshakeCompleted(HttpHost proxy, long nanos) {
+		}
+
+		@Override
+		public void handshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+		}
+
+		@Override
+		public void tlsHandshakeCompleted(HttpHost proxy, long nanos) {
+		}
+
+		@Override
+		public void tlsHandshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+		}
+
+		@Override
+		public void versionNegotiated(HttpHost proxy, SocksVersion version, int method) {
+		}
+
+		@Override
+		public void versionDowngraded(HttpHost proxy, SocksVersion from, SocksVersion to) {
+		}
+
+		@Override
+		public String toString() {
+			return "NOOP";
+		}
+	};
+
+	/**
+	 * @param nanos time from requesting the connection to the proxy until it was established
+	 */
+	void connected(HttpHost proxy, long nanos);
+
+	/**
+	 * @param ex the connect failure, a {@link java.net.SocketTimeoutException} if it timed out
+	 */
+	void connectFailed(HttpHost proxy, long nanos, IOException ex);
+
+	/**
+	 * @param nanos time from sending the first SOCKS request until the tunnel was established
+	 */
+	void handshakeCompleted(HttpHost proxy, long nanos);
+
+	/**
+	 * @param nanos time from sending the first SOCKS request until the failure, 0 if it failed before, e.g. resolving
+	 *              the target
+	 * @param ex    a {@link SocksException} if the proxy rejected the tunnel, otherwise e.g. the proxy closed the
+	 *              connection or the handshake timed out
+	 */
+	void handshakeFailed(HttpHost proxy, long nanos, Exception ex);
+
+	/**
+	 * @param nanos time from the established tunnel until the TLS session to the target was verified
+	 */
+	void tlsHandshakeCompleted(HttpHost proxy, long nanos);
+
+	/**
+	 * Only reports a TLS session failing verification, e.g. a host name mismatch; other TLS failures reach the
+	 * exchange only.
+	 */
+	void tlsHandshakeFailed(HttpHost proxy, long nanos, Exception ex);
+
+	/**
+	 * Reported by {@link SocksNegotiatingIOSessionStrategy} once it learned the version of the proxy, tunnels go
+	 * straight to its handshake until it expires.
+	 *
+	 * @param method the SOCKS5 authentication method the proxy selected, -1 for SOCKS4
+	 */
+	void versionNegotiated(HttpHost proxy, SocksVersion version, int method);
+
+	/**
+	 * Reported by {@link SocksNegotiatingIOSessionStrategy} when a tunnel found the proxy not to speak a version, the
+	 * next tunnel tries the fallback.
+	 */
+	void versionDowngraded(HttpHost proxy, SocksVersion from, SocksVersion to);
+}
@@ -0,0 +1,83 @@
+package demo.socks;
+
+import com.google.common.collect.ImmutableList;
+import org.apache.http.HttpHost;
+
+import java.io.IOException;
+import java.util.List;
+
+public final class SocksEventListeners {
+	private SocksEventListeners() {
+	}
+
+	/**
+	 * @return a listener notifying the given ones in order
+	 */
+	public static SocksEventListener compose(SocksEventListener... listeners) {
+		if (listeners.length == 1)
+			return listeners[0];
+		return new CompositeSocksEventListener(ImmutableList.copyOf(listeners));
+	}
+
+	private static class CompositeSocksEventListener implements SocksEventListener {
+		// an array, iterating it does not allocate on the I/O dispatcher threads
+		private final SocksEventListener[] listeners;
+
+		CompositeSocksEventListener(List<SocksEventListener> listeners) {
+			this.listeners = listeners.toArray(new SocksEventListener[listeners.size()]);
+		}
+
+		@Override
+		public void connected(HttpHost proxy, long nanos) {
+			for (SocksEventListener listener : listeners)
+				listener.connected(proxy, nanos);
+		}
+
+		@Override
+		public void connectFailed(HttpHost proxy, long nanos, IOException ex) {
+			for (SocksEventListener listener : listeners)
+				listener.connectFailed(proxy, nanos, ex);
+		}
+
+		@Override
+		public void handshakeCompleted(HttpHost proxy, long nanos) {
+			for (SocksEventListener listener : listeners)
+				listener.handshakeCompleted(proxy, nanos);
+		}
+
+		@Override
+		public void handshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+			for (SocksEventListener listener : listeners)
+				listener.handshakeFailed(proxy, nanos, ex);
+		}
+
+		@Override
+		public void tlsHandshakeCompleted(HttpHost proxy, long nanos) {
+			for (SocksEventListener listener : listeners)
+				listener.tlsHandshakeCompleted(proxy, nanos);
+		}
+
+		@Override
+		public void tlsHandshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+			for (SocksEventListener listener : listeners)
+				listener.tlsHandshakeFailed(proxy, nanos, ex);
+		}
+
+		@Override
+		public void versionNegotiated(HttpHost proxy, SocksVersion version, int method) {
+			for (SocksEventListener listener : listeners)
+				listener.versionNegotiated(proxy, version, method);
+		}
+
+		@Override
+		public void versionDowngraded(HttpHost proxy, SocksVersion from, SocksVersion to) {
+			for (SocksEventListener listener : listeners)
+				listener.versionDowngraded(proxy, from, to);
+		}
+
+		@Override
+		public String toString() {
+			return ImmutableList.copyOf(listeners).toString();
+		}
+	}
+}
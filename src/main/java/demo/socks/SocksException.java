@@ -0,0 +1,150 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Failure reported by a SOCKS proxy in one of its replies. The proxy did not open the tunnel, so nothing reached the
+ * target: the request can be retried, also if it was sent as early data.
+ * <p>
+ * A proxy that is rejecting tunnels does so for every request, so instances are cached per proxy, version and reply
+ * code and carry no stack trace. They are shared between requests and must not be modified: their cause is fixed to
+ * none, and since {@link IOException} has no constructor disabling suppression, nothing may add suppressed exceptions
+ * to them (e.g. a try-with-resources block whose resource fails to close).
+ * <p>
+ * The reply code is classified by its {@link Scope} and whether the proxy may grant the same tunnel later, see
+ * {@link #getScope()} and {@link #isTransient()}. Codes a proxy reports for any failure it does not distinguish, like
+ * the SOCKS4 {@code 91}, count as transient failures of the proxy.
+ */
+public class SocksException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * What a rejection is about, i.e. whether another proxy might open the tunnel.
+	 */
+	public enum Scope {
+		/**
+		 * The proxy failed or refuses the tunnel, another proxy might open it.
+		 */
+		PROXY,
+		/**
+		 * The proxy works but could not reach the target, another proxy most likely cannot either.
+		 */
+		TARGET
+	}
+
+	private static final int MAX_PROXIES = 1024;
+	private static final ConcurrentMap<HttpHost, AtomicReferenceArray<SocksException>> cache = new ConcurrentHashMap<>();
+
+	private final HttpHost proxy;
+	private final int version;
+	private final int replyCode;
+	private final Scope scope;
+	private final boolean transientFailure;
+
+	protected SocksException(HttpHost proxy, int version, int replyCode, String message) {
+		super(message + " (proxy " + proxy + ", socks" + version + " reply code " + replyCode + ")");
+		this.proxy = proxy;
+		this.version = version;
+		this.replyCode = replyCode;
+		this.scope = scopeOf(version, replyCode);
+		this.transientFailure = isTransient(version, replyCode);
+		// a shared instance must not take a cause, initCause(..) fails from now on
+		initCause(null);
+	}
+
+	private static Scope scopeOf(int version, int replyCode) {
+		if (version == 5) {
+			switch (replyCode) {
+				case 0x04: // host unreachable
+				case 0x05: // connection refused
+				case 0x06: // TTL expired
+					return Scope.TARGET;
+			}
+		}
+		// SOCKS4 does not tell a failing target from a refusing proxy
+		return Scope.PROXY;
+	}
+
+	private static boolean isTransient(int version, int replyCode) {
+		if (version == 4)
+			return replyCode == 91;
+		switch (replyCode) {
+			case 0x01: // general failure
+			case 0x03: // network unreachable
+			case 0x04: // host unreachable
+			case 0x05: // connection refused
+			case 0x06: // TTL expired
+				return true;
+			default:
+				// rulesets, unsupported commands or address types, identd and authentication failures
+				return false;
+		}
+	}
+
+	/**
+	 * @param version   4 or 5
+	 * @param replyCode the unsigned reply code byte
+	 * @param message   used when the exception is created, subsequent calls for the same proxy, version and code
+	 *                  return the cached instance
+	 */
+	public static SocksException of(HttpHost proxy, int version, int replyCode, String message) {
+		checkArgument(version == 4 || version == 5, "unknown socks version %s", version);
+
+		AtomicReferenceArray<SocksException> byCode = cache.get(proxy);
+		if (byCode == null) {
+			// proxies are expected to be a small set, start over in the unlikely case they are not
+			if (cache.size() >= MAX_PROXIES)
+				cache.clear();
+
+			AtomicReferenceArray<SocksException> created = new AtomicReferenceArray<>(2 * 256);
+			byCode = cache.putIfAbsent(proxy, created);
+			if (byCode == null)
+				byCode = created;
+		}
+
+		int code = replyCode & 0xff;
+		int index = (version - 4) * 256 + code;
+		SocksException exception = byCode.get(index);
+		if (exception == null) {
+			byCode.compareAndSet(index, null, new SocksException(proxy, version, code, message));
+			exception = byCode.get(index);
+		}
+		return exception;
+	}
+
+	public HttpHost getProxy() {
+		return proxy;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getReplyCode() {
+		return replyCode;
+	}
+
+	public Scope getScope() {
+		return scope;
+	}
+
+	/**
+	 * @return {@code true} if the same tunnel may be granted on a later attempt, {@code false} if the proxy refuses it
+	 * for good, e.g. by its ruleset or for failed authentication
+	 */
+	public boolean isTransient() {
+		return transientFailure;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+}
@@ -1,16 +1,14 @@
 package demo.socks;
 
 import com.google.common.base.VerifyException;
-import demo.socks.v4.Socks4IOSession;
-import org.apache.http.impl.nio.DefaultNHttpClientConnection;
-import org.apache.http.nio.NHttpClientEventHandler;
+import org.apache.http.nio.protocol.HttpAsyncClientExchangeHandler;
+import org.apache.http.nio.protocol.HttpAsyncRequestExecutor;
 import org.apache.http.nio.reactor.IOEventDispatch;
 import org.apache.http.nio.reactor.IOSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 
 public class SocksIOEventDispatchProxy implements IOEventDispatch {
     private static final Logger log = LoggerFactory.getLogger(SocksIOEventDispatchProxy.class);
@@ -40,7 +38,7 @@ public class SocksIOEventDispatchProxy implements IOEventDispatch {
 	@Override
 	public void outputReady(IOSession session) {
 		try {
-			if (trySocksInitialize(session))
+			if (trySocksInitialize(session) || isEarlyDataWritable(session))
 				delegate.outputReady(session);
 		} catch (RuntimeException e) {
 			session.shutdown();
@@ -53,9 +51,9 @@ public class SocksIOEventDispatchProxy implements IOEventDispatch {
 		try {
 			delegate.timeout(session);
 
-			final Socks4IOSession socks4IOSession = (Socks4IOSession) session.getAttribute(Socks4IOSession.SESSION_KEY);
-			if (socks4IOSession != null)
-				socks4IOSession.shutdown();
+			final SocksIOSession socksIOSession = (SocksIOSession) session.getAttribute(SocksIOSession.SESSION_KEY);
+			if (socksIOSession != null)
+				socksIOSession.shutdown();
 		} catch (RuntimeException e) {
 			session.shutdown();
 			throw e;
@@ -68,49 +66,42 @@ public class SocksIOEventDispatchProxy implements IOEventDispatch {
 	}
 
 	private boolean trySocksInitialize(IOSession session) {
-		Socks4IOSession socks4IOSession = (Socks4IOSession) session.getAttribute(Socks4IOSession.SESSION_KEY);
-		if (socks4IOSession != null) {
+		// only set while the handshake is running, established tunnels and plain sessions go straight to the delegate
+		SocksIOSession socksIOSession = (SocksIOSession) session.getAttribute(SocksIOSession.SESSION_KEY);
+		if (socksIOSession != null) {
 			try {
-				if (!socks4IOSession.isInitialized())
-					return socks4IOSession.initialize();
+				if (!socksIOSession.isInitialized())
+					return socksIOSession.initialize();
 			} catch (IOException | VerifyException e) {
-				if (log.isErrorEnabled())
-					log.error("error receiving socks response", e);
-				onException(socks4IOSession, e);
-				socks4IOSession.shutdown();
+				// the exchange gets the exception, a rejecting proxy should not flood the log
+				if (log.isDebugEnabled())
+					log.debug("error receiving socks response", e);
+				onException(socksIOSession, e);
+				return false;
 			}
 		}
 		return true;
 	}
 
-	private void onException(IOSession session, Exception e) {
-		NHttpClientEventHandler handler = unwrapClientEventHandler(session);
-
-		if (handler != null) {
-			DefaultNHttpClientConnection conn = unwrapClientConnection(session);
-			handler.exception(conn, e);
-			session.shutdown();
-		} else {
-			if (log.isWarnEnabled())
-				log.warn("provoking session closed exception since NHttpClientEventHandler couldn't be unwrapped");
-			session.close();
-			delegate.inputReady(session);
-		}
+	private boolean isEarlyDataWritable(IOSession session) {
+		// a failed handshake shut the session down and failed the exchange, nothing may be written anymore
+		if (session.getStatus() >= IOSession.CLOSING)
+			return false;
+		SocksIOSession socksIOSession = (SocksIOSession) session.getAttribute(SocksIOSession.SESSION_KEY);
+		return socksIOSession != null && socksIOSession.isEarlyDataWritable();
 	}
 
-	private DefaultNHttpClientConnection unwrapClientConnection(IOSession session) {
-		return (DefaultNHttpClientConnection) session.getAttribute(IOEventDispatch.CONNECTION_KEY);
-	}
+	/**
+	 * Fails the exchange waiting for the tunnel right away, the connection is shut down first so the exchange does not
+	 * get to reuse it.
+	 */
+	private void onException(IOSession session, Exception e) {
+		HttpAsyncClientExchangeHandler handler = (HttpAsyncClientExchangeHandler) session.getAttribute(HttpAsyncRequestExecutor.HTTP_HANDLER);
+		session.shutdown();
 
-	private NHttpClientEventHandler unwrapClientEventHandler(IOSession session) {
-		try {
-			Field handlerField = delegate.getClass().getDeclaredField("handler");
-			handlerField.setAccessible(true);
-			return (NHttpClientEventHandler) handlerField.get(delegate);
-		} catch (NoSuchFieldException | IllegalAccessException e) {
-			if (log.isErrorEnabled())
-				log.error("failed to unwrap NHttpClientEventHandler from session {}", session, e);
-			return null;
-		}
+		if (handler != null)
+			handler.failed(e);
+		else if (log.isWarnEnabled())
+			log.warn("no exchange waiting for socks session {}", session);
 	}
 }
@@ -0,0 +1,748 @@
+package demo.socks;
+
+import com.google.common.base.VerifyException;
+import com.google.common.net.InetAddresses;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpHost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.reactor.EventMask;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.SessionBufferStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Wraps the session to the SOCKS proxy and runs the handshake of one protocol version on top of it. Subclasses
+ * supply the packets to {@link #send(byte[])} and verify the replies they {@link #expect(int)}, this class takes care
+ * of the non-blocking I/O and of keeping the layers above out of the way until the tunnel is established.
+ */
+public abstract class SocksIOSession implements IOSession {
+	private static final Logger log = LoggerFactory.getLogger(SocksIOSession.class);
+
+	public final static String SESSION_KEY = "http.session.socks";
+
+	/**
+	 * Session attribute holding a {@code FutureCallback<SocksIOSession>} to notify once the handshake completed or
+	 * failed. It has to be set before the connection is upgraded, the session takes it over.
+	 */
+	public final static String HANDSHAKE_CALLBACK_KEY = "http.session.socks.handshake-callback";
+
+	private static final SocksBufferPool PACKET_BUFFERS = new SocksBufferPool(512, 1);
+
+	protected final IOSession delegate;
+	protected final HttpHost targetHost;
+	protected final HttpHost proxyHost;
+
+	private final boolean earlyData;
+	private final SocksDnsCache dnsCache;
+	// the target host as the CONNECT request carries it, its address with local resolution
+	private HttpHost connectTarget;
+	private List<InetAddress> resolvedAddresses;
+	private IOException resolutionFailure;
+	private final int handshakeTimeout;
+	private final HashedTimerWheel timerWheel;
+	private HashedTimerWheel.Timeout deadline;
+	private volatile boolean deadlineExpired;
+	private final SocksEventListener eventListener;
+	private volatile long handshakeStartedNanos;
+	private volatile long establishedNanos;
+	private final SocksBufferPool replyBuffers;
+	private ByteBuffer in;
+	private int expected;
+	private boolean replyExpected;
+	private int repliesReceived;
+	private boolean closedBeforeReply;
+	private boolean versionRejected;
+
+	private int status = IOSession.ACTIVE;
+
+	/*
+	Handshake states:
+
+		NEW -> [RESOLVING] -> SENDING <-> AWAITING_REPLY -> ESTABLISHED
+		                        |              |
+		                        +--------------+-> CLOSED (end of stream, rejected or any other failure)
+
+	RESOLVING is only passed with local resolution of a name missing from the DNS cache: the underlying session
+	listens for nothing until the lookup on a resolver thread completed and asks for OP_WRITE to carry on.
+
+	A handshake timeout starts with the handshake and is cancelled by its outcome. If it expires first the timer
+	thread only flags it and asks for OP_READ and OP_WRITE, the handshake then fails on the I/O dispatcher thread like
+	on any other error.
+
+	While sending the underlying session only listens for OP_WRITE, while awaiting a reply only for OP_READ. A
+	protocol with several round trips (SOCKS5 with authentication) goes back to SENDING after each reply. Interest
+	ops requested by the layers above (HTTP, SSL) are kept in appEventMask and put back once the tunnel is
+	established. Until then channel() hands out a channel that neither reads nor writes so nothing can interleave
+	with the SOCKS packets.
+
+	Both directions are non-blocking: under socket buffer pressure a request is flushed over several writable events
+	and a reply is gathered over several reads. Replies are never read past the expected length, anything after
+	them belongs to the layers above.
+
+	With early data, once the CONNECT request is flushed the layers above may write while the final reply is
+	outstanding: channel() writes through and OP_WRITE requested by them is passed on in addition to OP_READ.
+	 */
+	private enum HandshakeState {
+		NEW, RESOLVING, SENDING, AWAITING_REPLY, ESTABLISHED, CLOSED
+	}
+
+	private volatile HandshakeState state = HandshakeState.NEW;
+	private int appEventMask;
+	private final ByteChannel handshakeChannel = new HandshakeChannel();
+
+	// pending outgoing handshake bytes, usually shared with a template and never modified
+	private byte[] out;
+	private int outPosition;
+	private boolean connectPending;
+	private volatile boolean connectSent;
+
+	private final FutureCallback<SocksIOSession> handshakeCallback;
+	private final SocksTracer.Trace trace;
+	private boolean outcomeReported;
+
+	@SuppressWarnings("unchecked")
+	protected SocksIOSession(IOSession delegate, SocksBufferPool replyBuffers, SocksConfig config) {
+		HttpRoute route = (HttpRoute) delegate.getAttribute(IOSession.ATTACHMENT_KEY);
+
+		this.delegate = delegate;
+		this.targetHost = route.getTargetHost();
+		this.proxyHost = route.getProxyHost();
+		this.earlyData = config.isEarlyData(route);
+		this.dnsCache = config.isLocalResolution(route) && !isAddress(targetHost) ? config.getDnsCache() : null;
+		this.connectTarget = targetHost;
+		this.handshakeTimeout = config.getHandshakeTimeout(proxyHost);
+		this.timerWheel = handshakeTimeout > 0 ? config.getTimerWheel() : null;
+		this.eventListener = config.getEventListener();
+		this.replyBuffers = replyBuffers;
+		this.handshakeCallback = (FutureCallback<SocksIOSession>) delegate.removeAttribute(HANDSHAKE_CALLBACK_KEY);
+		this.trace = config.getTracer().start(route);
+
+		delegate.setAttribute(SESSION_KEY, this);
+	}
+
+	/**
+	 * Sends the first request, calls {@link #send(byte[])} or {@link #sendConnect(byte[])} and {@link #expect(int)}.
+	 */
+	protected abstract void start() throws IOException;
+
+	/**
+	 * @return the target host to encode into the {@code CONNECT} request, with local resolution an address literal
+	 */
+	protected HttpHost getConnectTarget() {
+		return connectTarget;
+	}
+
+	/**
+	 * Picks the address to connect to out of the locally resolved ones.
+	 *
+	 * @return {@code null} if the protocol supports none of them, the proxy resolves the name then
+	 */
+	protected InetAddress selectAddress(List<InetAddress> addresses) {
+		return addresses.get(0);
+	}
+
+	/**
+	 * Verifies a reply of the length last given to {@link #expect(int)} or {@link #expectMore(int)}, the buffer is
+	 * positioned at its start.
+	 *
+	 * @return {@code true} if the tunnel is established, otherwise the next reply has to be expected
+	 */
+	protected abstract boolean receive(ByteBuffer reply) throws IOException;
+
+	/**
+	 * Advances the handshake as far as possible without blocking. Usually called on the I/O dispatcher thread, but the
+	 * first call comes from whoever upgrades the connection, e.g. {@link SocksTunnelPrewarmer} outside of an exchange.
+	 *
+	 * @return {@code true} once the tunnel is established
+	 */
+	public boolean initialize() throws IOException {
+		try {
+			if (!handshake())
+				return false;
+		} catch (IOException | RuntimeException e) {
+			handshakeFailed(e);
+			throw e;
+		}
+		handshakeCompleted();
+		return true;
+	}
+
+	private synchronized boolean handshake() throws IOException {
+		if (state == HandshakeState.ESTABLISHED)
+			return true;
+		if (state == HandshakeState.CLOSED || delegate.getStatus() >= IOSession.CLOSING)
+			return false;
+
+		if (deadlineExpired)
+			throw new SocketTimeoutException("socks handshake with " + proxyHost + " timed out after " + handshakeTimeout + " ms");
+
+		if (state == HandshakeState.NEW) {
+			if (timerWheel != null)
+				startDeadline();
+			if (dnsCache != null && !resolve())
+				return false;
+			startHandshake();
+		} else if (state == HandshakeState.RESOLVING) {
+			if (resolvedAddresses == null && resolutionFailure == null)
+				return false;
+			if (resolutionFailure != null)
+				throw resolutionFailure;
+			useAddresses(resolvedAddresses);
+			startHandshake();
+		}
+
+		while (true) {
+			if (state == HandshakeState.SENDING) {
+				if (!flush())
+					return false;
+				awaitReply();
+				// the reply might be there already
+			}
+
+			if (!readReply())
+				return false;
+
+			replyExpected = false;
+			repliesReceived++;
+			boolean established;
+			try {
+				established = receive(in);
+			} catch (IOException | RuntimeException e) {
+				releaseReplyBuffer();
+				throw e;
+			}
+
+			if (established) {
+				releaseReplyBuffer();
+				establish();
+				return true;
+			}
+
+			checkState(replyExpected, "handshake step did not expect a reply");
+			if (out != null)
+				handshakeEventMask(HandshakeState.SENDING, EventMask.WRITE);
+		}
+	}
+
+	private void startDeadline() {
+		deadline = timerWheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				expireDeadline();
+			}
+
+			@Override
+			public String toString() {
+				return "socks handshake timeout " + proxyHost + " -> " + targetHost;
+			}
+		}, handshakeTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Called on the timer thread.
+	 */
+	private synchronized void expireDeadline() {
+		if (state == HandshakeState.ESTABLISHED || state == HandshakeState.CLOSED || delegate.getStatus() >= IOSession.CLOSING)
+			return;
+		deadlineExpired = true;
+		delegate.setEventMask(EventMask.READ | EventMask.WRITE);
+	}
+
+	private void startHandshake() throws IOException {
+		// the handshake time leaves out resolving the target
+		handshakeStartedNanos = System.nanoTime();
+		in = replyBuffers.acquire();
+		start();
+		checkState(out != null && replyExpected, "handshake did not start");
+		handshakeEventMask(HandshakeState.SENDING, EventMask.WRITE);
+		// the socket is usually writable right away
+	}
+
+	/**
+	 * Takes the addresses of the target from the DNS cache, or starts looking them up.
+	 *
+	 * @return {@code true} if they were cached, otherwise the handshake waits in RESOLVING
+	 */
+	private boolean resolve() throws UnknownHostException {
+		String host = targetHost.getHostName();
+		List<InetAddress> addresses = dnsCache.getIfPresent(host);
+		if (addresses != null) {
+			useAddresses(addresses);
+			return true;
+		}
+
+		handshakeEventMask(HandshakeState.RESOLVING, 0);
+		dnsCache.resolve(host, new FutureCallback<List<InetAddress>>() {
+			@Override
+			public void completed(List<InetAddress> result) {
+				resolved(result, null);
+			}
+
+			@Override
+			public void failed(Exception ex) {
+				resolved(null, ex instanceof IOException ? (IOException) ex : new UnknownHostException(ex.toString()));
+			}
+
+			@Override
+			public void cancelled() {
+				resolved(null, new UnknownHostException("resolving " + targetHost.getHostName() + " cancelled"));
+			}
+		});
+		return false;
+	}
+
+	/**
+	 * Called on a resolver thread, or right away if the lookup just completed.
+	 */
+	private synchronized void resolved(List<InetAddress> addresses, IOException failure) {
+		if (state != HandshakeState.RESOLVING || delegate.getStatus() >= IOSession.CLOSING)
+			return;
+		resolvedAddresses = addresses;
+		resolutionFailure = failure;
+		// the handshake goes on on the I/O dispatcher thread, the socket is writable already
+		delegate.setEventMask(EventMask.WRITE);
+	}
+
+	private void useAddresses(List<InetAddress> addresses) {
+		InetAddress address = selectAddress(addresses);
+		if (address != null) {
+			connectTarget = new HttpHost(InetAddresses.toUriString(address), targetHost.getPort(), targetHost.getSchemeName());
+		} else if (log.isDebugEnabled()) {
+			log.debug("no usable address of {} in {}, the proxy resolves it", targetHost, addresses);
+		}
+	}
+
+	protected void send(byte[] packet) {
+		checkState(out == null, "previous request not sent yet");
+		out = packet;
+		outPosition = 0;
+	}
+
+	/**
+	 * Sends a packet ending with the {@code CONNECT} request, early data may follow it.
+	 */
+	protected void sendConnect(byte[] packet) {
+		send(packet);
+		connectPending = true;
+	}
+
+	/**
+	 * Expects a new reply of the given length.
+	 */
+	protected void expect(int bytes) {
+		checkArgument(bytes > 0 && bytes <= in.capacity(), "reply of %s bytes does not fit", bytes);
+		in.clear();
+		expected = bytes;
+		replyExpected = true;
+	}
+
+	/**
+	 * Extends the reply being received to the given total length, for replies announcing their own length.
+	 */
+	protected void expectMore(int totalBytes) {
+		checkArgument(totalBytes > expected && totalBytes <= in.capacity(), "reply of %s bytes does not fit", totalBytes);
+		in.limit(in.capacity());
+		in.position(expected);
+		expected = totalBytes;
+		replyExpected = true;
+	}
+
+	/**
+	 * Reports the reply code of the {@code CONNECT} reply before it is verified.
+	 */
+	protected void replyReceived(int replyCode) {
+		if (trace != null)
+			trace.replyReceived(replyCode);
+	}
+
+	/**
+	 * Fails the handshake on a reply of another protocol version than the one spoken, e.g. by a proxy that only speaks
+	 * another SOCKS version.
+	 *
+	 * @return the exception to throw
+	 */
+	protected VerifyException versionRejected(int version) {
+		versionRejected = true;
+		return new VerifyException("invalid socks version " + version + " received");
+	}
+
+	/**
+	 * Marks the handshake as failed and closes the session.
+	 *
+	 * @return the exception to throw
+	 */
+	protected SocksException reject(SocksException e) {
+		state = HandshakeState.CLOSED;
+		close();
+		return e;
+	}
+
+	private synchronized void handshakeEventMask(HandshakeState next, int ops) {
+		if (state == HandshakeState.NEW)
+			appEventMask = delegate.getEventMask();
+		delegate.setEventMask(ops);
+		state = next;
+	}
+
+	private synchronized void awaitReply() {
+		handshakeEventMask(HandshakeState.AWAITING_REPLY, earlyDataEventMask());
+	}
+
+	/**
+	 * @return OP_READ for the reply, plus OP_WRITE if the layers above have early data to write
+	 */
+	private int earlyDataEventMask() {
+		return isEarlyDataWritable() ? EventMask.READ | (appEventMask & EventMask.WRITE) : EventMask.READ;
+	}
+
+	/**
+	 * @return whether the layers above may write although the tunnel is not established yet
+	 */
+	public boolean isEarlyDataWritable() {
+		return earlyData && connectSent && state != HandshakeState.CLOSED;
+	}
+
+	private synchronized void establish() {
+		establishedNanos = System.nanoTime();
+		state = HandshakeState.ESTABLISHED;
+		delegate.setEventMask(appEventMask);
+
+		// from here on SocksIOEventDispatchProxy has nothing to do, without the attribute it forwards right away
+		delegate.removeAttribute(SESSION_KEY);
+	}
+
+	private void handshakeCompleted() {
+		if (!takeOutcome())
+			return;
+		eventListener.handshakeCompleted(proxyHost, handshakeNanos());
+		if (trace != null)
+			trace.established();
+		if (handshakeCallback != null)
+			handshakeCallback.completed(this);
+	}
+
+	private void handshakeFailed(Exception e) {
+		// whatever failed, early data must not go out on the session the exchange is failed for
+		state = HandshakeState.CLOSED;
+		if (!takeOutcome())
+			return;
+		eventListener.handshakeFailed(proxyHost, handshakeNanos(), e);
+		if (trace != null)
+			trace.failed(e);
+		if (handshakeCallback != null)
+			handshakeCallback.failed(e);
+	}
+
+	/**
+	 * @return time since the first request was sent, 0 if the handshake failed before
+	 */
+	private long handshakeNanos() {
+		long started = handshakeStartedNanos;
+		return started != 0 ? System.nanoTime() - started : 0;
+	}
+
+	/**
+	 * @return {@code true} for the first outcome of the handshake, which is the only one reported
+	 */
+	private synchronized boolean takeOutcome() {
+		if (outcomeReported)
+			return false;
+		outcomeReported = true;
+		if (deadline != null)
+			deadline.cancel();
+		return true;
+	}
+
+	/**
+	 * Reports TLS on top of the established tunnel, see {@link TimedSSLIOSessionStrategy}.
+	 *
+	 * @param failure {@code null} if the TLS session was verified
+	 */
+	void tlsHandshakeDone(Exception failure) {
+		long nanos = System.nanoTime() - establishedNanos;
+		if (failure == null)
+			eventListener.tlsHandshakeCompleted(proxyHost, nanos);
+		else
+			eventListener.tlsHandshakeFailed(proxyHost, nanos, failure);
+		if (trace != null)
+			trace.tlsHandshakeDone(failure);
+	}
+
+	private boolean isHandshaking() {
+		return state == HandshakeState.RESOLVING || state == HandshakeState.SENDING || state == HandshakeState.AWAITING_REPLY;
+	}
+
+	/**
+	 * Writes as much of the pending request as the socket takes.
+	 *
+	 * @return {@code true} if nothing is left to write
+	 */
+	private boolean flush() throws IOException {
+		while (outPosition < out.length) {
+			int remaining = out.length - outPosition;
+			ByteBuffer buffer = remaining <= PACKET_BUFFERS.getBufferSize()
+					? PACKET_BUFFERS.acquire()
+					: ByteBuffer.allocate(remaining);
+			try {
+				buffer.put(out, outPosition, remaining);
+				buffer.flip();
+
+				int written = delegate.channel().write(buffer);
+				if (written == 0)
+					return false;
+				outPosition += written;
+			} finally {
+				PACKET_BUFFERS.release(buffer);
+			}
+		}
+
+		out = null;
+		if (connectPending && !connectSent) {
+			connectSent = true;
+			if (trace != null)
+				trace.connectWritten();
+		}
+		return true;
+	}
+
+	/**
+	 * Reads up to the expected reply length.
+	 *
+	 * @return {@code true} if the reply is complete, the buffer is flipped for reading then
+	 */
+	private boolean readReply() throws IOException {
+		in.limit(expected);
+		int read = delegate.channel().read(in);
+		if (read == -1) {
+			closedBeforeReply = repliesReceived == 0;
+			state = HandshakeState.CLOSED;
+			status = IOSession.CLOSED;
+			releaseReplyBuffer();
+			delegate.close();
+			throw new ConnectionClosedException("socks proxy " + proxyHost + " closed the connection before replying");
+		}
+
+		if (in.position() < expected)
+			return false;
+		in.flip();
+		return true;
+	}
+
+	private void releaseReplyBuffer() {
+		ByteBuffer buffer = in;
+		in = null;
+		replyBuffers.release(buffer);
+	}
+
+	public boolean isInitialized() {
+		return state == HandshakeState.ESTABLISHED;
+	}
+
+	/**
+	 * @return whether the {@code CONNECT} request carries a host name for the proxy to resolve rather than an address
+	 */
+	public boolean isResolvedByProxy() {
+		return !isAddress(connectTarget);
+	}
+
+	/**
+	 * @return whether the proxy closed the connection before its first reply, which is how many proxies answer a
+	 * request of a version they do not speak
+	 */
+	public boolean isClosedBeforeReply() {
+		return closedBeforeReply;
+	}
+
+	/**
+	 * @return whether the proxy replied with another protocol version
+	 */
+	public boolean isVersionRejected() {
+		return versionRejected;
+	}
+
+	public static SocketAddress remoteAddressOf(HttpHost targetHost) {
+		// we need to report the correct remote address in case we are wrapped in an ssl session, which takes the host
+		// name from it on the I/O dispatcher: it must neither resolve the name nor do a reverse lookup of the address
+		String hostName = targetHost.getHostName();
+		InetAddress address = targetHost.getAddress();
+		if (address == null && InetAddresses.isInetAddress(hostName))
+			address = InetAddresses.forString(hostName);
+		if (address == null || address.isAnyLocalAddress())
+			return InetSocketAddress.createUnresolved(hostName, targetHost.getPort());
+
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(hostName, address.getAddress()), targetHost.getPort());
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("invalid address of " + targetHost, e);
+		}
+	}
+
+	private static boolean isAddress(HttpHost host) {
+		return InetAddresses.isInetAddress(host.getHostName()) || InetAddresses.isUriInetAddress(host.getHostName());
+	}
+
+	@Override
+	public ByteChannel channel() {
+		return state == HandshakeState.ESTABLISHED ? delegate.channel() : handshakeChannel;
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() {
+		return delegate.getLocalAddress();
+	}
+
+	@Override
+	public synchronized int getEventMask() {
+		return isHandshaking() ? appEventMask : delegate.getEventMask();
+	}
+
+	@Override
+	public synchronized void setEventMask(int ops) {
+		if (isHandshaking()) {
+			appEventMask = ops;
+			updateEarlyDataEventMask();
+		} else {
+			delegate.setEventMask(ops);
+		}
+	}
+
+	@Override
+	public synchronized void setEvent(int op) {
+		if (isHandshaking()) {
+			appEventMask |= op;
+			updateEarlyDataEventMask();
+		} else {
+			delegate.setEvent(op);
+		}
+	}
+
+	@Override
+	public synchronized void clearEvent(int op) {
+		if (isHandshaking()) {
+			appEventMask &= ~op;
+			updateEarlyDataEventMask();
+		} else {
+			delegate.clearEvent(op);
+		}
+	}
+
+	private void updateEarlyDataEventMask() {
+		if (state == HandshakeState.AWAITING_REPLY && isEarlyDataWritable())
+			delegate.setEventMask(earlyDataEventMask());
+	}
+
+	@Override
+	public void close() {
+		if (status == IOSession.CLOSED)
+			return;
+		delegate.close();
+		closedDuringHandshake();
+	}
+
+	@Override
+	public void shutdown() {
+		if (status == IOSession.CLOSED)
+			return;
+		delegate.shutdown();
+		closedDuringHandshake();
+	}
+
+	private void closedDuringHandshake() {
+		// e.g. timed out, a rejecting handshake reports its own exception before closing
+		if (state != HandshakeState.ESTABLISHED && state != HandshakeState.CLOSED)
+			handshakeFailed(new ConnectionClosedException("socks session to " + proxyHost + " closed during the handshake"));
+	}
+
+	@Override
+	public int getStatus() {
+		return status;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return delegate.isClosed();
+	}
+
+	@Override
+	public int getSocketTimeout() {
+		return delegate.getSocketTimeout();
+	}
+
+	@Override
+	public void setSocketTimeout(int timeout) {
+		delegate.setSocketTimeout(timeout);
+	}
+
+	@Override
+	public void setBufferStatus(SessionBufferStatus status) {
+		delegate.setBufferStatus(status);
+	}
+
+	@Override
+	public boolean hasBufferedInput() {
+		return delegate.hasBufferedInput();
+	}
+
+	@Override
+	public boolean hasBufferedOutput() {
+		return delegate.hasBufferedOutput();
+	}
+
+	@Override
+	public void setAttribute(String name, Object obj) {
+		delegate.setAttribute(name, obj);
+	}
+
+	@Override
+	public Object getAttribute(String name) {
+		return delegate.getAttribute(name);
+	}
+
+	@Override
+	public Object removeAttribute(String name) {
+		return delegate.removeAttribute(name);
+	}
+
+	/**
+	 * Channel handed to the upper layers until the tunnel is established: it neither consumes the SOCKS replies nor
+	 * lets application data overtake the SOCKS requests. Encoders created during the handshake keep a reference to
+	 * it, so it passes through afterwards.
+	 */
+	private class HandshakeChannel implements ByteChannel {
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return state == HandshakeState.ESTABLISHED ? delegate.channel().read(dst) : 0;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return state == HandshakeState.ESTABLISHED || isEarlyDataWritable() ? delegate.channel().write(src) : 0;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return delegate.channel().isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			delegate.channel().close();
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package demo.socks;
+
+import com.google.common.base.Predicates;
+import demo.socks.v4.Socks4IOSession;
+import demo.socks.v5.Socks5ConnectTemplates;
+import demo.socks.v5.Socks5IOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Strategy for proxies of unknown SOCKS version, e.g. a fleet mixing SOCKS5 and SOCKS4 proxies behind one scheme.
+ * Like {@code java.net.SocksSocketImpl} it tries SOCKS5 first and falls back to SOCKS4a and SOCKS4, but it learns the
+ * version of every proxy once and caches it: later tunnels go straight to the right handshake, to SOCKS5 proxies
+ * pipelined with the authentication method the proxy selected when it was learned.
+ * <p>
+ * A proxy usually closes the connection on a request of a version it does not speak, so the tunnel finding out fails
+ * and the next tunnel to the proxy tries the fallback. A SOCKS5 greeting answered with another version or by closing
+ * the connection falls back to SOCKS4a, a SOCKS4a request for a host name rejected with code 91 or closed falls back to
+ * SOCKS4, which resolves target names on the client. Timeouts and rejections of a learned version never fall back.
+ * <p>
+ * Learned versions and fallbacks expire and the proxy is probed again, a learned version failing the way a probe would,
+ * e.g. a SOCKS5 proxy selecting another method, is forgotten right away. Learned versions and fallbacks are reported
+ * to the {@link SocksEventListener} of the config, e.g. {@link demo.socks.metrics.SocksMetrics}.
+ */
+public class SocksNegotiatingIOSessionStrategy extends SocksSchemeIOSessionStrategy {
+	private static final Logger log = LoggerFactory.getLogger(SocksNegotiatingIOSessionStrategy.class);
+
+	public static final long DEFAULT_EXPIRY_MINUTES = 10;
+
+	private final Socks5ConnectTemplates templates;
+	private final Socks5ConnectTemplates anonymousTemplates;
+	// SOCKS4 cannot carry host names, every route is resolved locally
+	private final SocksConfig socks4Config;
+	private final long expiryNanos;
+	private final ConcurrentMap<HttpHost, Capability> capabilities = new ConcurrentHashMap<>();
+
+	public SocksNegotiatingIOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy) {
+		this(sslioSessionStrategy, null, SocksConfig.DEFAULT);
+	}
+
+	/**
+	 * @param credentials {@code null} to connect to SOCKS5 proxies without authentication
+	 */
+	public SocksNegotiatingIOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy,
+											 UsernamePasswordCredentials credentials, SocksConfig config) {
+		this(sslioSessionStrategy, credentials, config, DEFAULT_EXPIRY_MINUTES, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param credentials {@code null} to connect to SOCKS5 proxies without authentication
+	 * @param expiry      time after which a learned version is probed again
+	 */
+	public SocksNegotiatingIOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy,
+											 UsernamePasswordCredentials credentials, SocksConfig config,
+											 long expiry, TimeUnit unit) {
+		super(sslioSessionStrategy, config);
+		checkArgument(expiry > 0, "expiry must be positive");
+		this.templates = new Socks5ConnectTemplates(credentials);
+		this.anonymousTemplates = credentials != null ? new Socks5ConnectTemplates(null) : templates;
+		this.socks4Config = SocksConfig.copy(config).setLocalResolutionRoutes(Predicates.<HttpRoute>alwaysTrue()).build();
+		this.expiryNanos = unit.toNanos(expiry);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected SocksIOSession createSocksSession(IOSession iosession) {
+		HttpRoute route = (HttpRoute) iosession.getAttribute(IOSession.ATTACHMENT_KEY);
+		HttpHost proxy = route.getProxyHost();
+		Capability capability = lookup(proxy);
+
+		// the session takes the callback over, whoever else waits for the handshake is notified by the negotiation
+		Negotiation negotiation = new Negotiation(proxy, capability,
+				(FutureCallback<SocksIOSession>) iosession.removeAttribute(SocksIOSession.HANDSHAKE_CALLBACK_KEY));
+		iosession.setAttribute(SocksIOSession.HANDSHAKE_CALLBACK_KEY, negotiation);
+		negotiation.session = newSession(iosession, capability);
+		return negotiation.session;
+	}
+
+	private SocksIOSession newSession(IOSession iosession, Capability capability) {
+		if (capability == null)
+			return new Socks5IOSession(iosession, templates, false, config);
+
+		switch (capability.version) {
+			case SOCKS5:
+				if (!capability.learned)
+					return new Socks5IOSession(iosession, templates, false, config);
+				return new Socks5IOSession(iosession, capability.method == templates.getMethod() ? templates : anonymousTemplates,
+						true, config);
+			case SOCKS4A:
+				return new Socks4IOSession(iosession, config);
+			case SOCKS4:
+				return new Socks4IOSession(iosession, socks4Config);
+			default:
+				throw new IllegalStateException("unknown socks version " + capability.version);
+		}
+	}
+
+	/**
+	 * @return what is known about the proxy, {@code null} to probe it from SOCKS5 on
+	 */
+	private Capability lookup(HttpHost proxy) {
+		Capability capability = capabilities.get(proxy);
+		if (capability != null && System.nanoTime() - capability.expiresNanos >= 0) {
+			capabilities.remove(proxy, capability);
+			return null;
+		}
+		return capability;
+	}
+
+	/**
+	 * Replaces what the tunnel started from, unless another tunnel replaced it first.
+	 */
+	private boolean update(HttpHost proxy, Capability expected, Capability updated) {
+		if (expected == null)
+			return capabilities.putIfAbsent(proxy, updated) == null;
+		return updated != null ? capabilities.replace(proxy, expected, updated) : capabilities.remove(proxy, expected);
+	}
+
+	/**
+	 * @return the version learned for the proxy, {@code null} if it is not known (yet)
+	 */
+	public SocksVersion getVersion(HttpHost proxy) {
+		Capability capability = lookup(proxy);
+		return capability != null && capability.learned ? capability.version : null;
+	}
+
+	/**
+	 * Forgets what is known about the proxy, the next tunnel probes it again.
+	 */
+	public void invalidate(HttpHost proxy) {
+		capabilities.remove(proxy);
+	}
+
+	@Override
+	public String toString() {
+		return "SocksNegotiatingIOSessionStrategy" + capabilities;
+	}
+
+	/**
+	 * The version to try next for a proxy, learned once a tunnel of that version was granted.
+	 */
+	private static final class Capability {
+		final SocksVersion version;
+		// the SOCKS5 method the proxy selected, -1 for SOCKS4
+		final int method;
+		final boolean learned;
+		final long expiresNanos;
+
+		Capability(SocksVersion version, int method, boolean learned, long expiresNanos) {
+			this.version = version;
+			this.method = method;
+			this.learned = learned;
+			this.expiresNanos = expiresNanos;
+		}
+
+		@Override
+		public String toString() {
+			return (learned ? "" : "probing ") + "socks" + version + (method >= 0 ? " method " + method : "");
+		}
+	}
+
+	/**
+	 * Learns from the outcome of one handshake, then passes it on.
+	 */
+	private class Negotiation implements FutureCallback<SocksIOSession> {
+		private final HttpHost proxy;
+		private final Capability capability;
+		private final SocksVersion version;
+		private final FutureCallback<SocksIOSession> callback;
+		private SocksIOSession session;
+
+		Negotiation(HttpHost proxy, Capability capability, FutureCallback<SocksIOSession> callback) {
+			this.proxy = proxy;
+			this.capability = capability;
+			this.version = capability != null ? capability.version : SocksVersion.SOCKS5;
+			this.callback = callback;
+		}
+
+		@Override
+		public void completed(SocksIOSession result) {
+			if (capability == null || !capability.learned)
+				learn();
+			if (callback != null)
+				callback.completed(result);
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			if (capability != null && capability.learned)
+				verifyLearned(ex);
+			else
+				fallBack(ex);
+			if (callback != null)
+				callback.failed(ex);
+		}
+
+		@Override
+		public void cancelled() {
+			if (callback != null)
+				callback.cancelled();
+		}
+
+		private void learn() {
+			// an address sent as SOCKS4a looks like SOCKS4, only a host name proves the proxy resolves them
+			if (version == SocksVersion.SOCKS4A && !session.isResolvedByProxy())
+				return;
+
+			int method = session instanceof Socks5IOSession ? ((Socks5IOSession) session).getSelectedMethod() : -1;
+			Capability learned = new Capability(version, method, true, System.nanoTime() + expiryNanos);
+			if (!update(proxy, capability, learned))
+				return;
+
+			if (log.isDebugEnabled())
+				log.debug("proxy {} speaks {}", proxy, learned);
+			config.getEventListener().versionNegotiated(proxy, version, method);
+		}
+
+		private void fallBack(Exception ex) {
+			if (version != SocksVersion.SOCKS5 && session.isVersionRejected()) {
+				// given up on too early, e.g. the proxy restarted while it was probed
+				restart(ex);
+				return;
+			}
+			if (!isRejected(ex))
+				return;
+
+			SocksVersion fallback = version.fallback();
+			if (fallback == null) {
+				restart(ex);
+				return;
+			}
+			Capability next = new Capability(fallback, -1, false, System.nanoTime() + expiryNanos);
+			if (!update(proxy, capability, next))
+				return;
+
+			if (log.isDebugEnabled())
+				log.debug("proxy {} does not speak socks{}, trying socks{}: {}", proxy, version, fallback, ex.toString());
+			config.getEventListener().versionDowngraded(proxy, version, fallback);
+		}
+
+		/**
+		 * @return whether the handshake failed the way it does against a proxy not speaking the version
+		 */
+		private boolean isRejected(Exception ex) {
+			switch (version) {
+				case SOCKS5:
+					return session.isVersionRejected() || session.isClosedBeforeReply();
+				case SOCKS4A:
+					// a SOCKS4 proxy takes the name marker for an address it cannot connect to
+					return session.isResolvedByProxy() && (session.isClosedBeforeReply()
+							|| ex instanceof SocksException && ((SocksException) ex).getReplyCode() == 91);
+				default:
+					return false;
+			}
+		}
+
+		private void restart(Exception ex) {
+			if (update(proxy, capability, null) && log.isDebugEnabled())
+				log.debug("proxy {} rejected socks{}, probing it again from socks5: {}", proxy, version, ex.toString());
+		}
+
+		private void verifyLearned(Exception ex) {
+			boolean changed = session.isVersionRejected();
+			if (session instanceof Socks5IOSession) {
+				int selected = ((Socks5IOSession) session).getSelectedMethod();
+				changed |= session.isClosedBeforeReply() || selected >= 0 && selected != capability.method;
+			}
+			if (changed && update(proxy, capability, null) && log.isDebugEnabled())
+				log.debug("proxy {} no longer speaks {}, probing it again: {}", proxy, capability, ex.toString());
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package demo.socks;
+
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.DefaultRoutePlanner;
+import org.apache.http.protocol.HttpContext;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Plans routes through SOCKS proxies as plain proxied routes, also for {@code https} targets. The SOCKS session
+ * strategies open the tunnel and add TLS for {@code https} targets themselves; the tunnelled and layered routes the
+ * {@link DefaultRoutePlanner} plans for secure targets would make the client send an HTTP {@code CONNECT} through the
+ * tunnel and upgrade to TLS a second time.
+ * <p>
+ * Routes through other proxies are planned like by the {@link DefaultRoutePlanner}. Requests through a SOCKS proxy
+ * carry the absolute URI, which HTTP/1.1 origins accept as well.
+ */
+public class SocksRoutePlanner extends DefaultRoutePlanner {
+	private final Set<String> socksSchemes;
+
+	/**
+	 * Treats proxies with the {@code socks} and {@code socks5} scheme as SOCKS proxies.
+	 */
+	public SocksRoutePlanner() {
+		this(null, ImmutableSet.of("socks", "socks5"));
+	}
+
+	/**
+	 * @param schemePortResolver null for the default ports
+	 * @param socksSchemes       schemes the SOCKS session strategies are registered for
+	 */
+	public SocksRoutePlanner(SchemePortResolver schemePortResolver, Collection<String> socksSchemes) {
+		super(schemePortResolver);
+		ImmutableSet.Builder<String> schemes = ImmutableSet.builder();
+		for (String scheme : socksSchemes)
+			schemes.add(scheme.toLowerCase(Locale.ROOT));
+		this.socksSchemes = schemes.build();
+	}
+
+	@Override
+	public HttpRoute determineRoute(HttpHost host, HttpRequest request, HttpContext context) throws HttpException {
+		HttpRoute route = super.determineRoute(host, request, context);
+		HttpHost proxy = route.getProxyHost();
+		if (proxy == null || !route.isSecure() || !socksSchemes.contains(proxy.getSchemeName()))
+			return route;
+		return new HttpRoute(route.getTargetHost(), route.getLocalAddress(), proxy, false);
+	}
+}
@@ -0,0 +1,53 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Upgrades the session to a SOCKS proxy to a tunnel to the route's target, and to SSL on top of the tunnel for
+ * {@code https} targets.
+ */
+public abstract class SocksSchemeIOSessionStrategy implements SchemeIOSessionStrategy {
+	private static final Logger log = LoggerFactory.getLogger(SocksSchemeIOSessionStrategy.class);
+
+	private final SSLIOSessionStrategy sslioSessionStrategy;
+	protected final SocksConfig config;
+
+	protected SocksSchemeIOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy, SocksConfig config) {
+		this.sslioSessionStrategy = sslioSessionStrategy;
+		this.config = config;
+	}
+
+	protected abstract SocksIOSession createSocksSession(IOSession iosession);
+
+	public boolean isLayeringRequired() {
+		return true;
+	}
+
+	@Override
+	public IOSession upgrade(HttpHost host, IOSession iosession) throws IOException {
+		if (log.isTraceEnabled())
+			log.trace("upgrading session to demo.socks");
+
+		HttpRoute route = ((HttpRoute) iosession.getAttribute(IOSession.ATTACHMENT_KEY));
+		String targetScheme = route.getTargetHost().getSchemeName();
+
+		SocksIOSession socksSession = createSocksSession(iosession);
+		socksSession.initialize();
+
+		IOSession resultSession = socksSession;
+
+		if (Objects.equals("https", targetScheme))
+			resultSession = sslioSessionStrategy.upgrade(route.getTargetHost(), socksSession);
+
+		return resultSession;
+	}
+}
@@ -0,0 +1,62 @@
+package demo.socks;
+
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Traces the handshakes of single tunnels, e.g. as Java Flight Recorder events. Unlike a {@link SocksEventListener} it
+ * sees every step of a handshake and keeps state per tunnel.
+ * <p>
+ * Set with {@link SocksConfig.Builder#setTracer(SocksTracer)}, by default the first implementation found by the
+ * {@link java.util.ServiceLoader} is used. Called on the I/O dispatcher threads, implementations must neither block nor
+ * throw.
+ */
+public interface SocksTracer {
+	SocksTracer NOOP = new SocksTracer() {
+		@Override
+		public Trace start(HttpRoute route) {
+			return null;
+		}
+
+		@Override
+		public String toString() {
+			return "NOOP";
+		}
+	};
+
+	/**
+	 * Called for every tunnel when its session is created, right before the first SOCKS request is written. Should
+	 * cost next to nothing while tracing is off.
+	 *
+	 * @return the trace of the tunnel, {@code null} if it is not traced
+	 */
+	Trace start(HttpRoute route);
+
+	/**
+	 * Steps of one handshake, every method is called at most once.
+	 */
+	interface Trace {
+		/**
+		 * The {@code CONNECT} request is written, after the greeting and the authentication for SOCKS5.
+		 */
+		void connectWritten();
+
+		/**
+		 * @param replyCode reply code of the {@code CONNECT} reply, 90 or 0 if the tunnel is granted
+		 */
+		void replyReceived(int replyCode);
+
+		void established();
+
+		/**
+		 * @param ex a {@link SocksException} carrying the reply code if the proxy rejected the tunnel
+		 */
+		void failed(Exception ex);
+
+		/**
+		 * TLS on top of the tunnel, only reported with a {@link TimedSSLIOSessionStrategy}.
+		 *
+		 * @param failure {@code null} if the TLS session was verified
+		 */
+		void tlsHandshakeDone(Exception failure);
+	}
+}
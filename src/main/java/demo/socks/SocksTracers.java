@@ -0,0 +1,34 @@
+package demo.socks;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+public final class SocksTracers {
+	private static final Logger log = LoggerFactory.getLogger(SocksTracers.class);
+
+	private SocksTracers() {
+	}
+
+	/**
+	 * @return the first {@link SocksTracer} registered in {@code META-INF/services}, {@link SocksTracer#NOOP} if there
+	 * is none or it does not run on this JVM (e.g. the JFR tracer before Java 11)
+	 */
+	public static SocksTracer load() {
+		try {
+			Iterator<SocksTracer> tracers = ServiceLoader.load(SocksTracer.class, SocksTracer.class.getClassLoader()).iterator();
+			if (tracers.hasNext()) {
+				SocksTracer tracer = tracers.next();
+				if (log.isDebugEnabled())
+					log.debug("tracing socks handshakes with {}", tracer);
+				return tracer;
+			}
+		} catch (ServiceConfigurationError | LinkageError e) {
+			log.warn("loading socks tracer failed, handshakes are not traced", e);
+		}
+		return SocksTracer.NOOP;
+	}
+}
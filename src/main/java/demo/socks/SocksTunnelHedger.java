@@ -0,0 +1,381 @@
+package demo.socks;
+
+import com.google.common.collect.ImmutableList;
+import demo.socks.metrics.ProxyMetrics;
+import demo.socks.metrics.SocksMetrics;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Races the tunnel of a latency critical request through a second proxy when the first is slow. The tunnel through
+ * the proxy of the request's {@link RequestConfig} is opened first; if it is not established within the hedge delay,
+ * a tunnel through another proxy is opened as well. The request goes through the proxy whose tunnel is established
+ * first, the other tunnel stays idle in the pool once it is established.
+ * <p>
+ * The established tunnel is put into the pool and the client leases a tunnel of its route from there, it is not
+ * handed to the request. A concurrent request of the same route may take it in between, the raced request then
+ * takes another idle tunnel or opens a new one through the same proxy.
+ * <ul>
+ * <li>The hedge delay is the 95th percentile of connect plus handshake time of the proxy as recorded by
+ * {@link SocksMetrics}, within the minimum and maximum delay; the maximum until the proxy has enough samples.</li>
+ * <li>The alternative proxy is the one with the lowest such percentile.</li>
+ * <li>Hedges are paid from a budget: every request adds the hedge ratio, every hedge costs one, so the extra tunnels
+ * are at most the ratio of the requests plus a small burst.</li>
+ * <li>A tunnel failing before the hedge delay starts the alternative right away, within the same budget.</li>
+ * </ul>
+ * Tunnels are opened like by {@link SocksTunnelPrewarmer#openTunnel}; requests for which an established tunnel is
+ * idle in the pool already are not raced. Routes are planned like by the {@link SocksRoutePlanner}.
+ */
+public class SocksTunnelHedger implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SocksTunnelHedger.class);
+
+	private static final double HEDGE_PERCENTILE = 95;
+	// samples needed before the percentile of a proxy is trusted
+	private static final long MIN_SAMPLES = 20;
+	private static final double MAX_BUDGET = 10;
+
+	private final PoolingNHttpClientConnectionManager connManager;
+	private final SocksTunnelPrewarmer tunnels;
+	private final List<HttpHost> proxies;
+	private final SocksMetrics metrics;
+	private final long minDelayNanos;
+	private final long maxDelayNanos;
+	private final double hedgeRatio;
+	private final HashedTimerWheel timerWheel;
+
+	private double budget = MAX_BUDGET;
+	private final AtomicLong hedges = new AtomicLong();
+	private final AtomicLong hedgesSwitched = new AtomicLong();
+	private final AtomicLong hedgesDenied = new AtomicLong();
+
+	/**
+	 * Hedges after 10 to 1000 ms, tunnels have 5 s to get established, at most 10% of the requests hedge.
+	 */
+	public SocksTunnelHedger(PoolingNHttpClientConnectionManager connManager, Collection<HttpHost> proxies,
+							 SocksMetrics metrics) {
+		this(connManager, proxies, metrics, 10, 1000, 5000, TimeUnit.MILLISECONDS, 0.1);
+	}
+
+	/**
+	 * @param proxies        the proxies to hedge with, usually the ones requests are spread over
+	 * @param metrics        recording the tunnel times, e.g. the event listener of the {@link SocksConfig}; without
+	 *                       metrics the maximum delay applies
+	 * @param connectTimeout limit for connecting and the handshake of one tunnel
+	 * @param hedgeRatio     hedges per request in the long run, e.g. 0.1
+	 */
+	public SocksTunnelHedger(PoolingNHttpClientConnectionManager connManager, Collection<HttpHost> proxies,
+							 SocksMetrics metrics, long minDelay, long maxDelay, long connectTimeout, TimeUnit unit,
+							 double hedgeRatio) {
+		checkArgument(proxies.size() > 1, "hedging needs at least two proxies");
+		checkArgument(minDelay >= 0 && minDelay <= maxDelay, "delays must not be negative and min must not exceed max");
+		checkArgument(hedgeRatio > 0 && hedgeRatio <= 1, "hedge ratio must be in (0, 1]");
+
+		this.connManager = checkNotNull(connManager, "connection manager");
+		// the losing tunnels stay idle in the pool as long as warm ones
+		this.tunnels = new SocksTunnelPrewarmer(connManager, 1000, unit.toMillis(connectTimeout),
+				SocksTunnelPrewarmer.DEFAULT_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+		this.proxies = ImmutableList.copyOf(proxies);
+		this.metrics = metrics;
+		this.minDelayNanos = unit.toNanos(minDelay);
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		this.hedgeRatio = hedgeRatio;
+		this.timerWheel = HashedTimerWheel.getDefault();
+	}
+
+	/**
+	 * Executes the request through whichever proxy gets a tunnel first, see {@link HttpAsyncClient#execute(
+	 * HttpAsyncRequestProducer, HttpAsyncResponseConsumer, HttpContext, FutureCallback)}. The proxy ending up in the
+	 * {@link RequestConfig} of the context is the one used.
+	 *
+	 * @return fails with the last tunnel failure if no tunnel could be opened
+	 */
+	public <T> Future<T> execute(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+								 HttpAsyncResponseConsumer<T> responseConsumer, HttpContext context,
+								 FutureCallback<T> callback) {
+		HttpClientContext clientContext = HttpClientContext.adapt(context != null ? context : HttpClientContext.create());
+		HttpHost proxy = clientContext.getRequestConfig().getProxy();
+		earn();
+
+		HttpRoute route = proxy != null ? routeOf(requestProducer.getTarget(), proxy) : null;
+		if (route == null || connManager.getStats(route).getAvailable() > 0)
+			return client.execute(requestProducer, responseConsumer, clientContext, callback);
+
+		Race<T> race = new Race<>(client, requestProducer, responseConsumer, clientContext, callback);
+		race.start(proxy);
+		return race;
+	}
+
+	/**
+	 * @return hedges started so far
+	 */
+	public long getHedges() {
+		return hedges.get();
+	}
+
+	/**
+	 * @return requests sent through the alternative proxy because its tunnel was established first, not necessarily
+	 * over that tunnel
+	 */
+	public long getHedgesSwitched() {
+		return hedgesSwitched.get();
+	}
+
+	/**
+	 * @return hedges not started for lack of budget
+	 */
+	public long getHedgesDenied() {
+		return hedgesDenied.get();
+	}
+
+	/**
+	 * Tunnels still being opened are put into the pool as usual.
+	 */
+	@Override
+	public void close() {
+		tunnels.close();
+	}
+
+	@Override
+	public String toString() {
+		return "SocksTunnelHedger[hedges=" + hedges + ", switched=" + hedgesSwitched + ", denied=" + hedgesDenied + "]";
+	}
+
+	private synchronized void earn() {
+		budget = Math.min(budget + hedgeRatio, MAX_BUDGET);
+	}
+
+	private synchronized boolean trySpend() {
+		if (budget < 1)
+			return false;
+		budget -= 1;
+		return true;
+	}
+
+	private long hedgeDelayNanos(HttpHost proxy) {
+		long delay = tunnelTimeNanos(proxy);
+		return Math.max(minDelayNanos, Math.min(delay, maxDelayNanos));
+	}
+
+	/**
+	 * @return the tunnel time percentile of the proxy, the maximum delay if it is not known yet
+	 */
+	private long tunnelTimeNanos(HttpHost proxy) {
+		if (metrics == null)
+			return maxDelayNanos;
+		ProxyMetrics proxyMetrics = metrics.get(proxy);
+		if (proxyMetrics.getHandshakesGranted() < MIN_SAMPLES)
+			return maxDelayNanos;
+		return (long) proxyMetrics.getTunnelTimePercentile(HEDGE_PERCENTILE, TimeUnit.NANOSECONDS);
+	}
+
+	private HttpHost alternativeTo(HttpHost proxy) {
+		HttpHost alternative = null;
+		long alternativeNanos = Long.MAX_VALUE;
+		for (HttpHost candidate : proxies) {
+			if (candidate.equals(proxy))
+				continue;
+			long nanos = tunnelTimeNanos(candidate);
+			if (alternative == null || nanos < alternativeNanos) {
+				alternative = candidate;
+				alternativeNanos = nanos;
+			}
+		}
+		return alternative;
+	}
+
+	private static HttpRoute routeOf(HttpHost target, HttpHost proxy) {
+		// the route planner fills in the port, the SOCKS session strategies add TLS for https targets
+		if (target.getPort() < 0)
+			target = new HttpHost(target.getHostName(), "https".equalsIgnoreCase(target.getSchemeName()) ? 443 : 80,
+					target.getSchemeName());
+		return new HttpRoute(target, null, proxy, false);
+	}
+
+	/**
+	 * The future handed out for one request: opens the tunnels and executes the request once one of them is
+	 * established.
+	 */
+	private class Race<T> extends BasicFuture<T> {
+		private final HttpAsyncClient client;
+		private final HttpAsyncRequestProducer requestProducer;
+		private final HttpAsyncResponseConsumer<T> responseConsumer;
+		private final HttpClientContext context;
+
+		private HttpHost preferred;
+		private HashedTimerWheel.Timeout hedgeTimer;
+		private int opening;
+		private boolean hedged;
+		private boolean decided;
+		private volatile Future<T> exchange;
+
+		Race(HttpAsyncClient client, HttpAsyncRequestProducer requestProducer,
+			 HttpAsyncResponseConsumer<T> responseConsumer, HttpClientContext context, FutureCallback<T> callback) {
+			super(callback);
+			this.client = client;
+			this.requestProducer = requestProducer;
+			this.responseConsumer = responseConsumer;
+			this.context = context;
+		}
+
+		void start(HttpHost proxy) {
+			synchronized (this) {
+				preferred = proxy;
+				opening = 1;
+				hedgeTimer = timerWheel.schedule(new Runnable() {
+					@Override
+					public void run() {
+						hedge();
+					}
+				}, hedgeDelayNanos(proxy), TimeUnit.NANOSECONDS);
+			}
+			open(proxy);
+		}
+
+		/**
+		 * @return {@code true} if a second tunnel is being opened
+		 */
+		boolean hedge() {
+			HttpHost alternative;
+			synchronized (this) {
+				if (decided || hedged || isDone())
+					return false;
+				alternative = alternativeTo(preferred);
+				if (alternative == null)
+					return false;
+				if (!trySpend()) {
+					hedgesDenied.incrementAndGet();
+					return false;
+				}
+				hedged = true;
+				opening++;
+			}
+
+			hedges.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("tunnel through {} is slow, hedging through {}", preferred, alternative);
+			open(alternative);
+			return true;
+		}
+
+		private void open(final HttpHost proxy) {
+			tunnels.openTunnel(routeOf(requestProducer.getTarget(), proxy), new FutureCallback<HttpRoute>() {
+				@Override
+				public void completed(HttpRoute route) {
+					established(proxy);
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					lost(ex);
+				}
+
+				@Override
+				public void cancelled() {
+					lost(new CancellationException("opening tunnel through " + proxy + " cancelled"));
+				}
+			});
+		}
+
+		private void established(HttpHost proxy) {
+			synchronized (this) {
+				opening--;
+				// the loser's tunnel stays idle in the pool
+				if (decided)
+					return;
+				decided = true;
+			}
+			hedgeTimer.cancel();
+			if (isDone()) {
+				// cancelled while the tunnels were opened
+				closeQuietly(requestProducer);
+				closeQuietly(responseConsumer);
+				return;
+			}
+
+			if (!proxy.equals(preferred)) {
+				hedgesSwitched.incrementAndGet();
+				context.setRequestConfig(RequestConfig.copy(context.getRequestConfig()).setProxy(proxy).build());
+			}
+			exchange = client.execute(requestProducer, responseConsumer, context, new FutureCallback<T>() {
+				@Override
+				public void completed(T result) {
+					Race.super.completed(result);
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					Race.super.failed(ex);
+				}
+
+				@Override
+				public void cancelled() {
+					Race.super.cancel(true);
+				}
+			});
+		}
+
+		private void lost(Exception ex) {
+			boolean hedgeNow;
+			synchronized (this) {
+				opening--;
+				if (decided || opening > 0)
+					return;
+				hedgeNow = !hedged;
+			}
+
+			// failed before the hedge delay, fail over right away
+			if (hedgeNow) {
+				hedgeTimer.cancel();
+				if (hedge())
+					return;
+			}
+
+			synchronized (this) {
+				if (decided || opening > 0)
+					return;
+				decided = true;
+			}
+			closeQuietly(requestProducer);
+			closeQuietly(responseConsumer);
+			super.failed(ex);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			Future<T> running = exchange;
+			if (running != null)
+				return running.cancel(mayInterruptIfRunning);
+			return super.cancel(mayInterruptIfRunning);
+		}
+
+		private void closeQuietly(Closeable closeable) {
+			try {
+				closeable.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
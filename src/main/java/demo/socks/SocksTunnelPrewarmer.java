@@ -0,0 +1,332 @@
+package demo.socks;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps a minimum number of idle, established tunnels per route in a {@link PoolingNHttpClientConnectionManager}, so
+ * a burst of requests leases tunnels instead of paying TCP connect and SOCKS handshake on the request path.
+ * <p>
+ * The pool is checked periodically, tunnels that were leased or expired are replaced in the background. A tunnel
+ * goes back to the pool only once its handshake completed; for HTTPS targets the TLS handshake has started by then
+ * and finishes while the tunnel is idle. Failing routes are retried with an exponential backoff.
+ * <p>
+ * Idle tunnels are not probed, a proxy or target dropping one leaves it in the pool until a request leases it and
+ * fails on it. Warm tunnels therefore expire after a keep alive shorter than the idle timeouts of the proxies and
+ * targets, every check closes the expired connections of the pool and opens replacements.
+ * <p>
+ * The routes have to be equal to the ones the client plans, e.g. {@code new HttpRoute(target, null, proxy, false)}
+ * for the {@link SocksRoutePlanner}, also for {@code https} targets, and the warm tunnels count against the pool
+ * limits of their route.
+ */
+public class SocksTunnelPrewarmer implements Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SocksTunnelPrewarmer.class);
+
+	public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+	private static final long MIN_BACKOFF_MILLIS = 100;
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	private final PoolingNHttpClientConnectionManager connManager;
+	private final long checkIntervalMillis;
+	private final long connectTimeoutMillis;
+	private final long keepAliveMillis;
+	private final ScheduledExecutorService scheduler;
+	private final ConcurrentMap<HttpRoute, RouteState> routes = new ConcurrentHashMap<>();
+
+	/**
+	 * Checks every 100 ms, gives up on a tunnel not established within 5 s and keeps warm tunnels idle for 30 s.
+	 */
+	public SocksTunnelPrewarmer(PoolingNHttpClientConnectionManager connManager) {
+		this(connManager, 100, 5000, DEFAULT_KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param checkInterval  how often the pool is checked for missing tunnels
+	 * @param connectTimeout limit for connecting and the handshake of one tunnel
+	 * @param keepAlive      how long a warm tunnel may stay idle in the pool, shorter than the idle timeouts of the
+	 *                       proxies and targets
+	 */
+	public SocksTunnelPrewarmer(PoolingNHttpClientConnectionManager connManager, long checkInterval, long connectTimeout,
+								long keepAlive, TimeUnit unit) {
+		checkArgument(checkInterval > 0, "check interval must be positive");
+		checkArgument(connectTimeout > 0, "connect timeout must be positive");
+		checkArgument(keepAlive > 0, "keep alive must be positive");
+
+		this.connManager = checkNotNull(connManager, "connection manager");
+		this.checkIntervalMillis = unit.toMillis(checkInterval);
+		this.connectTimeoutMillis = unit.toMillis(connectTimeout);
+		this.keepAliveMillis = unit.toMillis(keepAlive);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				.setNameFormat("socks-prewarmer-%d")
+				.setDaemon(true)
+				.build());
+	}
+
+	public void start() {
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				refill();
+			}
+		}, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Keeps at least {@code minIdle} established tunnels of the route idle in the pool, replaces a previous minimum.
+	 */
+	public void prewarm(HttpRoute route, int minIdle) {
+		checkArgument(minIdle > 0, "minimum of idle tunnels must be positive");
+		checkArgument(route.getProxyHost() != null, "route %s does not go through a proxy", route);
+
+		RouteState state = routes.get(route);
+		if (state == null) {
+			RouteState created = new RouteState();
+			state = routes.putIfAbsent(route, created);
+			if (state == null)
+				state = created;
+		}
+		state.minIdle = minIdle;
+	}
+
+	/**
+	 * Stops warming the route, tunnels already in the pool stay there.
+	 */
+	public void remove(HttpRoute route) {
+		routes.remove(route);
+	}
+
+	/**
+	 * Opens one tunnel and puts it into the pool once it is established, regardless of the configured minimum.
+	 *
+	 * @param callback completed once the tunnel is idle in the pool
+	 */
+	public void openTunnel(final HttpRoute route, final FutureCallback<HttpRoute> callback) {
+		connManager.requestConnection(route, null, connectTimeoutMillis, connectTimeoutMillis, TimeUnit.MILLISECONDS,
+				new FutureCallback<NHttpClientConnection>() {
+					@Override
+					public void completed(NHttpClientConnection conn) {
+						warmUp(route, conn, callback);
+					}
+
+					@Override
+					public void failed(Exception ex) {
+						callback.failed(ex);
+					}
+
+					@Override
+					public void cancelled() {
+						callback.cancelled();
+					}
+				});
+	}
+
+	private void warmUp(HttpRoute route, NHttpClientConnection conn, FutureCallback<HttpRoute> callback) {
+		if (connManager.isRouteComplete(conn)) {
+			// raced with a request returning its tunnel, it is warm already
+			connManager.releaseConnection(conn, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+			callback.completed(route);
+			return;
+		}
+
+		Warmup warmup = new Warmup(route, conn, callback);
+
+		// a handshake that stalls times out in SocksIOEventDispatchProxy and fails the warmup
+		conn.setSocketTimeout((int) Math.min(connectTimeoutMillis, Integer.MAX_VALUE));
+		conn.getContext().setAttribute(SocksIOSession.HANDSHAKE_CALLBACK_KEY, warmup);
+		try {
+			connManager.startRoute(conn, route, warmup.context);
+		} catch (IOException | RuntimeException e) {
+			warmup.failed(e);
+			warmup.routeStarted();
+			return;
+		}
+
+		// not taken over by a SocksIOSession, the route does not go through a SOCKS proxy and the connection is ready
+		if (conn.getContext().removeAttribute(SocksIOSession.HANDSHAKE_CALLBACK_KEY) != null)
+			warmup.completed(null);
+		warmup.routeStarted();
+	}
+
+	private void refill() {
+		// expired tunnels count as available until they are closed, make room for their replacements
+		connManager.closeExpiredConnections();
+		for (Map.Entry<HttpRoute, RouteState> entry : routes.entrySet()) {
+			try {
+				refill(entry.getKey(), entry.getValue());
+			} catch (RuntimeException e) {
+				// keep the scheduled task alive, e.g. the connection manager is shut down
+				log.warn("warming tunnels for {} failed", entry.getKey(), e);
+			}
+		}
+	}
+
+	private void refill(final HttpRoute route, final RouteState state) {
+		if (System.nanoTime() - state.retryAt < 0)
+			return;
+
+		PoolStats stats = connManager.getStats(route);
+		int missing = state.minIdle - stats.getAvailable() - state.warming.get();
+		// never take up the room of requests, connections still connecting are pending
+		int room = stats.getMax() - stats.getLeased() - stats.getAvailable() - stats.getPending();
+		int open = Math.min(missing, room);
+
+		for (int i = 0; i < open; i++) {
+			state.warming.incrementAndGet();
+			openTunnel(route, new FutureCallback<HttpRoute>() {
+				@Override
+				public void completed(HttpRoute result) {
+					state.warming.decrementAndGet();
+					state.succeeded();
+				}
+
+				@Override
+				public void failed(Exception ex) {
+					state.warming.decrementAndGet();
+					long backoff = state.failed();
+					if (log.isDebugEnabled())
+						log.debug("warming tunnel for {} failed, retrying in {} ms: {}", route, backoff, ex.toString());
+				}
+
+				@Override
+				public void cancelled() {
+					state.warming.decrementAndGet();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void close() {
+		scheduler.shutdownNow();
+		routes.clear();
+	}
+
+	/**
+	 * Puts the tunnel into the pool once its handshake completed. That can happen before startRoute(..) returned, the
+	 * connection is only bound to the upgraded session then, so the outcome is held back until the route is started.
+	 */
+	private class Warmup implements FutureCallback<SocksIOSession> {
+		private final HttpRoute route;
+		private final NHttpClientConnection conn;
+		private final FutureCallback<HttpRoute> callback;
+		private final HttpClientContext context = HttpClientContext.create();
+
+		private boolean started;
+		private boolean done;
+		private boolean established;
+		private Exception failure;
+
+		Warmup(HttpRoute route, NHttpClientConnection conn, FutureCallback<HttpRoute> callback) {
+			this.route = route;
+			this.conn = conn;
+			this.callback = callback;
+		}
+
+		@Override
+		public void completed(SocksIOSession session) {
+			synchronized (this) {
+				if (done || failure != null)
+					return;
+				established = true;
+				if (!started)
+					return;
+				done = true;
+			}
+			release();
+		}
+
+		@Override
+		public void failed(Exception ex) {
+			synchronized (this) {
+				if (done || established || failure != null)
+					return;
+				failure = ex;
+				if (!started)
+					return;
+				done = true;
+			}
+			discard(ex);
+		}
+
+		@Override
+		public void cancelled() {
+			failed(new CancellationException("tunnel warmup cancelled"));
+		}
+
+		void routeStarted() {
+			synchronized (this) {
+				started = true;
+				if (done || (!established && failure == null))
+					return;
+				done = true;
+			}
+			if (established)
+				release();
+			else
+				discard(failure);
+		}
+
+		private void release() {
+			if (!conn.isOpen()) {
+				// closed by the proxy or target right after the handshake
+				discard(new ConnectionClosedException("tunnel closed before it went into the pool"));
+				return;
+			}
+			conn.setSocketTimeout(0);
+			connManager.routeComplete(conn, route, context);
+			connManager.releaseConnection(conn, null, keepAliveMillis, TimeUnit.MILLISECONDS);
+			callback.completed(route);
+		}
+
+		private void discard(Exception ex) {
+			try {
+				conn.shutdown();
+			} catch (IOException e) {
+				if (log.isDebugEnabled())
+					log.debug("shutting down tunnel failed", e);
+			}
+			connManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+			callback.failed(ex);
+		}
+	}
+
+	private static class RouteState {
+		final AtomicInteger warming = new AtomicInteger();
+		volatile int minIdle;
+		volatile long retryAt = System.nanoTime();
+		private long backoffMillis;
+
+		synchronized void succeeded() {
+			backoffMillis = 0;
+		}
+
+		synchronized long failed() {
+			backoffMillis = backoffMillis == 0 ? MIN_BACKOFF_MILLIS : Math.min(2 * backoffMillis, MAX_BACKOFF_MILLIS);
+			retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+			return backoffMillis;
+		}
+	}
+}
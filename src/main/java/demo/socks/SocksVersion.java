@@ -0,0 +1,41 @@
+package demo.socks;
+
+/**
+ * SOCKS protocol versions in the order {@link SocksNegotiatingIOSessionStrategy} tries them.
+ */
+public enum SocksVersion {
+	SOCKS5("5"),
+	/**
+	 * SOCKS4 passing target host names on to the proxy.
+	 */
+	SOCKS4A("4a"),
+	/**
+	 * SOCKS4 with target host names resolved by the client.
+	 */
+	SOCKS4("4");
+
+	private final String label;
+
+	SocksVersion(String label) {
+		this.label = label;
+	}
+
+	/**
+	 * @return the version to try when the proxy does not speak this one, {@code null} for the last one
+	 */
+	public SocksVersion fallback() {
+		switch (this) {
+			case SOCKS5:
+				return SOCKS4A;
+			case SOCKS4A:
+				return SOCKS4;
+			default:
+				return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return label;
+	}
+}
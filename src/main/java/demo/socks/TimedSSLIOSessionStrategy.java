@@ -0,0 +1,56 @@
+package demo.socks;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * {@link SSLIOSessionStrategy} reporting how long TLS on top of a SOCKS tunnel took to the
+ * {@link SocksEventListener} of the tunnel. Pass it to the SOCKS session strategies instead of the plain one, sessions
+ * without a tunnel are not reported.
+ */
+public class TimedSSLIOSessionStrategy extends SSLIOSessionStrategy {
+	public TimedSSLIOSessionStrategy(SSLContext sslContext, String[] supportedProtocols, String[] supportedCipherSuites,
+									 X509HostnameVerifier hostnameVerifier) {
+		super(sslContext, supportedProtocols, supportedCipherSuites, hostnameVerifier);
+	}
+
+	public TimedSSLIOSessionStrategy(SSLContext sslContext, X509HostnameVerifier hostnameVerifier) {
+		super(sslContext, hostnameVerifier);
+	}
+
+	public TimedSSLIOSessionStrategy(SSLContext sslContext) {
+		super(sslContext);
+	}
+
+	/**
+	 * Same as {@link SSLIOSessionStrategy#getDefaultStrategy()}.
+	 */
+	public static TimedSSLIOSessionStrategy getDefaultStrategy() {
+		return new TimedSSLIOSessionStrategy(SSLContexts.createDefault(), BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+	}
+
+	@Override
+	protected void verifySession(HttpHost host, IOSession iosession, SSLSession sslsession) throws SSLException {
+		// the session below the SSL layer, called once the TLS handshake completed
+		if (!(iosession instanceof SocksIOSession)) {
+			super.verifySession(host, iosession, sslsession);
+			return;
+		}
+
+		SocksIOSession socksSession = (SocksIOSession) iosession;
+		try {
+			super.verifySession(host, iosession, sslsession);
+		} catch (SSLException | RuntimeException e) {
+			socksSession.tlsHandshakeDone(e);
+			throw e;
+		}
+		socksSession.tlsHandshakeDone(null);
+	}
+}
@@ -0,0 +1,59 @@
+package demo.socks.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Percentiles of a {@link LatencyHistogram} at one point in time, in milliseconds. Shown as composite data by JMX.
+ */
+public class LatencySnapshot {
+	private final long count;
+	private final double p50Millis;
+	private final double p99Millis;
+	private final double p999Millis;
+	private final double maxMillis;
+
+	@ConstructorProperties({"count", "p50Millis", "p99Millis", "p999Millis", "maxMillis"})
+	public LatencySnapshot(long count, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+		this.count = count;
+		this.p50Millis = p50Millis;
+		this.p99Millis = p99Millis;
+		this.p999Millis = p999Millis;
+		this.maxMillis = maxMillis;
+	}
+
+	public static LatencySnapshot of(LatencyHistogram histogram) {
+		return new LatencySnapshot(histogram.getCount(),
+				histogram.getPercentile(50, TimeUnit.MILLISECONDS),
+				histogram.getPercentile(99, TimeUnit.MILLISECONDS),
+				histogram.getPercentile(99.9, TimeUnit.MILLISECONDS),
+				histogram.getMax(TimeUnit.MICROSECONDS) / 1000.0);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getP50Millis() {
+		return p50Millis;
+	}
+
+	public double getP99Millis() {
+		return p99Millis;
+	}
+
+	public double getP999Millis() {
+		return p999Millis;
+	}
+
+	public double getMaxMillis() {
+		return maxMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "[count=%d, p50=%.3f ms, p99=%.3f ms, p999=%.3f ms, max=%.3f ms]",
+				count, p50Millis, p99Millis, p999Millis, maxMillis);
+	}
+}
@@ -0,0 +1,194 @@
+package demo.socks.metrics;
+
+import demo.socks.SocksException;
+import demo.socks.SocksVersion;
+import org.apache.http.HttpHost;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and histograms of one proxy. Recording only increments atomics and does not allocate, snapshots are taken
+ * without stopping the recording and may be slightly inconsistent.
+ */
+public class ProxyMetrics implements ProxyMetricsMXBean {
+	private final HttpHost proxy;
+
+	private final AtomicLong connects = new AtomicLong();
+	private final AtomicLong connectFailures = new AtomicLong();
+	private final LatencyHistogram connectTime = new LatencyHistogram();
+
+	private final AtomicLong handshakesGranted = new AtomicLong();
+	private final AtomicLongArray rejectionsByReplyCode = new AtomicLongArray(256);
+	private final AtomicLong handshakeErrors = new AtomicLong();
+	private final LatencyHistogram handshakeTime = new LatencyHistogram();
+
+	private final AtomicLong tlsFailures = new AtomicLong();
+	private final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+
+	private volatile SocksVersion negotiatedVersion;
+	private volatile int negotiatedMethod = -1;
+	private final AtomicLong versionDowngrades = new AtomicLong();
+
+	public ProxyMetrics(HttpHost proxy) {
+		this.proxy = proxy;
+	}
+
+	void connected(long nanos) {
+		connects.incrementAndGet();
+		connectTime.recordNanos(nanos);
+	}
+
+	void connectFailed() {
+		connectFailures.incrementAndGet();
+	}
+
+	void handshakeCompleted(long nanos) {
+		handshakesGranted.incrementAndGet();
+		handshakeTime.recordNanos(nanos);
+	}
+
+	void handshakeFailed(Exception ex) {
+		if (ex instanceof SocksException)
+			rejectionsByReplyCode.incrementAndGet(((SocksException) ex).getReplyCode() & 0xff);
+		else
+			handshakeErrors.incrementAndGet();
+	}
+
+	void tlsHandshakeCompleted(long nanos) {
+		tlsHandshakeTime.recordNanos(nanos);
+	}
+
+	void tlsHandshakeFailed() {
+		tlsFailures.incrementAndGet();
+	}
+
+	void versionNegotiated(SocksVersion version, int method) {
+		negotiatedVersion = version;
+		negotiatedMethod = method;
+	}
+
+	void versionDowngraded() {
+		versionDowngrades.incrementAndGet();
+	}
+
+	public HttpHost getProxyHost() {
+		return proxy;
+	}
+
+	@Override
+	public String getProxy() {
+		return proxy.toString();
+	}
+
+	@Override
+	public long getConnects() {
+		return connects.get();
+	}
+
+	@Override
+	public long getConnectFailures() {
+		return connectFailures.get();
+	}
+
+	@Override
+	public LatencySnapshot getConnectTime() {
+		return LatencySnapshot.of(connectTime);
+	}
+
+	@Override
+	public long getHandshakesGranted() {
+		return handshakesGranted.get();
+	}
+
+	@Override
+	public Map<Integer, Long> getRejectionsByReplyCode() {
+		Map<Integer, Long> rejections = new TreeMap<>();
+		for (int code = 0; code < rejectionsByReplyCode.length(); code++) {
+			long count = rejectionsByReplyCode.get(code);
+			if (count > 0)
+				rejections.put(code, count);
+		}
+		return rejections;
+	}
+
+	@Override
+	public long getHandshakeErrors() {
+		return handshakeErrors.get();
+	}
+
+	@Override
+	public LatencySnapshot getHandshakeTime() {
+		return LatencySnapshot.of(handshakeTime);
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the sum of the percentiles of connect and handshake time, about how long opening a tunnel takes
+	 */
+	public double getTunnelTimePercentile(double percentile, TimeUnit unit) {
+		return connectTime.getPercentile(percentile, unit) + handshakeTime.getPercentile(percentile, unit);
+	}
+
+	@Override
+	public long getTlsHandshakes() {
+		return tlsHandshakeTime.getCount();
+	}
+
+	@Override
+	public long getTlsFailures() {
+		return tlsFailures.get();
+	}
+
+	@Override
+	public LatencySnapshot getTlsHandshakeTime() {
+		return LatencySnapshot.of(tlsHandshakeTime);
+	}
+
+	@Override
+	public String getNegotiatedVersion() {
+		SocksVersion version = negotiatedVersion;
+		return version != null ? version.toString() : null;
+	}
+
+	@Override
+	public int getNegotiatedMethod() {
+		return negotiatedMethod;
+	}
+
+	@Override
+	public long getVersionDowngrades() {
+		return versionDowngrades.get();
+	}
+
+	/**
+	 * Resets the counters and histograms, the negotiated version is kept.
+	 */
+	@Override
+	public void reset() {
+		connects.set(0);
+		connectFailures.set(0);
+		connectTime.reset();
+		handshakesGranted.set(0);
+		for (int code = 0; code < rejectionsByReplyCode.length(); code++)
+			rejectionsByReplyCode.set(code, 0);
+		handshakeErrors.set(0);
+		handshakeTime.reset();
+		tlsFailures.set(0);
+		tlsHandshakeTime.reset();
+		versionDowngrades.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return proxy + "[connects=" + getConnects() + ", connectFailures=" + getConnectFailures()
+				+ ", connectTime=" + getConnectTime() + ", granted=" + getHandshakesGranted()
+				+ ", rejected=" + getRejectionsByReplyCode() + ", handshakeErrors=" + getHandshakeErrors()
+				+ ", handshakeTime=" + getHandshakeTime() + ", tlsFailures=" + getTlsFailures()
+				+ ", tlsHandshakeTime=" + getTlsHandshakeTime() + ", version=" + getNegotiatedVersion()
+				+ ", versionDowngrades=" + getVersionDowngrades() + "]";
+	}
+}
@@ -0,0 +1,64 @@
+package demo.socks.metrics;
+
+import java.util.Map;
+
+/**
+ * Connects, SOCKS handshakes and TLS handshakes through one proxy, registered by {@link SocksMetrics}.
+ */
+public interface ProxyMetricsMXBean {
+	String getProxy();
+
+	long getConnects();
+
+	long getConnectFailures();
+
+	/**
+	 * @return time to connect to the proxy
+	 */
+	LatencySnapshot getConnectTime();
+
+	long getHandshakesGranted();
+
+	/**
+	 * @return handshakes the proxy rejected with a reply code, SOCKS4 (91 to 93) and SOCKS5 (1 to 8, 0xfe and 0xff
+	 * for the method selection and the authentication) codes do not overlap
+	 */
+	Map<Integer, Long> getRejectionsByReplyCode();
+
+	/**
+	 * @return handshakes failing without a reply code, e.g. timed out or closed by the proxy
+	 */
+	long getHandshakeErrors();
+
+	/**
+	 * @return time from the first SOCKS request to the established tunnel, of granted handshakes only
+	 */
+	LatencySnapshot getHandshakeTime();
+
+	long getTlsHandshakes();
+
+	long getTlsFailures();
+
+	/**
+	 * @return time from the established tunnel to the verified TLS session
+	 */
+	LatencySnapshot getTlsHandshakeTime();
+
+	/**
+	 * @return the version learned by a {@link demo.socks.SocksNegotiatingIOSessionStrategy}, {@code 5}, {@code 4a} or
+	 * {@code 4}, null if none was learned
+	 */
+	String getNegotiatedVersion();
+
+	/**
+	 * @return the SOCKS5 authentication method learned along with the version, -1 for SOCKS4 or if none was learned
+	 */
+	int getNegotiatedMethod();
+
+	/**
+	 * @return tunnels that found the proxy not to speak the version tried and fell back to an older one
+	 */
+	long getVersionDowngrades();
+
+	void reset();
+}
@@ -0,0 +1,147 @@
+package demo.socks.metrics;
+
+import demo.socks.SocksEventListener;
+import demo.socks.SocksVersion;
+import org.apache.http.HttpHost;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Records {@link ProxyMetrics} per proxy as the {@link SocksEventListener} of the {@link demo.socks.SocksConfig}
+ * and the {@link demo.socks.SocksConnectingIOReactor}, combined with other listeners by
+ * {@link demo.socks.SocksEventListeners#compose(SocksEventListener...)}. To feed another metrics library implement
+ * the listener instead.
+ * <p>
+ * With an {@link MBeanServer} the metrics of every proxy are registered as
+ * {@code demo.socks:type=ProxyMetrics,proxy="<proxy>"} the first time the proxy is seen, that one event allocates.
+ */
+public class SocksMetrics implements SocksEventListener, Closeable {
+	private static final Logger log = LoggerFactory.getLogger(SocksMetrics.class);
+
+	public static final String DOMAIN = "demo.socks";
+
+	private final MBeanServer mBeanServer;
+	private final ConcurrentMap<HttpHost, ProxyMetrics> metrics = new ConcurrentHashMap<>();
+
+	/**
+	 * Records without exposing the metrics through JMX.
+	 */
+	public SocksMetrics() {
+		this.mBeanServer = null;
+	}
+
+	public SocksMetrics(MBeanServer mBeanServer) {
+		this.mBeanServer = checkNotNull(mBeanServer, "mbean server");
+	}
+
+	/**
+	 * @return the metrics of the proxy, created if it was not seen yet
+	 */
+	public ProxyMetrics get(HttpHost proxy) {
+		ProxyMetrics proxyMetrics = metrics.get(proxy);
+		if (proxyMetrics != null)
+			return proxyMetrics;
+
+		ProxyMetrics created = new ProxyMetrics(proxy);
+		proxyMetrics = metrics.putIfAbsent(proxy, created);
+		if (proxyMetrics != null)
+			return proxyMetrics;
+
+		register(created);
+		return created;
+	}
+
+	public Collection<ProxyMetrics> getAll() {
+		return Collections.unmodifiableCollection(metrics.values());
+	}
+
+	@Override
+	public void connected(HttpHost proxy, long nanos) {
+		get(proxy).connected(nanos);
+	}
+
+	@Override
+	public void connectFailed(HttpHost proxy, long nanos, IOException ex) {
+		get(proxy).connectFailed();
+	}
+
+	@Override
+	public void handshakeCompleted(HttpHost proxy, long nanos) {
+		get(proxy).handshakeCompleted(nanos);
+	}
+
+	@Override
+	public void handshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+		get(proxy).handshakeFailed(ex);
+	}
+
+	@Override
+	public void tlsHandshakeCompleted(HttpHost proxy, long nanos) {
+		get(proxy).tlsHandshakeCompleted(nanos);
+	}
+
+	@Override
+	public void tlsHandshakeFailed(HttpHost proxy, long nanos, Exception ex) {
+		get(proxy).tlsHandshakeFailed();
+	}
+
+	@Override
+	public void versionNegotiated(HttpHost proxy, SocksVersion version, int method) {
+		get(proxy).versionNegotiated(version, method);
+	}
+
+	@Override
+	public void versionDowngraded(HttpHost proxy, SocksVersion from, SocksVersion to) {
+		get(proxy).versionDowngraded();
+	}
+
+	/**
+	 * Unregisters the MBeans, the metrics stay available.
+	 */
+	@Override
+	public void close() {
+		if (mBeanServer == null)
+			return;
+		for (ProxyMetrics proxyMetrics : metrics.values()) {
+			try {
+				ObjectName name = objectName(proxyMetrics.getProxyHost());
+				if (mBeanServer.isRegistered(name))
+					mBeanServer.unregisterMBean(name);
+			} catch (JMException e) {
+				log.warn("unregistering metrics of proxy {} failed", proxyMetrics.getProxyHost(), e);
+			}
+		}
+	}
+
+	private void register(ProxyMetrics proxyMetrics) {
+		if (mBeanServer == null)
+			return;
+		try {
+			mBeanServer.registerMBean(proxyMetrics, objectName(proxyMetrics.getProxyHost()));
+		} catch (JMException e) {
+			// e.g. a second client with the same proxy in the same JVM, recording goes on
+			log.warn("registering metrics of proxy {} failed", proxyMetrics.getProxyHost(), e);
+		}
+	}
+
+	private static ObjectName objectName(HttpHost proxy) throws JMException {
+		return new ObjectName(DOMAIN + ":type=ProxyMetrics,proxy=" + ObjectName.quote(proxy.toString()));
+	}
+
+	@Override
+	public String toString() {
+		return metrics.values().toString();
+	}
+}
@@ -0,0 +1,135 @@
+package demo.socks.v4;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.HostAndPort;
+import com.google.common.net.InetAddresses;
+import demo.socks.SocksIOSession;
+import org.apache.http.HttpHost;
+
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Caches the encoded SOCKS {@code connect} packet per target host for one user id, so opening a tunnel to a known
+ * target neither parses nor encodes anything.
+ */
+public class Socks4ConnectTemplates {
+	private static final InetAddress SOCKS_SERVER_NAME_LOOKUP_ADDRESS = InetAddresses.fromInteger(0x01);
+	private static final int MAX_TEMPLATES = 4096;
+
+	private static final ConcurrentMap<String, Socks4ConnectTemplates> byUser = new ConcurrentHashMap<>();
+
+	private final byte[] user;
+	private final ConcurrentMap<HttpHost, Template> templates = new ConcurrentHashMap<>();
+
+	private Socks4ConnectTemplates(String userName) {
+		this.user = userName.getBytes(Charsets.ISO_8859_1);
+	}
+
+	public static Socks4ConnectTemplates forUser(String userName) {
+		Socks4ConnectTemplates userTemplates = byUser.get(userName);
+		if (userTemplates == null) {
+			Socks4ConnectTemplates created = new Socks4ConnectTemplates(userName);
+			userTemplates = byUser.putIfAbsent(userName, created);
+			if (userTemplates == null)
+				userTemplates = created;
+		}
+		return userTemplates;
+	}
+
+	public Template get(HttpHost targetHost) {
+		Template template = templates.get(targetHost);
+		if (template == null) {
+			// the targets are expected to be a small set, start over in the unlikely case they are not
+			if (templates.size() >= MAX_TEMPLATES)
+				templates.clear();
+
+			template = new Template(encodeConnect(targetHost), SocksIOSession.remoteAddressOf(targetHost));
+			templates.putIfAbsent(targetHost, template);
+		}
+		return template;
+	}
+
+	private byte[] encodeConnect(HttpHost targetHost) {
+		/*
+		CONNECT
+
+		The client connects to the SOCKS server and sends a CONNECT request when
+		it wants to establish a connection to an application server. The client
+		includes in the request packet the IP address and the port number of the
+		destination host, and userid, in the following format.
+
+				+----+----+----+----+----+----+----+----+----+----+....+----+
+				| VN | CD | DSTPORT |      DSTIP        | USERID       |NULL|
+				+----+----+----+----+----+----+----+----+----+----+....+----+
+				   1    1      2              4           variable       1
+
+		VN is the SOCKS protocol version number and should be 4. CD is the
+		SOCKS command code and should be 1 for CONNECT request. NULL is a byte
+		of all zero bits.
+
+		The SOCKS server checks to see whether such a request should be granted
+		based on any combination of source IP address, destination IP address,
+		destination port number, the userid, and information it may obtain by
+		consulting IDENT, cf. RFC 1413.  If the request is granted, the SOCKS
+		server makes a connection to the specified port of the destination host.
+		A reply packet is sent to the client when this connection is established,
+		or when the request is rejected or the operation fails.
+		*/
+
+		HostAndPort hostAndPort = HostAndPort.fromString(targetHost.toHostString());
+
+		byte[] hostName = hostAndPort.getHostText().getBytes(Charsets.ISO_8859_1);
+
+		// if we got the socks server as a domain name instead of ip address we will uses SOCKS4a to let the server handle the lookup
+		InetAddress host = SOCKS_SERVER_NAME_LOOKUP_ADDRESS;
+		boolean needsSocksServerHostnameLookup = false;
+		if (InetAddresses.isInetAddress(hostAndPort.getHostText()))
+			host = InetAddresses.forString(hostAndPort.getHostText());
+		else
+			needsSocksServerHostnameLookup = true;
+
+		int port = hostAndPort.getPort();
+
+		final int packetSize = 9 + user.length + (needsSocksServerHostnameLookup ? hostName.length + 1 : 0);
+		ByteBuffer socksConnect = ByteBuffer.allocate(packetSize);
+		socksConnect.put((byte) 0x4);
+		socksConnect.put((byte) 0x1);
+		socksConnect.put((byte) ((port >> 8) & 0xff));
+		socksConnect.put((byte) ((port >> 0) & 0xff));
+		socksConnect.put(host.getAddress());
+		socksConnect.put(user);
+		socksConnect.put((byte) 0x0);
+
+		if (needsSocksServerHostnameLookup) {
+			socksConnect.put(hostName);
+			socksConnect.put((byte) 0x0);
+		}
+
+		return socksConnect.array();
+	}
+
+	public static final class Template {
+		private final byte[] packet;
+		private final SocketAddress remoteAddress;
+
+		private Template(byte[] packet, SocketAddress remoteAddress) {
+			this.packet = packet;
+			this.remoteAddress = remoteAddress;
+		}
+
+		/**
+		 * @return the shared connect packet, must not be modified
+		 */
+		byte[] getPacket() {
+			return packet;
+		}
+
+		SocketAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+	}
+}
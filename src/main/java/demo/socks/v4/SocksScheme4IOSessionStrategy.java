@@ -1,47 +1,22 @@
 package demo.socks.v4;
 
-import org.apache.http.HttpHost;
-import org.apache.http.conn.routing.HttpRoute;
-import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import demo.socks.SocksConfig;
+import demo.socks.SocksIOSession;
+import demo.socks.SocksSchemeIOSessionStrategy;
 import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.nio.reactor.IOSession;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.IOException;
-import java.util.Objects;
-
-public class SocksScheme4IOSessionStrategy implements SchemeIOSessionStrategy {
-    private static final Logger log = LoggerFactory.getLogger(SocksScheme4IOSessionStrategy.class);
-
-	private final SSLIOSessionStrategy sslioSessionStrategy;
 
+public class SocksScheme4IOSessionStrategy extends SocksSchemeIOSessionStrategy {
 	public SocksScheme4IOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy) {
-		this.sslioSessionStrategy = sslioSessionStrategy;
+		this(sslioSessionStrategy, SocksConfig.DEFAULT);
 	}
 
-	public boolean isLayeringRequired() {
-        return true;
-    }
-
-    @Override
-    public IOSession upgrade(HttpHost host, IOSession iosession) throws IOException {
-        if (log.isTraceEnabled())
-            log.trace("upgrading session to demo.socks");
-
-		HttpRoute route =((HttpRoute)iosession.getAttribute(IOSession.ATTACHMENT_KEY));
-		String targetScheme = route.getTargetHost().getSchemeName();
-
-		Socks4IOSession socksSession = new Socks4IOSession(iosession, "user");
-		socksSession.initialize();
-
-		IOSession resultSession = socksSession;
-
-		if (Objects.equals("https", targetScheme)) {
-			resultSession = sslioSessionStrategy.upgrade(route.getTargetHost(), socksSession);
-			resultSession.setAttribute(Socks4IOSession.SESSION_KEY, socksSession);
-		}
+	public SocksScheme4IOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy, SocksConfig config) {
+		super(sslioSessionStrategy, config);
+	}
 
-        return resultSession;
-    }
+	@Override
+	protected SocksIOSession createSocksSession(IOSession iosession) {
+		return new Socks4IOSession(iosession, config);
+	}
 }
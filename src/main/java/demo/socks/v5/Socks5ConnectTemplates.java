@@ -0,0 +1,205 @@
+package demo.socks.v5;
+
+import com.google.common.base.Charsets;
+import com.google.common.net.HostAndPort;
+import com.google.common.net.InetAddresses;
+import demo.socks.SocksIOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Caches the encoded SOCKS5 packets for one set of credentials: the method selection greeting, the username/password
+ * sub-negotiation and, per target host, the {@code CONNECT} request on its own and pipelined behind the other two.
+ */
+public class Socks5ConnectTemplates {
+	static final byte VERSION = 0x05;
+	static final byte METHOD_NO_AUTHENTICATION = 0x00;
+	static final byte METHOD_USERNAME_PASSWORD = 0x02;
+	static final byte USERNAME_PASSWORD_VERSION = 0x01;
+
+	private static final byte CMD_CONNECT = 0x01;
+	private static final byte ATYP_IPV4 = 0x01;
+	private static final byte ATYP_DOMAINNAME = 0x03;
+	private static final byte ATYP_IPV6 = 0x04;
+
+	private static final int MAX_TEMPLATES = 4096;
+
+	private final byte method;
+	private final byte[] greeting;
+	private final byte[] pipelinedGreeting;
+	private final byte[] authentication;
+	private final ConcurrentMap<HttpHost, Template> templates = new ConcurrentHashMap<>();
+
+	/**
+	 * @param credentials {@code null} to connect without authentication
+	 */
+	public Socks5ConnectTemplates(UsernamePasswordCredentials credentials) {
+		/*
+		+----+----------+----------+
+		|VER | NMETHODS | METHODS  |
+		+----+----------+----------+
+		| 1  |    1     | 1 to 255 |
+		+----+----------+----------+
+
+		When negotiating, both methods are offered if there are credentials and the proxy picks one. When pipelining,
+		only the method that is going to be used is offered since the following packets depend on it.
+		 */
+		if (credentials == null) {
+			this.method = METHOD_NO_AUTHENTICATION;
+			this.greeting = new byte[]{VERSION, 1, METHOD_NO_AUTHENTICATION};
+			this.authentication = null;
+		} else {
+			this.method = METHOD_USERNAME_PASSWORD;
+			this.greeting = new byte[]{VERSION, 2, METHOD_NO_AUTHENTICATION, METHOD_USERNAME_PASSWORD};
+			this.authentication = encodeAuthentication(credentials);
+		}
+		this.pipelinedGreeting = new byte[]{VERSION, 1, method};
+	}
+
+	/**
+	 * @return the method a pipelined handshake relies on
+	 */
+	public byte getMethod() {
+		return method;
+	}
+
+	byte[] getGreeting() {
+		return greeting;
+	}
+
+	/**
+	 * @return the username/password sub-negotiation or {@code null} without credentials
+	 */
+	byte[] getAuthentication() {
+		return authentication;
+	}
+
+	public Template get(HttpHost targetHost) {
+		Template template = templates.get(targetHost);
+		if (template == null) {
+			// the targets are expected to be a small set, start over in the unlikely case they are not
+			if (templates.size() >= MAX_TEMPLATES)
+				templates.clear();
+
+			byte[] connect = encodeConnect(targetHost);
+			template = new Template(connect, pipeline(connect), SocksIOSession.remoteAddressOf(targetHost));
+			templates.putIfAbsent(targetHost, template);
+		}
+		return template;
+	}
+
+	private static byte[] encodeAuthentication(UsernamePasswordCredentials credentials) {
+		/*
+		+----+------+----------+------+----------+
+		|VER | ULEN |  UNAME   | PLEN |  PASSWD  |
+		+----+------+----------+------+----------+
+		| 1  |  1   | 1 to 255 |  1   | 1 to 255 |
+		+----+------+----------+------+----------+
+
+		RFC 1929, VER is the version of the sub-negotiation and should be 1.
+		 */
+		byte[] user = credentials.getUserName().getBytes(Charsets.UTF_8);
+		byte[] password = credentials.getPassword() != null ? credentials.getPassword().getBytes(Charsets.UTF_8) : new byte[0];
+		checkArgument(user.length > 0 && user.length <= 255, "socks5 user name must be 1 to 255 bytes");
+		checkArgument(password.length <= 255, "socks5 password must be at most 255 bytes");
+
+		ByteBuffer authentication = ByteBuffer.allocate(3 + user.length + password.length);
+		authentication.put(USERNAME_PASSWORD_VERSION);
+		authentication.put((byte) user.length);
+		authentication.put(user);
+		authentication.put((byte) password.length);
+		authentication.put(password);
+		return authentication.array();
+	}
+
+	private static byte[] encodeConnect(HttpHost targetHost) {
+		/*
+		+----+-----+-------+------+----------+----------+
+		|VER | CMD |  RSV  | ATYP | DST.ADDR | DST.PORT |
+		+----+-----+-------+------+----------+----------+
+		| 1  |  1  | X'00' |  1   | Variable |    2     |
+		+----+-----+-------+------+----------+----------+
+
+		ATYP is 1 for an IPv4 address, 3 for a domain name (first octet is its length) and 4 for an IPv6 address.
+		Host names are passed on so the proxy does the lookup, like with SOCKS4a, unless the client resolved them.
+		 */
+		HostAndPort hostAndPort = HostAndPort.fromString(targetHost.toHostString());
+		String hostText = hostAndPort.getHostText();
+
+		byte atyp;
+		byte[] address;
+		if (InetAddresses.isInetAddress(hostText)) {
+			InetAddress host = InetAddresses.forString(hostText);
+			atyp = host instanceof Inet4Address ? ATYP_IPV4 : ATYP_IPV6;
+			address = host.getAddress();
+		} else {
+			atyp = ATYP_DOMAINNAME;
+			address = hostText.getBytes(Charsets.ISO_8859_1);
+			checkArgument(address.length <= 255, "host name too long for socks5: %s", hostText);
+		}
+
+		int port = hostAndPort.getPort();
+
+		ByteBuffer connect = ByteBuffer.allocate(6 + (atyp == ATYP_DOMAINNAME ? 1 : 0) + address.length);
+		connect.put(VERSION);
+		connect.put(CMD_CONNECT);
+		connect.put((byte) 0x0);
+		connect.put(atyp);
+		if (atyp == ATYP_DOMAINNAME)
+			connect.put((byte) address.length);
+		connect.put(address);
+		connect.put((byte) ((port >> 8) & 0xff));
+		connect.put((byte) ((port >> 0) & 0xff));
+		return connect.array();
+	}
+
+	private byte[] pipeline(byte[] connect) {
+		int authenticationLength = authentication != null ? authentication.length : 0;
+
+		ByteBuffer pipelined = ByteBuffer.allocate(pipelinedGreeting.length + authenticationLength + connect.length);
+		pipelined.put(pipelinedGreeting);
+		if (authentication != null)
+			pipelined.put(authentication);
+		pipelined.put(connect);
+		return pipelined.array();
+	}
+
+	public static final class Template {
+		private final byte[] connect;
+		private final byte[] pipelined;
+		private final SocketAddress remoteAddress;
+
+		private Template(byte[] connect, byte[] pipelined, SocketAddress remoteAddress) {
+			this.connect = connect;
+			this.pipelined = pipelined;
+			this.remoteAddress = remoteAddress;
+		}
+
+		/**
+		 * @return the shared connect request, must not be modified
+		 */
+		byte[] getConnect() {
+			return connect;
+		}
+
+		/**
+		 * @return greeting, authentication and connect request in one shared packet, must not be modified
+		 */
+		byte[] getPipelined() {
+			return pipelined;
+		}
+
+		SocketAddress getRemoteAddress() {
+			return remoteAddress;
+		}
+	}
+}
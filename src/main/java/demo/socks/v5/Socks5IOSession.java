@@ -0,0 +1,223 @@
+package demo.socks.v5;
+
+import com.google.common.base.VerifyException;
+import demo.socks.SocksBufferPool;
+import demo.socks.SocksConfig;
+import demo.socks.SocksException;
+import demo.socks.SocksIOSession;
+import org.apache.http.nio.reactor.IOSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * SOCKS5 (RFC 1928) session with optional username/password authentication (RFC 1929).
+ * <p>
+ * Negotiating, the greeting, the authentication and the {@code CONNECT} request each wait for the previous reply,
+ * up to three round trips. Pipelined, all of them go out in one write and the replies are read as they arrive, one
+ * round trip. Pipelining needs a proxy that accepts the single method offered, which has to be known in advance.
+ */
+public class Socks5IOSession extends SocksIOSession {
+	private static final Logger log = LoggerFactory.getLogger(Socks5IOSession.class);
+
+	private static final int VERSION = 5;
+
+	/**
+	 * Reply codes reported in a {@link SocksException} when the method selection or the authentication fails. They are
+	 * not assigned as {@code CONNECT} reply codes by RFC 1928.
+	 */
+	public static final int NO_ACCEPTABLE_METHODS = 0xff;
+	public static final int AUTHENTICATION_FAILED = 0xfe;
+
+	// VER REP RSV ATYP and the first address octet, which is the length of a domain name
+	private static final int CONNECT_REPLY_HEAD_SIZE = 5;
+	private static final int MAX_REPLY_SIZE = 4 + 1 + 255 + 2;
+	private static final SocksBufferPool REPLY_BUFFERS = new SocksBufferPool(MAX_REPLY_SIZE, 256);
+
+	private enum Step {
+		METHOD, AUTHENTICATION, CONNECT, BOUND_ADDRESS
+	}
+
+	private final Socks5ConnectTemplates templates;
+	private final SocketAddress remoteAddress;
+	private final boolean pipelined;
+	private Socks5ConnectTemplates.Template template;
+	private Step step;
+	private int selectedMethod = -1;
+
+	public Socks5IOSession(IOSession delegate, Socks5ConnectTemplates templates, boolean pipelined, SocksConfig config) {
+		super(delegate, REPLY_BUFFERS, config);
+		this.templates = templates;
+		this.remoteAddress = templates.get(targetHost).getRemoteAddress();
+		this.pipelined = pipelined;
+	}
+
+	@Override
+	protected void start() {
+		if (log.isTraceEnabled())
+			log.trace("demo.socks5 connect to {} ({})", targetHost, pipelined ? "pipelined" : "negotiating");
+
+		template = templates.get(getConnectTarget());
+		if (pipelined)
+			sendConnect(template.getPipelined());
+		else
+			send(templates.getGreeting());
+		step = Step.METHOD;
+		expect(2);
+	}
+
+	@Override
+	protected boolean receive(ByteBuffer reply) throws IOException {
+		switch (step) {
+			case METHOD:
+				receiveMethod(reply);
+				return false;
+			case AUTHENTICATION:
+				receiveAuthentication(reply);
+				return false;
+			case CONNECT:
+				receiveConnect(reply);
+				return false;
+			case BOUND_ADDRESS:
+				if (log.isTraceEnabled())
+					log.trace("socks5 connected OK");
+				return true;
+			default:
+				throw new IllegalStateException("unknown handshake step " + step);
+		}
+	}
+
+	private void receiveMethod(ByteBuffer reply) throws IOException {
+		/*
+		+----+--------+
+		|VER | METHOD |
+		+----+--------+
+		| 1  |   1    |
+		+----+--------+
+		 */
+		byte ver = reply.get();
+		if (ver != VERSION)
+			throw versionRejected(ver);
+		int method = reply.get() & 0xff;
+		selectedMethod = method;
+
+		if (method == NO_ACCEPTABLE_METHODS)
+			throw reject(SocksException.of(proxyHost, VERSION, NO_ACCEPTABLE_METHODS, "socks5 proxy accepts none of the offered methods"));
+		if (pipelined && method != templates.getMethod())
+			throw new VerifyException("socks5 proxy selected method " + method + " instead of the pipelined one");
+
+		if (method == Socks5ConnectTemplates.METHOD_USERNAME_PASSWORD && templates.getAuthentication() != null) {
+			if (!pipelined)
+				send(templates.getAuthentication());
+			step = Step.AUTHENTICATION;
+			expect(2);
+		} else if (method == Socks5ConnectTemplates.METHOD_NO_AUTHENTICATION) {
+			requestConnect();
+		} else {
+			throw new VerifyException("socks5 proxy selected method " + method + " which was not offered");
+		}
+	}
+
+	private void receiveAuthentication(ByteBuffer reply) throws IOException {
+		/*
+		+----+--------+
+		|VER | STATUS |
+		+----+--------+
+		| 1  |   1    |
+		+----+--------+
+
+		A STATUS field of X'00' indicates success. If the server returns a failure (STATUS value other than X'00')
+		status, it MUST close the connection.
+		 */
+		byte ver = reply.get();
+		if (ver != Socks5ConnectTemplates.USERNAME_PASSWORD_VERSION)
+			throw new VerifyException("invalid socks5 authentication version " + ver + " received");
+		if (reply.get() != 0)
+			throw reject(SocksException.of(proxyHost, VERSION, AUTHENTICATION_FAILED, "socks5 authentication failed"));
+
+		requestConnect();
+	}
+
+	private void requestConnect() {
+		if (!pipelined)
+			sendConnect(template.getConnect());
+		step = Step.CONNECT;
+		expect(CONNECT_REPLY_HEAD_SIZE);
+	}
+
+	private void receiveConnect(ByteBuffer reply) throws IOException {
+		/*
+		+----+-----+-------+------+----------+----------+
+		|VER | REP |  RSV  | ATYP | BND.ADDR | BND.PORT |
+		+----+-----+-------+------+----------+----------+
+		| 1  |  1  | X'00' |  1   | Variable |    2     |
+		+----+-----+-------+------+----------+----------+
+
+		When a reply (REP value other than X'00') indicates a failure, the SOCKS server MUST terminate the TCP
+		connection shortly after sending the reply.
+		 */
+		byte ver = reply.get();
+		if (ver != VERSION)
+			throw versionRejected(ver);
+		int rep = reply.get() & 0xff;
+		replyReceived(rep);
+		switch (rep) {
+			case 0x00:
+				break;
+			case 0x01:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: general SOCKS server failure"));
+			case 0x02:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: connection not allowed by ruleset"));
+			case 0x03:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: network unreachable"));
+			case 0x04:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: host unreachable"));
+			case 0x05:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: connection refused"));
+			case 0x06:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: TTL expired"));
+			case 0x07:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: command not supported"));
+			case 0x08:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "socks5 rejected: address type not supported"));
+			default:
+				throw reject(SocksException.of(proxyHost, VERSION, rep, "bad socks status"));
+		}
+
+		reply.get();
+		byte atyp = reply.get();
+		int addressLength;
+		switch (atyp) {
+			case 0x01:
+				addressLength = 4;
+				break;
+			case 0x03:
+				addressLength = 1 + (reply.get() & 0xff);
+				break;
+			case 0x04:
+				addressLength = 16;
+				break;
+			default:
+				throw new VerifyException("invalid socks5 address type " + atyp + " received");
+		}
+
+		// the bound address is of no interest, but it has to be consumed before the tunnel carries data
+		step = Step.BOUND_ADDRESS;
+		expectMore(4 + addressLength + 2);
+	}
+
+	/**
+	 * @return the authentication method the proxy selected, -1 until it replied to the greeting
+	 */
+	public int getSelectedMethod() {
+		return selectedMethod;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() {
+		return remoteAddress;
+	}
+}
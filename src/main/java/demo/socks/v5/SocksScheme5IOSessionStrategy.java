@@ -0,0 +1,47 @@
+package demo.socks.v5;
+
+import demo.socks.SocksConfig;
+import demo.socks.SocksIOSession;
+import demo.socks.SocksSchemeIOSessionStrategy;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+
+/**
+ * Strategy for SOCKS5 proxies, usually registered as {@code socks5}.
+ * <p>
+ * With {@code pipelined} the greeting, the authentication and the {@code CONNECT} request are sent in one write,
+ * saving up to two round trips per tunnel. Only use it for proxies known to accept the method offered: username and
+ * password with credentials, no authentication without.
+ */
+public class SocksScheme5IOSessionStrategy extends SocksSchemeIOSessionStrategy {
+	private final Socks5ConnectTemplates templates;
+	private final boolean pipelined;
+
+	public SocksScheme5IOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy) {
+		this(sslioSessionStrategy, null, false);
+	}
+
+	/**
+	 * @param credentials {@code null} to connect without authentication
+	 */
+	public SocksScheme5IOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy, UsernamePasswordCredentials credentials,
+										 boolean pipelined) {
+		this(sslioSessionStrategy, credentials, pipelined, SocksConfig.DEFAULT);
+	}
+
+	/**
+	 * @param credentials {@code null} to connect without authentication
+	 */
+	public SocksScheme5IOSessionStrategy(SSLIOSessionStrategy sslioSessionStrategy, UsernamePasswordCredentials credentials,
+										 boolean pipelined, SocksConfig config) {
+		super(sslioSessionStrategy, config);
+		this.templates = new Socks5ConnectTemplates(credentials);
+		this.pipelined = pipelined;
+	}
+
+	@Override
+	protected SocksIOSession createSocksSession(IOSession iosession) {
+		return new Socks5IOSession(iosession, templates, pipelined, config);
+	}
+}
@@ -0,0 +1,84 @@
+package demo.socks;
+
+import com.google.common.base.Predicates;
+import demo.socks.bench.InMemoryIOSession;
+import demo.socks.v4.Socks4IOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.reactor.EventMask;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOSession;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SocksIOEventDispatchProxyTest {
+	private static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks");
+
+	private static final byte[] CONNECT = {4, 1, 0, 80, 10, 0, 0, 1, 'u', 's', 'e', 'r', 0};
+	// a SOCKS5 proxy answering in its own version
+	private static final byte[] WRONG_VERSION = {5, 90, 0, 80, 10, 0, 0, 1};
+
+	private final SocksConfig config = SocksConfig.custom()
+			.setEarlyDataRoutes(Predicates.<HttpRoute>alwaysTrue())
+			.build();
+
+	private final RecordingDispatch delegate = new RecordingDispatch();
+	private final SocksIOEventDispatchProxy dispatch = new SocksIOEventDispatchProxy(delegate);
+
+	@Test
+	public void writesNoEarlyDataAfterFailedHandshake() throws IOException {
+		InMemoryIOSession session = new InMemoryIOSession(new HttpRoute(new HttpHost("10.0.0.1", 80, "http"), null, PROXY, false));
+		// the HTTP layer has a request to write
+		session.setEventMask(EventMask.READ | EventMask.WRITE);
+		session.recordWrites();
+		Socks4IOSession socksSession = new Socks4IOSession(session, config);
+
+		// the CONNECT request is flushed, the request may follow before the reply
+		dispatch.outputReady(session);
+		assertEquals(CONNECT.length, session.getWritten().length);
+		assertTrue(socksSession.isEarlyDataWritable());
+		assertEquals(1, delegate.outputReady);
+
+		session.feed(WRONG_VERSION);
+		dispatch.outputReady(session);
+		assertEquals(IOSession.CLOSED, session.getStatus());
+		assertEquals(1, delegate.outputReady);
+		assertEquals(0, delegate.inputReady);
+		assertFalse(socksSession.isEarlyDataWritable());
+		assertEquals(0, socksSession.channel().write(ByteBuffer.wrap(new byte[]{'G', 'E', 'T'})));
+		assertEquals(0, session.getWritten().length);
+	}
+
+	private static class RecordingDispatch implements IOEventDispatch {
+		int inputReady;
+		int outputReady;
+
+		@Override
+		public void connected(IOSession session) {
+		}
+
+		@Override
+		public void inputReady(IOSession session) {
+			inputReady++;
+		}
+
+		@Override
+		public void outputReady(IOSession session) {
+			outputReady++;
+		}
+
+		@Override
+		public void timeout(IOSession session) {
+		}
+
+		@Override
+		public void disconnected(IOSession session) {
+		}
+	}
+}
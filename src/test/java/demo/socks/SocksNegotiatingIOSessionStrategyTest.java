@@ -0,0 +1,204 @@
+package demo.socks;
+
+import com.google.common.base.VerifyException;
+import com.google.common.primitives.Bytes;
+import demo.socks.bench.InMemoryIOSession;
+import demo.socks.metrics.SocksMetrics;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.reactor.EventMask;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SocksNegotiatingIOSessionStrategyTest {
+	private static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks");
+
+	private static final byte[] GREETING = {5, 1, 0};
+	private static final byte[] GREETING_AUTHENTICATION = {5, 2, 0, 2};
+	private static final byte[] AUTHENTICATION = {1, 4, 'u', 's', 'e', 'r', 4, 'p', 'a', 's', 's'};
+	private static final byte[] CONNECT_5 = {5, 1, 0, 1, 10, 0, 0, 1, 0, 80};
+	private static final byte[] CONNECT_4 = {4, 1, 0, 80, 10, 0, 0, 1, 'u', 's', 'e', 'r', 0};
+	private static final byte[] CONNECT_4A = {4, 1, 0, 80, 0, 0, 0, 1, 'u', 's', 'e', 'r', 0,
+			'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'o', 'r', 'g', 0};
+
+	private static final byte[] NO_AUTHENTICATION_SELECTED = {5, 0};
+	private static final byte[] USERNAME_PASSWORD_SELECTED = {5, 2};
+	private static final byte[] AUTHENTICATED = {1, 0};
+	private static final byte[] GRANTED_5 = {5, 0, 0, 1, 10, 0, 0, 1, 0x1f, (byte) 0x90};
+	private static final byte[] GRANTED_4 = {0, 90, 0, 80, 10, 0, 0, 1};
+	private static final byte[] REJECTED_4 = {0, 91, 0, 0, 0, 0, 0, 0};
+
+	private final SocksMetrics metrics = new SocksMetrics();
+	private SocksNegotiatingIOSessionStrategy strategy = strategy(null);
+
+	private SocksNegotiatingIOSessionStrategy strategy(UsernamePasswordCredentials credentials) {
+		return new SocksNegotiatingIOSessionStrategy(null, credentials,
+				SocksConfig.custom().setEventListener(metrics).build(), 1, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * @param target an address literal for SOCKS4, which would resolve a host name on the client
+	 */
+	private static InMemoryIOSession session(String target) {
+		InMemoryIOSession session = new InMemoryIOSession(new HttpRoute(new HttpHost(target, 80, "http"), null, PROXY, false));
+		session.setEventMask(EventMask.READ);
+		session.recordWrites();
+		return session;
+	}
+
+	private SocksIOSession upgrade(InMemoryIOSession session) throws IOException {
+		HttpRoute route = (HttpRoute) session.getAttribute(InMemoryIOSession.ATTACHMENT_KEY);
+		return (SocksIOSession) strategy.upgrade(route.getTargetHost(), session);
+	}
+
+	private static void assertFails(SocksIOSession socksSession, Class<? extends Exception> expected) throws IOException {
+		try {
+			socksSession.initialize();
+			fail("handshake established");
+		} catch (IOException | RuntimeException e) {
+			if (!expected.isInstance(e))
+				throw e;
+		}
+	}
+
+	/**
+	 * The proxy closes the connection on the SOCKS5 greeting, the next tunnel tries SOCKS4a.
+	 */
+	private void closeOnGreeting() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		SocksIOSession socksSession = upgrade(session);
+		assertArrayEquals(GREETING, session.getWritten());
+		session.endOfStream();
+		assertFails(socksSession, ConnectionClosedException.class);
+	}
+
+	@Test
+	public void learnsSocks5AndPipelinesLaterTunnels() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		SocksIOSession socksSession = upgrade(session);
+		assertArrayEquals(GREETING, session.getWritten());
+		session.feed(NO_AUTHENTICATION_SELECTED);
+		session.feed(GRANTED_5);
+		assertTrue(socksSession.initialize());
+		assertArrayEquals(CONNECT_5, session.getWritten());
+		assertEquals(SocksVersion.SOCKS5, strategy.getVersion(PROXY));
+
+		session = session("10.0.0.1");
+		socksSession = upgrade(session);
+		assertArrayEquals(Bytes.concat(GREETING, CONNECT_5), session.getWritten());
+		session.feed(Bytes.concat(NO_AUTHENTICATION_SELECTED, GRANTED_5));
+		assertTrue(socksSession.initialize());
+
+		assertEquals("5", metrics.get(PROXY).getNegotiatedVersion());
+		assertEquals(0, metrics.get(PROXY).getNegotiatedMethod());
+		assertEquals(0, metrics.get(PROXY).getVersionDowngrades());
+	}
+
+	@Test
+	public void fallsBackToSocks4aWhenProxyClosesOnGreeting() throws IOException {
+		closeOnGreeting();
+		assertNull(strategy.getVersion(PROXY));
+		assertEquals(1, metrics.get(PROXY).getVersionDowngrades());
+
+		InMemoryIOSession session = session("example.org");
+		SocksIOSession socksSession = upgrade(session);
+		assertArrayEquals(CONNECT_4A, session.getWritten());
+		session.feed(GRANTED_4);
+		assertTrue(socksSession.initialize());
+
+		assertEquals(SocksVersion.SOCKS4A, strategy.getVersion(PROXY));
+		assertEquals("4a", metrics.get(PROXY).getNegotiatedVersion());
+	}
+
+	@Test
+	public void learnsNothingFromAddressSentAsSocks4a() throws IOException {
+		closeOnGreeting();
+
+		// an address looks the same in SOCKS4 and SOCKS4a, the proxy may not resolve names
+		InMemoryIOSession session = session("10.0.0.1");
+		SocksIOSession socksSession = upgrade(session);
+		assertArrayEquals(CONNECT_4, session.getWritten());
+		session.feed(GRANTED_4);
+		assertTrue(socksSession.initialize());
+		assertNull(strategy.getVersion(PROXY));
+	}
+
+	@Test
+	public void fallsBackToSocks4WhenHostNameIsRejected() throws IOException {
+		// a SOCKS4 proxy answering the greeting as a SOCKS4 request
+		InMemoryIOSession session = session("10.0.0.1");
+		SocksIOSession socksSession = upgrade(session);
+		session.feed((byte) 0, (byte) 91);
+		assertFails(socksSession, VerifyException.class);
+
+		session = session("example.org");
+		socksSession = upgrade(session);
+		assertArrayEquals(CONNECT_4A, session.getWritten());
+		session.feed(REJECTED_4);
+		assertFails(socksSession, SocksException.class);
+		assertNull(strategy.getVersion(PROXY));
+		assertEquals(2, metrics.get(PROXY).getVersionDowngrades());
+
+		session = session("10.0.0.1");
+		socksSession = upgrade(session);
+		assertArrayEquals(CONNECT_4, session.getWritten());
+		session.feed(GRANTED_4);
+		assertTrue(socksSession.initialize());
+		assertEquals(SocksVersion.SOCKS4, strategy.getVersion(PROXY));
+	}
+
+	@Test
+	public void forgetsSocks5WhenProxySelectsAnotherMethod() throws IOException {
+		strategy = strategy(new UsernamePasswordCredentials("user", "pass"));
+
+		InMemoryIOSession session = session("10.0.0.1");
+		SocksIOSession socksSession = upgrade(session);
+		assertArrayEquals(GREETING_AUTHENTICATION, session.getWritten());
+		session.feed(USERNAME_PASSWORD_SELECTED);
+		session.feed(AUTHENTICATED);
+		session.feed(GRANTED_5);
+		assertTrue(socksSession.initialize());
+		assertEquals(SocksVersion.SOCKS5, strategy.getVersion(PROXY));
+		assertEquals(2, metrics.get(PROXY).getNegotiatedMethod());
+
+		// pipelined with the learned method, the proxy no longer asks for authentication
+		session = session("10.0.0.1");
+		socksSession = upgrade(session);
+		assertArrayEquals(Bytes.concat(new byte[]{5, 1, 2}, AUTHENTICATION, CONNECT_5), session.getWritten());
+		session.feed(NO_AUTHENTICATION_SELECTED);
+		assertFails(socksSession, VerifyException.class);
+		assertNull(strategy.getVersion(PROXY));
+
+		// probed again from the greeting on
+		session = session("10.0.0.1");
+		upgrade(session);
+		assertArrayEquals(GREETING_AUTHENTICATION, session.getWritten());
+	}
+
+	@Test
+	public void keepsLearnedVersionOnRejectedTunnel() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		SocksIOSession socksSession = upgrade(session);
+		session.feed(NO_AUTHENTICATION_SELECTED);
+		session.feed(GRANTED_5);
+		assertTrue(socksSession.initialize());
+
+		session = session("10.0.0.1");
+		socksSession = upgrade(session);
+		// connection refused by the target
+		session.feed(NO_AUTHENTICATION_SELECTED);
+		session.feed(new byte[]{5, 5, 0, 1, 0, 0, 0, 0, 0, 0});
+		assertFails(socksSession, SocksException.class);
+		assertEquals(SocksVersion.SOCKS5, strategy.getVersion(PROXY));
+	}
+}
@@ -0,0 +1,47 @@
+package demo.socks;
+
+import com.google.common.base.Predicates;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.routing.HttpRoute;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SocksRoutePlannerTest {
+	private static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks");
+
+	private final SocksConfig config = SocksConfig.custom()
+			.setEarlyDataRoutes(Predicates.<HttpRoute>alwaysTrue())
+			.build();
+
+	private static HttpRoute plan(String uri) throws HttpException {
+		HttpGet request = new HttpGet(uri);
+		HttpClientContext context = HttpClientContext.create();
+		context.setRequestConfig(RequestConfig.custom().setProxy(PROXY).build());
+		return new SocksRoutePlanner().determineRoute(URIUtils.extractHost(request.getURI()), request, context);
+	}
+
+	@Test
+	public void plansHttpsTargetWithoutEarlyData() throws HttpException {
+		HttpRoute route = plan("https://example.org/");
+		assertEquals(PROXY, route.getProxyHost());
+		assertFalse(route.isSecure());
+		assertFalse(route.isTunnelled());
+		// the SOCKS session strategy adds TLS, the request must not go out in plain text before that
+		assertFalse(config.isEarlyData(route));
+	}
+
+	@Test
+	public void plansHttpTargetWithEarlyData() throws HttpException {
+		HttpRoute route = plan("http://example.org/");
+		assertEquals(PROXY, route.getProxyHost());
+		assertTrue(config.isEarlyData(route));
+	}
+}
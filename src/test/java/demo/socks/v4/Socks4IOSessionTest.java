@@ -0,0 +1,165 @@
+package demo.socks.v4;
+
+import com.google.common.base.VerifyException;
+import demo.socks.SocksConfig;
+import demo.socks.SocksException;
+import demo.socks.bench.InMemoryIOSession;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.reactor.EventMask;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Socks4IOSessionTest {
+	private static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks");
+
+	private static final byte[] CONNECT = {4, 1, 0, 80, 10, 0, 0, 1, 'u', 's', 'e', 'r', 0};
+	private static final byte[] CONNECT_4A = {4, 1, 0, 80, 0, 0, 0, 1, 'u', 's', 'e', 'r', 0,
+			'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'o', 'r', 'g', 0};
+	private static final byte[] GRANTED = {0, 90, 0, 80, 10, 0, 0, 1};
+
+	private static InMemoryIOSession session(String target) {
+		InMemoryIOSession session = new InMemoryIOSession(new HttpRoute(new HttpHost(target, 80, "http"), null, PROXY, false));
+		// the HTTP layer waits for the response
+		session.setEventMask(EventMask.READ);
+		session.recordWrites();
+		return session;
+	}
+
+	@Test
+	public void writesConnectByteByByte() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		for (int i = 0; i < CONNECT.length; i++) {
+			session.setWriteBudget(1);
+			assertFalse(socksSession.initialize());
+			written.write(session.getWritten());
+			int expectedMask = i < CONNECT.length - 1 ? EventMask.WRITE : EventMask.READ;
+			assertEquals("event mask after " + (i + 1) + " bytes", expectedMask, session.getEventMask());
+		}
+		assertArrayEquals(CONNECT, written.toByteArray());
+
+		session.setWriteBudget(-1);
+		session.feed(GRANTED);
+		assertTrue(socksSession.initialize());
+		assertEquals(0, session.getWritten().length);
+	}
+
+	@Test
+	public void gathersSplitReply() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(CONNECT, session.getWritten());
+
+		for (int i = 0; i < GRANTED.length - 1; i++) {
+			session.feed(GRANTED[i]);
+			assertFalse(socksSession.initialize());
+			assertFalse(socksSession.isInitialized());
+			assertEquals(EventMask.READ, session.getEventMask());
+		}
+		session.feed(GRANTED[GRANTED.length - 1]);
+		assertTrue(socksSession.initialize());
+		assertTrue(socksSession.isInitialized());
+		// the interest of the HTTP layer is back
+		assertEquals(EventMask.READ, socksSession.getEventMask());
+	}
+
+	@Test
+	public void leavesBytesAfterReplyToTheLayersAbove() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+
+		session.feed(GRANTED);
+		session.feed((byte) 'H', (byte) 'T');
+		assertTrue(socksSession.initialize());
+
+		ByteBuffer rest = ByteBuffer.allocate(16);
+		assertEquals(2, socksSession.channel().read(rest));
+		assertEquals('H', rest.get(0));
+		assertEquals('T', rest.get(1));
+	}
+
+	@Test
+	public void sendsHostNameAsSocks4a() throws IOException {
+		InMemoryIOSession session = session("example.org");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(CONNECT_4A, session.getWritten());
+	}
+
+	@Test
+	public void hidesHandshakeFromLayersAbove() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+		session.feed(Arrays.copyOf(GRANTED, 4));
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(CONNECT, session.getWritten());
+		assertEquals(0, socksSession.channel().read(ByteBuffer.allocate(16)));
+		assertEquals(0, socksSession.channel().write(ByteBuffer.wrap(new byte[]{'G', 'E', 'T'})));
+		assertEquals(0, session.getWritten().length);
+	}
+
+	@Test
+	public void rejectsWithReplyCode() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+		session.feed(new byte[]{0, 91, 0, 0, 0, 0, 0, 0});
+
+		try {
+			socksSession.initialize();
+			fail("rejected handshake established");
+		} catch (SocksException e) {
+			assertEquals(91, e.getReplyCode());
+			assertEquals(4, e.getVersion());
+		}
+		assertTrue(session.isClosed());
+		assertFalse(socksSession.isInitialized());
+	}
+
+	@Test
+	public void failsOnReplyOfAnotherVersion() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+		session.feed(new byte[]{5, 0, 0, 0, 0, 0, 0, 0});
+
+		try {
+			socksSession.initialize();
+			fail("handshake established on a SOCKS5 reply");
+		} catch (VerifyException expected) {
+		}
+	}
+
+	@Test
+	public void failsWhenProxyClosesBeforeReplying() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks4IOSession socksSession = new Socks4IOSession(session, SocksConfig.DEFAULT);
+		session.feed(GRANTED[0], GRANTED[1]);
+		session.endOfStream();
+
+		// the partial reply arrives with one event, the end of the stream with the next
+		assertFalse(socksSession.initialize());
+		try {
+			socksSession.initialize();
+			fail("handshake established on a truncated reply");
+		} catch (ConnectionClosedException expected) {
+		}
+		assertTrue(session.isClosed());
+	}
+}
@@ -0,0 +1,269 @@
+package demo.socks.v5;
+
+import com.google.common.base.VerifyException;
+import com.google.common.primitives.Bytes;
+import demo.socks.SocksConfig;
+import demo.socks.SocksException;
+import demo.socks.bench.InMemoryIOSession;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.reactor.EventMask;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class Socks5IOSessionTest {
+	private static final HttpHost PROXY = new HttpHost("127.0.0.1", 1080, "socks5");
+	private static final UsernamePasswordCredentials CREDENTIALS = new UsernamePasswordCredentials("user", "pass");
+
+	private static final byte[] GREETING = {5, 1, 0};
+	private static final byte[] GREETING_AUTHENTICATION = {5, 2, 0, 2};
+	private static final byte[] AUTHENTICATION = {1, 4, 'u', 's', 'e', 'r', 4, 'p', 'a', 's', 's'};
+	private static final byte[] CONNECT = {5, 1, 0, 1, 10, 0, 0, 1, 0, 80};
+	private static final byte[] CONNECT_DOMAIN = {5, 1, 0, 3, 11, 'e', 'x', 'a', 'm', 'p', 'l', 'e', '.', 'o', 'r', 'g', 0, 80};
+
+	private static final byte[] NO_AUTHENTICATION_SELECTED = {5, 0};
+	private static final byte[] USERNAME_PASSWORD_SELECTED = {5, 2};
+	private static final byte[] AUTHENTICATED = {1, 0};
+	private static final byte[] GRANTED_IPV4 = {5, 0, 0, 1, 10, 0, 0, 1, 0x1f, (byte) 0x90};
+	private static final byte[] GRANTED_DOMAIN = {5, 0, 0, 3, 5, 'p', 'r', 'o', 'x', 'y', 0x1f, (byte) 0x90};
+	private static final byte[] GRANTED_IPV6 = {5, 0, 0, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0x1f, (byte) 0x90};
+
+	private static InMemoryIOSession session(String target) {
+		InMemoryIOSession session = new InMemoryIOSession(new HttpRoute(new HttpHost(target, 80, "http"), null, PROXY, false));
+		session.setEventMask(EventMask.READ);
+		session.recordWrites();
+		return session;
+	}
+
+	private static Socks5IOSession socksSession(InMemoryIOSession session, UsernamePasswordCredentials credentials,
+												boolean pipelined) {
+		return new Socks5IOSession(session, new Socks5ConnectTemplates(credentials), pipelined, SocksConfig.DEFAULT);
+	}
+
+	/**
+	 * Feeds the reply one byte per read event, the handshake must not complete before its last byte.
+	 */
+	private static boolean feedSplit(InMemoryIOSession session, Socks5IOSession socksSession, byte[] reply) throws IOException {
+		for (int i = 0; i < reply.length - 1; i++) {
+			session.feed(reply[i]);
+			assertFalse("established after " + (i + 1) + " bytes of the reply", socksSession.initialize());
+		}
+		session.feed(reply[reply.length - 1]);
+		return socksSession.initialize();
+	}
+
+	@Test
+	public void negotiatesWithoutAuthentication() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, null, false);
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(GREETING, session.getWritten());
+
+		assertFalse(feedSplit(session, socksSession, NO_AUTHENTICATION_SELECTED));
+		assertArrayEquals(CONNECT, session.getWritten());
+		assertEquals(0, socksSession.getSelectedMethod());
+
+		assertTrue(feedSplit(session, socksSession, GRANTED_IPV4));
+		assertTrue(socksSession.isInitialized());
+		assertEquals(EventMask.READ, socksSession.getEventMask());
+	}
+
+	@Test
+	public void negotiatesUsernamePassword() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, CREDENTIALS, false);
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(GREETING_AUTHENTICATION, session.getWritten());
+
+		session.feed(USERNAME_PASSWORD_SELECTED);
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(AUTHENTICATION, session.getWritten());
+
+		session.feed(AUTHENTICATED);
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(CONNECT, session.getWritten());
+
+		session.feed(GRANTED_IPV4);
+		assertTrue(socksSession.initialize());
+	}
+
+	@Test
+	public void writesNegotiationByteByByte() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, CREDENTIALS, false);
+
+		ByteArrayOutputStream written = new ByteArrayOutputStream();
+		for (byte[] reply : new byte[][]{USERNAME_PASSWORD_SELECTED, AUTHENTICATED}) {
+			session.setWriteBudget(1);
+			while (!socksSession.initialize() && session.getEventMask() == EventMask.WRITE) {
+				written.write(session.getWritten());
+				session.setWriteBudget(1);
+			}
+			written.write(session.getWritten());
+			session.feed(reply);
+		}
+		session.setWriteBudget(-1);
+		assertFalse(socksSession.initialize());
+		written.write(session.getWritten());
+
+		assertArrayEquals(Bytes.concat(GREETING_AUTHENTICATION, AUTHENTICATION, CONNECT), written.toByteArray());
+		session.feed(GRANTED_IPV4);
+		assertTrue(socksSession.initialize());
+	}
+
+	@Test
+	public void pipelinesInOneWrite() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, CREDENTIALS, true);
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(Bytes.concat(new byte[]{5, 1, 2}, AUTHENTICATION, CONNECT), session.getWritten());
+
+		// all replies in one read
+		session.feed(Bytes.concat(USERNAME_PASSWORD_SELECTED, AUTHENTICATED, GRANTED_IPV4));
+		assertTrue(socksSession.initialize());
+		assertEquals(0, session.getWritten().length);
+	}
+
+	@Test
+	public void sendsHostNameAsDomain() throws IOException {
+		InMemoryIOSession session = session("example.org");
+		Socks5IOSession socksSession = socksSession(session, null, true);
+
+		assertFalse(socksSession.initialize());
+		assertArrayEquals(Bytes.concat(GREETING, CONNECT_DOMAIN), session.getWritten());
+	}
+
+	@Test
+	public void consumesBoundAddressOfEveryType() throws IOException {
+		for (byte[] granted : new byte[][]{GRANTED_IPV4, GRANTED_DOMAIN, GRANTED_IPV6}) {
+			InMemoryIOSession session = session("10.0.0.1");
+			Socks5IOSession socksSession = socksSession(session, null, true);
+			session.feed(NO_AUTHENTICATION_SELECTED);
+			session.feed(granted);
+			session.feed((byte) 'H');
+
+			assertTrue(socksSession.initialize());
+			ByteBuffer rest = ByteBuffer.allocate(16);
+			assertEquals(1, socksSession.channel().read(rest));
+			assertEquals('H', rest.get(0));
+		}
+	}
+
+	@Test
+	public void rejectsWithConnectReplyCode() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, null, true);
+		session.feed(NO_AUTHENTICATION_SELECTED);
+		session.feed(new byte[]{5, 5, 0, 1, 0, 0, 0, 0, 0, 0});
+
+		try {
+			socksSession.initialize();
+			fail("rejected handshake established");
+		} catch (SocksException e) {
+			assertEquals(5, e.getVersion());
+			assertEquals(5, e.getReplyCode());
+			assertEquals(SocksException.Scope.TARGET, e.getScope());
+		}
+		assertTrue(session.isClosed());
+	}
+
+	@Test
+	public void rejectsWhenNoMethodIsAcceptable() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, null, false);
+		session.feed((byte) 5, (byte) 0xff);
+
+		try {
+			socksSession.initialize();
+			fail("handshake established without a method");
+		} catch (SocksException e) {
+			assertEquals(Socks5IOSession.NO_ACCEPTABLE_METHODS, e.getReplyCode());
+		}
+	}
+
+	@Test
+	public void rejectsFailedAuthentication() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, CREDENTIALS, false);
+		session.feed(USERNAME_PASSWORD_SELECTED);
+		assertFalse(socksSession.initialize());
+		session.feed((byte) 1, (byte) 1);
+
+		try {
+			socksSession.initialize();
+			fail("handshake established with failed authentication");
+		} catch (SocksException e) {
+			assertEquals(Socks5IOSession.AUTHENTICATION_FAILED, e.getReplyCode());
+			assertFalse(e.isTransient());
+		}
+	}
+
+	@Test
+	public void failsOnMethodNotOffered() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, null, false);
+		session.feed(USERNAME_PASSWORD_SELECTED);
+
+		try {
+			socksSession.initialize();
+			fail("handshake established with a method not offered");
+		} catch (VerifyException expected) {
+		}
+	}
+
+	@Test
+	public void failsOnMethodOtherThanPipelined() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, CREDENTIALS, true);
+		session.feed(NO_AUTHENTICATION_SELECTED);
+
+		try {
+			socksSession.initialize();
+			fail("pipelined handshake established with another method");
+		} catch (VerifyException expected) {
+		}
+		assertEquals(0, socksSession.getSelectedMethod());
+	}
+
+	@Test
+	public void failsOnUnknownAddressType() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, null, true);
+		session.feed(NO_AUTHENTICATION_SELECTED);
+		session.feed(new byte[]{5, 0, 0, 7, 0, 0, 0, 0, 0, 0});
+
+		try {
+			socksSession.initialize();
+			fail("handshake established with an unknown address type");
+		} catch (VerifyException expected) {
+		}
+	}
+
+	@Test
+	public void failsOnReplyOfAnotherVersion() throws IOException {
+		InMemoryIOSession session = session("10.0.0.1");
+		Socks5IOSession socksSession = socksSession(session, null, false);
+		// a SOCKS4 proxy rejecting what it takes for a SOCKS4 request
+		session.feed((byte) 0, (byte) 91);
+
+		try {
+			socksSession.initialize();
+			fail("handshake established on a SOCKS4 reply");
+		} catch (VerifyException expected) {
+		}
+		assertEquals(-1, socksSession.getSelectedMethod());
+	}
+}